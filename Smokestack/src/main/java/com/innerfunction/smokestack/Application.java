@@ -1,11 +1,14 @@
 package com.innerfunction.smokestack;
 
+import android.app.Activity;
 import android.content.pm.ApplicationInfo;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 import android.webkit.WebView;
 
 import com.innerfunction.scffld.app.ManifestMetaData;
+import com.innerfunction.smokestack.content.RefreshScheduler;
 
 import static com.innerfunction.util.DataLiterals.*;
 
@@ -50,6 +53,36 @@ public class Application extends android.app.Application {
                 android.os.Debug.stopMethodTracing();
             }
             appContainer.startService();
+            // Pause periodic content refreshes whilst the app is in the background.
+            if( appContainer.getContentProvider() != null ) {
+                final RefreshScheduler refreshScheduler = appContainer.getContentProvider().getRefreshScheduler();
+                registerActivityLifecycleCallbacks( new ActivityLifecycleCallbacks() {
+                    /** The number of started activities. */
+                    private int startedActivities;
+                    @Override
+                    public void onActivityStarted(Activity activity) {
+                        if( startedActivities++ == 0 ) {
+                            refreshScheduler.resume();
+                        }
+                    }
+                    @Override
+                    public void onActivityStopped(Activity activity) {
+                        if( --startedActivities == 0 ) {
+                            refreshScheduler.pause();
+                        }
+                    }
+                    @Override
+                    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+                    @Override
+                    public void onActivityResumed(Activity activity) {}
+                    @Override
+                    public void onActivityPaused(Activity activity) {}
+                    @Override
+                    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+                    @Override
+                    public void onActivityDestroyed(Activity activity) {}
+                } );
+            }
         }
         catch(Exception e) {
             Log.e(Tag, "Application startup failure", e );
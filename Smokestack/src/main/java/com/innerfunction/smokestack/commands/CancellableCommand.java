@@ -0,0 +1,41 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import com.innerfunction.q.Q;
+
+import java.util.List;
+
+/**
+ * A command which supports cooperative cancellation.
+ * The command scheduler executes such commands through the execute method below, passing a
+ * cancellation token which is cancelled if the command times out, or if the scheduler is stopped.
+ */
+public interface CancellableCommand extends Command {
+
+    /**
+     * Execute the command with the specified name and arguments.
+     * As Command.execute(), but with a token which the command should check, or listen to, for
+     * cancellation.
+     */
+    Q.Promise<CommandList> execute(String name, List args, CancellationToken token);
+
+    /**
+     * Test whether the named command supports cancellation.
+     * Commands which dispatch to other commands, e.g. command protocols, may only support the
+     * cancellation of some of them.
+     */
+    boolean isCancellable(String name);
+
+}
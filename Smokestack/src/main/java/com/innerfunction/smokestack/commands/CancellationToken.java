@@ -0,0 +1,86 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A token used to request the cancellation of a running command.
+ * The command scheduler creates a token for each command execution, and cancels it when the
+ * command times out or the scheduler is stopped. Cancellation is cooperative: commands which
+ * accept a token (see CancellableCommand) should check it, or listen to it, and stop work as
+ * soon as possible once it is cancelled. The scheduler doesn't wait for a cancelled command to
+ * stop before continuing with other commands.
+ */
+public class CancellationToken {
+
+    /** A listener for token cancellation. */
+    public interface Listener {
+        /** Called once, when the token is cancelled. */
+        void cancelled(String reason);
+    }
+
+    /** Flag indicating that the token is cancelled. */
+    private volatile boolean cancelled;
+    /** The reason for the cancellation. */
+    private String reason;
+    /** Listeners to call when the token is cancelled. */
+    private List<Listener> listeners = new ArrayList<>();
+
+    /** Test whether the token is cancelled. */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Return the reason for the cancellation; or null if the token isn't cancelled. */
+    public synchronized String getReason() {
+        return reason;
+    }
+
+    /**
+     * Add a cancellation listener.
+     * If the token is already cancelled then the listener is called immediately.
+     */
+    public void addListener(Listener listener) {
+        synchronized( this ) {
+            if( !cancelled ) {
+                listeners.add( listener );
+                return;
+            }
+        }
+        listener.cancelled( reason );
+    }
+
+    /**
+     * Cancel the token.
+     * @return false if the token was already cancelled.
+     */
+    boolean cancel(String reason) {
+        List<Listener> listeners;
+        synchronized( this ) {
+            if( cancelled ) {
+                return false;
+            }
+            this.reason = reason;
+            this.cancelled = true;
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+        for( Listener listener : listeners ) {
+            listener.cancelled( reason );
+        }
+        return true;
+    }
+}
@@ -19,9 +19,15 @@ import com.innerfunction.q.Q;
 
 import org.json.simple.JSONValue;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * An object representing a command item on the execution queue
@@ -36,8 +42,48 @@ public class CommandItem {
     String name;
     /** A list of the command arguments. */
     List args;
-    /** The command's execution priority. */
+    /**
+     * The command's execution priority.
+     * Deprecated; negative priorities map to the foreground class, and positive priorities to the
+     * background class, when no priority class is set.
+     */
     Integer priority;
+    /**
+     * The command's priority class.
+     * For follow-on commands, null means the class of the command which queued it.
+     */
+    CommandPriority priorityClass;
+    /** The ordinal of the priority class the command is currently queued in, after aging. */
+    int effectiveClass;
+    /** The batch the command was queued in. */
+    int batch;
+    /** The name of the lane the command runs in; resolved when the command is scheduled. */
+    String lane;
+    /** Flag indicating that the command was submitted for immediate execution. */
+    boolean immediate;
+    /**
+     * The commands, in the same command list, that this command depends on.
+     * Null if the command is scheduled in queue order; see dependsOn().
+     */
+    List<CommandItem> dependencies;
+    /** The row IDs of the commands this command depends on; null if scheduled in queue order. */
+    Set<String> dependencyIDs;
+    /** A hash of the command's batch, name and args; used to detect duplicate queued commands. */
+    String hash;
+    /** The number of failed attempts to execute the command. */
+    int attempts;
+    /** The earliest time, in milliseconds since the epoch, at which the command can be started. */
+    long notBefore;
+    /** The cancellation token of the command's current execution; null when not running. */
+    CancellationToken execution;
+    /** The time the command was queued, or became due if delayed; used to measure start latency. */
+    long queuedTime;
+    /** The start time of the command's current execution. */
+    long startTime;
+    /** The watchdog of the command's current execution, if any. */
+    Runnable watchdog;
+    /** Flag indicating that the command was purged from the queue while running; it isn't retried. */
+    boolean purged;
     /** An optional promise to be resolved once the command item is executed. */
     Q.Promise<Boolean> promise;
 
@@ -47,6 +93,10 @@ public class CommandItem {
     /** Instantiate a new command item from a db record. */
     CommandItem(Map<String,?> record) {
         this.rowID = record.get("id").toString();
+        Object batch = record.get("batch");
+        if( batch instanceof Number ) {
+            this.batch = ((Number)batch).intValue();
+        }
         this.name = (String)record.get("command");
         try {
             String json = (String)record.get("args");
@@ -57,6 +107,33 @@ public class CommandItem {
         }
     }
 
+    /** Instantiate a new command item from a queue table row. */
+    CommandItem(QueueRow row) {
+        this.rowID = String.valueOf( row.id );
+        this.batch = (int)row.batch;
+        this.hash = row.hash != null ? row.hash : hash( batch, row.command, row.args );
+        this.attempts = (int)row.attempts;
+        this.notBefore = row.notBefore;
+        if( !row.isNull( 9 ) && row.priorityClass < CommandPriority.values().length ) {
+            this.priorityClass = CommandPriority.values()[(int)row.priorityClass];
+        }
+        if( row.deps != null ) {
+            this.dependencyIDs = new HashSet<>();
+            for( String id : row.deps.split(",") ) {
+                if( id.length() > 0 ) {
+                    dependencyIDs.add( id );
+                }
+            }
+        }
+        this.name = row.command;
+        try {
+            this.args = (List)JSONValue.parseWithException( row.args );
+        }
+        catch(org.json.simple.parser.ParseException e) {
+            Log.e( CommandScheduler.Tag, "Parsing JSON args", e );
+        }
+    }
+
     /** Instantiate a new command item with a command name and list of arguments. */
     public CommandItem(String name, Object... args) {
         this.name = name;
@@ -68,4 +145,55 @@ public class CommandItem {
         this.name = name;
         this.args = args;
     }
-}
\ No newline at end of file
+
+    /**
+     * Return a hash of a queued command's batch, name and JSON encoded arguments.
+     * Commands with the same hash are duplicates of each other.
+     */
+    static String hash(int batch, String name, String argsJSON) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update( String.format("%d\u0000%s\u0000%s", batch, name, argsJSON ).getBytes("UTF-8") );
+            StringBuilder hex = new StringBuilder();
+            for( byte b : digest.digest() ) {
+                hex.append( String.format("%02x", b & 0xFF ) );
+            }
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are always available on Android.
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Set the command's priority class.
+     * By default, follow-on commands are queued in the priority class of the command which
+     * queued them.
+     * @return The command item.
+     */
+    public CommandItem withPriorityClass(CommandPriority priorityClass) {
+        this.priorityClass = priorityClass;
+        return this;
+    }
+
+    /**
+     * Declare that this command depends on other commands in the same command list.
+     * By default, a follow-on command depends on the commands before it in its list, so that a
+     * command list runs in order. A command with declared dependencies is instead started as soon
+     * as all of its declared dependencies have completed (and its lane has capacity), and doesn't
+     * hold up, or wait for, other commands queued in the same lane. Calling this method with no
+     * arguments declares the command as independent of all other commands.
+     * Dependencies must be added to the command list before this command, and must have the same
+     * priority; other dependencies are ignored.
+     * @param commands  The commands this command depends on.
+     * @return The command item.
+     */
+    public CommandItem dependsOn(CommandItem... commands) {
+        if( dependencies == null ) {
+            dependencies = new ArrayList<>();
+        }
+        dependencies.addAll( Arrays.asList( commands ) );
+        return this;
+    }
+}
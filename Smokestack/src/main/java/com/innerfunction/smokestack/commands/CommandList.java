@@ -20,7 +20,8 @@ import java.util.List;
  * A list of commands.
  * This class is a lightweight extension of ArrayList which provides a generically typed
  * List&lt;CommandItem&gt; implementation which is more convenient to use in client code (e.g.
- * command protocol implementations).
+ * command protocol implementations). The add methods return the new command item, so that
+ * dependencies between commands in the list can be declared; see CommandItem.dependsOn().
  *
  * Created by juliangoacher on 10/03/2017.
  */
@@ -30,17 +31,41 @@ public class CommandList extends ArrayList<CommandItem> {
      * Add a command item to the list.
      * @param name  The name of the command.
      * @param args  The command's arguments.
+     * @return The new command item.
      */
-    public void addCommand(String name, Object... args) {
-        add( new CommandItem( name, args ) );
+    public CommandItem addCommand(String name, Object... args) {
+        CommandItem command = new CommandItem( name, args );
+        add( command );
+        return command;
     }
 
     /**
      * Add a command item to the list.
      * @param name  The name of the command.
      * @param args  The command's arguments.
+     * @return The new command item.
      */
-    public void addCommand(String name, List args) {
-        add( new CommandItem( name, args ) );
+    public CommandItem addCommand(String name, List args) {
+        CommandItem command = new CommandItem( name, args );
+        add( command );
+        return command;
     }
-}
\ No newline at end of file
+
+    /**
+     * Add a command item with an execution priority to the list.
+     * Negative priorities queue the command in the foreground priority class, and positive
+     * priorities in the background class.
+     * @param name      The name of the command.
+     * @param priority  The command's execution priority.
+     * @param args      The command's arguments.
+     * @return The new command item.
+     * @deprecated Use addCommand() and CommandItem.withPriorityClass().
+     */
+    @Deprecated
+    public CommandItem addCommandWithPriority(String name, int priority, List args) {
+        CommandItem command = new CommandItem( name, args );
+        command.priority = priority;
+        add( command );
+        return command;
+    }
+}
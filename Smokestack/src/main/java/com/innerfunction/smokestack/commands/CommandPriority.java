@@ -0,0 +1,28 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+/**
+ * Command priority classes.
+ * Within a batch, the command scheduler starts pending commands in a higher priority class before
+ * commands in lower classes, whatever their queue positions; so a foreground command is started
+ * as soon as its lane has capacity, i.e. within one command of being queued. Commands waiting in
+ * lower classes are aged into higher classes, so that they aren't starved.
+ * <ul>
+ * <li>Foreground: Commands the user is waiting on, e.g. a refresh after login.</li>
+ * <li>Normal: The default class.</li>
+ * <li>Background: Housekeeping, e.g. database maintenance.</li>
+ * </ul>
+ */
+public enum CommandPriority { Foreground, Normal, Background }
@@ -13,10 +13,14 @@ import java.util.Map;
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class CommandProtocol implements Command {
+public class CommandProtocol implements LanedCommand, RetryableCommand, CancellableCommand {
 
     /** A map of the protocol's named commands. */
     private Map<String,Command> commands = new HashMap<>();
+    /** A map of the execution lanes of the protocol's commands, keyed by command name. */
+    private Map<String,String> commandLanes = new HashMap<>();
+    /** A map of the retry policies of the protocol's commands, keyed by command name. */
+    private Map<String,RetryPolicy> retryPolicies = new HashMap<>();
     /** The command prefix. Used to namespace commands to this protocol. */
     private String commandPrefix;
 
@@ -35,6 +39,17 @@ public class CommandProtocol implements Command {
         commands.put( name, command );
     }
 
+    /** Register a protocol command which runs in the named execution lane. */
+    public void addCommand(String name, String lane, Command command) {
+        commands.put( name, command );
+        commandLanes.put( name, lane );
+    }
+
+    /** Set the retry policy of a protocol command. */
+    public void setRetryPolicy(String name, RetryPolicy policy) {
+        retryPolicies.put( name, policy );
+    }
+
     /** Qualify a protocol command name with the current command prefix. */
     public String getQualifiedCommandName(String name) {
         return String.format("%s.%s", commandPrefix, name );
@@ -88,8 +103,51 @@ public class CommandProtocol implements Command {
         return result;
     }
 
+    @Override
+    public String getLane(String name) {
+        String commandName = getUnqualifiedCommandName( name );
+        String lane = commandLanes.get( commandName );
+        if( lane == null ) {
+            Command command = commands.get( commandName );
+            if( command instanceof LanedCommand ) {
+                lane = ((LanedCommand)command).getLane( name );
+            }
+        }
+        return lane;
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy(String name) {
+        String commandName = getUnqualifiedCommandName( name );
+        RetryPolicy policy = retryPolicies.get( commandName );
+        if( policy == null ) {
+            Command command = commands.get( commandName );
+            if( command instanceof RetryableCommand ) {
+                policy = ((RetryableCommand)command).getRetryPolicy( name );
+            }
+        }
+        return policy;
+    }
+
+    @Override
+    public boolean isCancellable(String name) {
+        Command command = commands.get( getUnqualifiedCommandName( name ) );
+        return command instanceof CancellableCommand && ((CancellableCommand)command).isCancellable( name );
+    }
+
+    /** Strip the protocol prefix from a qualified command name. */
+    private String getUnqualifiedCommandName(String name) {
+        int idx = name.indexOf('.');
+        return idx > -1 ? name.substring( idx + 1 ) : name;
+    }
+
     @Override
     public Q.Promise<CommandList> execute(String name, List args) {
+        return execute( name, args, null );
+    }
+
+    @Override
+    public Q.Promise<CommandList> execute(String name, List args, CancellationToken token) {
         // Split the protocol prefix from the name to get the actual command name.
         String[] nameParts = name.split("\\.");
         commandPrefix = nameParts[0]; // Hack to get the correct prefix used by the command protocol.
@@ -98,6 +156,10 @@ public class CommandProtocol implements Command {
         Command command = commands.get( commandName );
         if( command != null ) {
             try {
+                // Pass the cancellation token to protocol commands which accept it.
+                if( token != null && command instanceof CancellableCommand ) {
+                    return ((CancellableCommand)command).execute( name, args, token );
+                }
                 return command.execute( name, args );
             }
             catch(Exception e) {
@@ -14,13 +14,17 @@
 package com.innerfunction.smokestack.commands;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.innerfunction.scffld.Message;
+import com.innerfunction.scffld.MessageReceiver;
 import com.innerfunction.scffld.Service;
 import com.innerfunction.q.Q;
 import com.innerfunction.smokestack.db.Column;
 import com.innerfunction.smokestack.db.DB;
-import com.innerfunction.smokestack.db.ResultSet;
 import com.innerfunction.smokestack.db.Table;
 import com.innerfunction.util.RunQueue;
 
@@ -32,15 +36,51 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A command scheduler with guarantees on command execution.
+ * Commands are run in execution lanes (see LanedCommand), each with its own concurrency limit,
+ * so that e.g. a long running download doesn't block file operations. Commands in a batch only
+ * start once all commands in earlier batches have completed, and within a batch, each lane
+ * starts its commands in queue order; in a lane with a concurrency limit of 1 this means that
+ * commands also complete in queue order. The follow-on commands of a command run in list order,
+ * across lanes: each follow-on is started once the commands before it in the list have completed.
+ * Follow-on commands can instead declare dependencies on other commands in the same command
+ * list (see CommandItem.dependsOn()), in which case they are started as soon as their declared
+ * dependencies complete. Dependencies are persisted in the queue
+ * database, so the dependency graph is resumed after a restart.
+ *
+ * Queue state changes are group committed: the completions and follow-on commands of several
+ * commands are written to the queue database in a single transaction. After a restart, only
+ * commands whose completion wasn't committed are re-run. The scheduler keeps the queue in memory,
+ * ordered by batch and queue position; the queue database is only read at startup.
+ *
+ * Failed commands can be retried after a delay, according to a retry policy (see RetryPolicy).
+ * Delayed commands don't block other commands in their lane, but do hold up later batches.
+ *
+ * Commands have a priority class (see CommandPriority). Within the lowest incomplete batch, lanes
+ * start commands in higher classes before commands in lower classes; commands are raised to the
+ * next class each time they have waited for the aging interval, so that they aren't starved.
+ *
+ * A watchdog enforces per-command and per-lane timeouts; a command which times out has its
+ * cancellation token cancelled (see CancellableCommand) and is failed, so that a hung command
+ * can't stall the queue. A default timeout applies to cancellable commands only, as a command
+ * which can't be cancelled would otherwise keep running alongside any retry of it.
  *
  * Attached by juliangoacher on 07/05/16.
  */
-public class CommandScheduler implements Service {
+public class CommandScheduler implements Service, MessageReceiver {
 
     static final String Tag = CommandScheduler.class.getSimpleName();
 
@@ -48,19 +88,101 @@ public class CommandScheduler implements Service {
     public static final CommandList NoFollowOns = new CommandList();
 
     /**
-     * A queue used to run commands.
-     * All commands are run sequentially on the same background thread. Note that the queue is
-     * created in a non-running state, and is only started when the command scheduler service is
-     * started (i.e. see this class' startService() method). This is to ensure that no commands
-     * are executed before the service and its database are up and running.
+     * A queue used to schedule commands.
+     * All queue state is read and modified on this queue's background thread; commands themselves
+     * are executed on the lane executor (see below). Note that the queue is created in a
+     * non-running state, and is only started when the command scheduler service is started (i.e.
+     * see this class' startService() method). This is to ensure that no commands are executed
+     * before the service and its database are up and running.
      */
     private RunQueue execRunQueue;
+    /** An executor providing the threads commands are executed on. */
+    private ExecutorService laneExecutor;
     /** The queue database. */
     private DB db;
+    /**
+     * The queued commands waiting to be started, in execution order.
+     * This is the authoritative queue state; it is loaded from the queue database at startup,
+     * after which the database is only written to, as a durable log of queue state changes.
+     */
+    private PendingQueue pendingCommands = new PendingQueue();
+    /** Flag indicating that the pending commands have been loaded from the queue database. */
+    private boolean queueLoaded;
+    /** The row IDs of all pending and running queued commands. */
+    private Set<String> incompleteIDs = new HashSet<>();
+    /**
+     * The number of pending and running commands, keyed by command name prefix.
+     * Unlike other queue state, can be read from any thread; see hasIncompleteCommands().
+     */
+    private Map<String,Integer> incompleteCounts = new HashMap<>();
+    /**
+     * The number of pending and running commands, keyed by command name.
+     * Guarded by incompleteCounts; see hasIncompleteCommand().
+     */
+    private Map<String,Integer> incompleteNameCounts = new HashMap<>();
     /** A list of commands currently being executed. */
-    private List<CommandItem> execQueue;
-    /** Pointer into the exec queue to the command currently being executed. */
-    private int execIdx;
+    private List<CommandItem> runningCommands = new ArrayList<>();
+    /** All pending and running commands, keyed by hash; see CommandItem.hash(). */
+    private Map<String,CommandItem> pendingHashes = new HashMap<>();
+    /**
+     * Queue records of follow-on commands not yet committed to the queue database.
+     * Queue state changes are journalled and committed in groups, so that the completions and
+     * follow-ons of many commands are written in a single transaction; see commitJournal().
+     */
+    private List<Map<String,Object>> journalInserts = new ArrayList<>();
+    /** Updates to queue records not yet committed to the queue database, keyed by row ID. */
+    private Map<String,Map<String,Object>> journalUpdates = new LinkedHashMap<>();
+    /** Row IDs of completed commands not yet committed to the queue database. */
+    private Set<String> journalCompletions = new LinkedHashSet<>();
+    /** The number of journalled queue state changes which triggers a commit. */
+    private int groupCommitSize = 32;
+    /** The maximum time, in milliseconds, that journalled changes are held before being committed. */
+    private long groupCommitDelay = 100;
+    /** Flag indicating that a journal commit is scheduled. */
+    private boolean journalCommitScheduled;
+    /** A handler for scheduling delayed journal commits, wake ups and command timeouts. */
+    private Handler handler;
+    /** Retry policies, keyed by command name; override any policy declared by the command. */
+    private Map<String,RetryPolicy> retryPolicies = new HashMap<>();
+    /** The retry policy of commands without a policy; null means failed commands aren't retried. */
+    private RetryPolicy defaultRetryPolicy;
+    /**
+     * The time, in milliseconds, a pending command waits before being raised to the next priority
+     * class; 0 disables aging.
+     */
+    private long agingInterval = 60000;
+    /** Command timeouts in milliseconds, keyed by command name. */
+    private Map<String,Number> commandTimeouts = new HashMap<>();
+    /** Timeouts in milliseconds of commands in each lane, keyed by lane name. */
+    private Map<String,Number> laneTimeouts = new HashMap<>();
+    /** The timeout in milliseconds of commands without a command or lane timeout; 0 for none. */
+    private long defaultTimeout = 10 * 60 * 1000;
+    /** The time a wake up of the queue is scheduled for, to start delayed commands; or 0. */
+    private long wakeTime;
+    /** A runnable which wakes the queue to start delayed commands. */
+    private Runnable wake = new Runnable() {
+        @Override
+        public void run() {
+            execRunQueue.dispatch( new Runnable() {
+                @Override
+                public void run() {
+                    wakeTime = 0;
+                    dispatchCommands();
+                }
+            } );
+        }
+    };
+    /** The row ID to assign to the next follow-on command. */
+    private long nextRowID = 1;
+    /** The scheduler's metrics. */
+    private SchedulerMetrics metrics = new SchedulerMetrics();
+    /** The command execution lanes, keyed by name. */
+    private Map<String,ExecutionLane> lanes = new HashMap<>();
+    /**
+     * The maximum number of commands that can run concurrently in each lane, keyed by lane name.
+     * Lanes not listed here have a concurrency of 1.
+     */
+    private Map<String,Integer> laneConcurrency = new HashMap<>();
     /** Current batch number. */
     private int currentBatch = 0;
     /**
@@ -80,18 +202,45 @@ public class CommandScheduler implements Service {
     public CommandScheduler(Context androidContext) {
         // Instantiate run queue in non-started state.
         execRunQueue = new RunQueue( toString(), RunQueue.StartMode.Manual );
+        // Default lane concurrency.
+        laneConcurrency.put( ExecutionLane.Default, 1 );
+        laneConcurrency.put("network", 2 );
+        laneConcurrency.put("disk", 1 );
+        laneConcurrency.put("db", 1 );
         // Command database setup.
         db = new DB();
         db.setAndroidContext( androidContext );
         db.setName("com.innerfunction.semo.command-scheduler");
-        db.setVersion( 1 );
-        db.setTableSchema(
-            new Table("queue",
-                new Column("id",     "INTEGER PRIMARY KEY", "id"),
-                new Column("batch",  "INTEGER"),
-                new Column("command","TEXT"),
-                new Column("args",   "TEXT"),
-                new Column("status", "TEXT")));
+        db.setVersion( 5 );
+        // Comma separated row IDs of the commands a command depends on; see CommandItem.dependsOn().
+        Column deps = new Column("deps", "TEXT");
+        deps.setSince( 2 );
+        // Hash of an appended command's batch, name and args; null once the command is executed.
+        Column hash = new Column("hash", "TEXT");
+        hash.setSince( 3 );
+        // The number of failed attempts to execute a command, and the time of its next attempt.
+        Column attempts = new Column("attempts", "INTEGER");
+        attempts.setSince( 4 );
+        Column notBefore = new Column("notBefore", "INTEGER");
+        notBefore.setSince( 4 );
+        // The command's priority class; see CommandPriority.
+        Column priorityClass = new Column("priorityClass", "INTEGER");
+        priorityClass.setSince( 5 );
+        Table queue = new Table("queue",
+            new Column("id",     "INTEGER PRIMARY KEY", "id"),
+            new Column("batch",  "INTEGER"),
+            new Column("command","TEXT"),
+            new Column("args",   "TEXT"),
+            new Column("status", "TEXT"),
+            deps,
+            hash,
+            attempts,
+            notBefore,
+            priorityClass );
+        Map<String,List<String>> uniqueIndexes = new HashMap<>();
+        uniqueIndexes.put("queue_hash", Arrays.asList("hash") );
+        queue.setUniqueIndexes( uniqueIndexes );
+        db.setTableSchema( queue );
 
         // Standard built-in command mappings.
         commands = new HashMap<>();
@@ -134,49 +283,178 @@ public class CommandScheduler implements Service {
         }
     }
 
+    /**
+     * Set the maximum number of commands that can run concurrently in each named lane.
+     * Values are merged over the defaults, which are: default=1, network=2, disk=1, db=1.
+     */
+    public void setLaneConcurrency(Map<String,Number> concurrency) {
+        for( String name : concurrency.keySet() ) {
+            setLaneConcurrency( name, concurrency.get( name ).intValue() );
+        }
+    }
+
+    /** Set the maximum number of commands that can run concurrently in a lane. */
+    public void setLaneConcurrency(String name, int concurrency) {
+        synchronized( lanes ) {
+            laneConcurrency.put( name, concurrency );
+            ExecutionLane lane = lanes.get( name );
+            if( lane != null ) {
+                lane.setConcurrency( concurrency );
+            }
+        }
+    }
+
+    /**
+     * Set the number of queue state changes (command completions and follow-on commands) which
+     * are committed to the queue database in a single transaction.
+     * Use 1 to commit each change as it happens.
+     */
+    public void setGroupCommitSize(int size) {
+        this.groupCommitSize = Math.max( size, 1 );
+    }
+
+    /**
+     * Set the maximum time, in milliseconds, that queue state changes are held before being
+     * committed. Commands whose completion isn't committed are re-run after a process restart.
+     */
+    public void setGroupCommitDelay(long delay) {
+        this.groupCommitDelay = delay;
+    }
+
+    /**
+     * Set the retry policies of named commands.
+     * Policies set here take precedence over policies declared by the commands themselves (see
+     * RetryableCommand).
+     */
+    public void setRetryPolicies(Map<String,RetryPolicy> policies) {
+        retryPolicies.putAll( policies );
+    }
+
+    /** Set the retry policy of a named command. */
+    public void setRetryPolicy(String name, RetryPolicy policy) {
+        retryPolicies.put( name, policy );
+    }
+
+    /**
+     * Set the retry policy of commands which don't declare a policy.
+     * By default, such commands aren't retried.
+     */
+    public void setDefaultRetryPolicy(RetryPolicy policy) {
+        this.defaultRetryPolicy = policy;
+    }
+
+    /**
+     * Set the time, in milliseconds, a pending command waits before being raised to the next
+     * priority class. Defaults to 1 minute; use 0 to disable aging.
+     */
+    public void setAgingInterval(long interval) {
+        this.agingInterval = interval;
+    }
+
+    /**
+     * Set command timeouts, in milliseconds, keyed by command name.
+     * A command which doesn't complete within its timeout is cancelled and failed (and may be
+     * retried, according to its retry policy), so that queue processing continues.
+     */
+    public void setCommandTimeouts(Map<String,Number> timeouts) {
+        commandTimeouts.putAll( timeouts );
+    }
+
+    /**
+     * Set the timeouts, in milliseconds, of commands in each lane, keyed by lane name.
+     * Command timeouts take precedence over lane timeouts.
+     */
+    public void setLaneTimeouts(Map<String,Number> timeouts) {
+        laneTimeouts.putAll( timeouts );
+    }
+
+    /**
+     * Set the timeout, in milliseconds, of cancellable commands without a command or lane timeout.
+     * Defaults to 10 minutes; use 0 for no timeout. Commands which don't support cancellation (see
+     * CancellableCommand.isCancellable()) only time out if given a command or lane timeout.
+     */
+    public void setDefaultTimeout(long timeout) {
+        this.defaultTimeout = timeout;
+    }
+
     public void setDeleteExecutedQueueRecords(boolean delete) {
         this.deleteExecutedQueueRecords = delete;
     }
 
     /** Execute all commands currently on the queue. */
     public void executeQueue() {
-        if( execIdx > 0 ) {
-            // Commands currently being executed from queue, leave these to be completed.
-            return;
-        }
         execRunQueue.dispatch( new Runnable() {
             @Override
             public void run() {
-                // NOTE performQuery(String sql, Object... params);
-                ResultSet queueItems = db.performQuery("SELECT * FROM queue WHERE status='P' ORDER BY batch, id ASC");
-                execQueue = new ArrayList<>();
-                for( Map<String,?> queueItem : queueItems ) {
-                    execQueue.add( new CommandItem( queueItem ) );
+                if( !queueLoaded ) {
+                    loadQueue();
                 }
-                execIdx = 0;
-                executeNextCommand();
+                dispatchCommands();
             }
         } );
     }
 
-    /** Append a new command to the queue. */
-    public void appendCommand(final String name, final List args) {
+    /**
+     * Append a new command to the queue, in the normal priority class.
+     * The command isn't appended if the same command, with the same args, is already queued in
+     * the current batch.
+     */
+    public void appendCommand(String name, List args) {
+        appendCommand( name, args, CommandPriority.Normal );
+    }
+
+    /**
+     * Append a new command to the queue, in the specified priority class.
+     * The command isn't appended if the same command, with the same args, is already queued in
+     * the current batch; if the queued command is waiting in a lower priority class then it is
+     * moved to the specified class.
+     */
+    public void appendCommand(final String name, final List args, final CommandPriority priority) {
         Log.d( Tag, String.format("Appending %s %s", name, args ) );
         execRunQueue.dispatch( new Runnable() {
             public void run() {
                 String argsJSON = JSONValue.toJSONString( args );
-                Map values = new HashMap<>();
-                values.put("batch", currentBatch );
-                values.put("command", name );
-                values.put("args", argsJSON );
-                values.put("status", "P" );
                 // Only one pending command with the same name and args should exist for the same
-                // batch at any time, so only insert record if no matching record found.
-                // public int countInTable(String tableName, String where, Object... params)
-                String batch = String.valueOf( currentBatch );
-                int count = db.countInTable("queue","batch=? AND command=? AND args=? AND status=?", batch, name, argsJSON, "P" );
-                if( count == 0 ) {
-                    db.upsert("queue", values );
+                // batch at any time, so only queue the command if no matching command is found.
+                // The set of hashes of pending commands mirrors the queue table, so no db query
+                // is needed; the table's unique hash index is a backstop.
+                String hash = CommandItem.hash( currentBatch, name, argsJSON );
+                CommandItem queued = pendingHashes.get( hash );
+                if( queued != null ) {
+                    if( queued.execution == null && priority.ordinal() < queued.priorityClass.ordinal() ) {
+                        // Raise the priority of the queued command.
+                        queued.priorityClass = priority;
+                        pendingCommands.promote( queued, priority.ordinal() );
+                        journalUpdates.put( queued.rowID, m(
+                            kv("id",            queued.rowID ),
+                            kv("priorityClass", priority.ordinal() )
+                        ) );
+                        scheduleJournalCommit();
+                        dispatchCommands();
+                    }
+                    return;
+                }
+                CommandItem item = new CommandItem( name, args );
+                item.rowID = String.valueOf( nextRowID++ );
+                item.batch = currentBatch;
+                item.hash = hash;
+                item.priorityClass = priority;
+                Map<String, Object> values = m(
+                    kv("id",            item.rowID ),
+                    kv("batch",         currentBatch ),
+                    kv("command",       name ),
+                    kv("args",          argsJSON ),
+                    kv("status",        "P"),
+                    kv("hash",          hash ),
+                    kv("priorityClass", priority.ordinal() )
+                );
+                journalInserts.add( values );
+                addPendingCommand( item );
+                if( journalSize() >= groupCommitSize ) {
+                    commitJournal();
+                }
+                else {
+                    scheduleJournalCommit();
                 }
             }
         } );
@@ -191,21 +469,20 @@ public class CommandScheduler implements Service {
         }
     }
 
-    /** Interrupt normal processing and execute a new command immediately. */
+    /**
+     * Interrupt normal processing and execute a new command immediately.
+     * The command is started straight away in its lane, regardless of the lane's concurrency
+     * limit and of any batch ordering; queued commands continue to be processed alongside it.
+     */
     public Q.Promise<Boolean> execCommand(String command, String... args) {
         final CommandItem commandItem = new CommandItem( command, args );
         commandItem.promise = new Q.Promise<>();
+        commandItem.immediate = true;
+        commandItem.priorityClass = CommandPriority.Foreground;
+        commandItem.queuedTime = System.currentTimeMillis();
         Runnable execCommand = new Runnable() {
            public void run() {
-               // Replace the exec queue with a new queue containing just the new command; any
-               // other queued commands will be reloaded from the database afterwards (although
-               // note that this means that two or more asynchronous calls to this method can't be
-               // used reliably, as they may result in one call removing the other queued call;
-               // this shouldn't be a problem in practice though). Note that this part of the code
-               // is run on the queue, to avoid race conditions on the queue.
-               execQueue = Arrays.asList( commandItem );
-               execIdx = 0;
-               executeNextCommand();
+               startCommand( commandItem );
            }
         };
         // TODO: Review need for the following structure.
@@ -223,12 +500,24 @@ public class CommandScheduler implements Service {
 
     /** Purge the current execution queue. */
     public void purgeQueue() {
-        // Clear the execution queue, delete all queued commands.
-        execQueue.clear();
-        execIdx = 0;
-        currentBatch = 0;
         Runnable purge = new Runnable() {
             public void run() {
+                // Clear the pending commands, delete all queued commands. Note that any commands
+                // currently running are left to complete.
+                pendingCommands.clear();
+                pendingHashes.clear();
+                incompleteIDs.clear();
+                synchronized( incompleteCounts ) {
+                    incompleteCounts.clear();
+                    incompleteNameCounts.clear();
+                }
+                for( CommandItem item : runningCommands ) {
+                    item.purged = true;
+                    incompleteIDs.add( item.rowID );
+                    countIncomplete( item, 1 );
+                }
+                currentBatch = 0;
+                commitJournal();
                 db.beginTransaction();
                 try {
                     if( deleteExecutedQueueRecords ) {
@@ -243,6 +532,7 @@ public class CommandScheduler implements Service {
                     db.rollbackTransaction();
                     Log.e(Tag,"Purging queue", e );
                 }
+                updateLaneQueueDepths();
             }
         };
         // If already running on the exec queue the run the purge synchronously; else add to end of
@@ -257,10 +547,26 @@ public class CommandScheduler implements Service {
 
     /** Purge the current command batch. */
     public void purgeCurrentBatch() {
-        execQueue.clear();
-        execIdx = 0;
         Runnable purge = new Runnable() {
             public void run() {
+                Iterator<CommandItem> items = pendingCommands.iterator();
+                while( items.hasNext() ) {
+                    CommandItem item = items.next();
+                    if( item.batch == currentBatch ) {
+                        items.remove();
+                        pendingHashes.remove( item.hash );
+                        if( incompleteIDs.remove( item.rowID ) ) {
+                            countIncomplete( item, -1 );
+                        }
+                    }
+                }
+                for( CommandItem item : runningCommands ) {
+                    if( item.batch == currentBatch ) {
+                        item.purged = true;
+                        pendingHashes.remove( item.hash );
+                    }
+                }
+                commitJournal();
                 db.beginTransaction();
                 try {
                     String batch = String.valueOf( currentBatch );
@@ -276,6 +582,7 @@ public class CommandScheduler implements Service {
                     db.rollbackTransaction();
                     Log.e(Tag, "Purging batch", e );
                 }
+                updateLaneQueueDepths();
             }
         };
         // If already running on the exec queue the run the purge synchronously; else add to end of
@@ -288,128 +595,715 @@ public class CommandScheduler implements Service {
         }
     }
 
-    /** Execute the next command on the exec queue. */
-    private void executeNextCommand() {
-        execRunQueue.dispatch( new Runnable() {
-            @Override
+    /**
+     * Return a snapshot of the state of each execution lane, keyed by lane name.
+     * Can be called from any thread.
+     */
+    public Map<String,ExecutionLane.Statistics> getLaneStatistics() {
+        Map<String,ExecutionLane.Statistics> stats = new HashMap<>();
+        synchronized( lanes ) {
+            for( ExecutionLane lane : lanes.values() ) {
+                stats.put( lane.getName(), lane.getStatistics() );
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Test whether any commands with the specified name prefix are pending or running.
+     * The prefix is the part of the command name before the first dot; e.g. the commands
+     * registered by a content repository are prefixed with the repository's authority name.
+     * Can be called from any thread.
+     */
+    public boolean hasIncompleteCommands(String prefix) {
+        synchronized( incompleteCounts ) {
+            return incompleteCounts.containsKey( prefix );
+        }
+    }
+
+    /**
+     * Test whether any commands with the specified name are pending or running.
+     * Can be called from any thread.
+     */
+    public boolean hasIncompleteCommand(String name) {
+        synchronized( incompleteCounts ) {
+            return incompleteNameCounts.containsKey( name );
+        }
+    }
+
+    /** Return the scheduler's metrics. */
+    public SchedulerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Take a snapshot of the scheduler's state.
+     * The snapshot is taken on the scheduler's queue, so the promise is resolved asynchronously
+     * unless called from the queue.
+     */
+    public Q.Promise<SchedulerSnapshot> getSnapshot() {
+        final Q.Promise<SchedulerSnapshot> promise = new Q.Promise<>();
+        Runnable snapshot = new Runnable() {
             public void run() {
-                if( execQueue.size() == 0 ) {
-                    // Do nothing if nothing on the queue.
-                    execIdx = -1;
-                    return;
+                SchedulerSnapshot snapshot = new SchedulerSnapshot();
+                snapshot.currentBatch = currentBatch;
+                for( CommandItem item : pendingCommands ) {
+                    snapshot.pending.add( new SchedulerSnapshot.Item( item, false ) );
+                    Integer depth = snapshot.depthByBatch.get( item.batch );
+                    snapshot.depthByBatch.put( item.batch, depth == null ? 1 : depth + 1 );
                 }
-                if( execIdx > execQueue.size() - 1 ) {
-                    // If moved past the end of the queue then try reading a new list of commands
-                    // from the db.
-                    execIdx = -1;
-                    executeQueue();
-                    return;
+                for( CommandItem item : runningCommands ) {
+                    snapshot.running.add( new SchedulerSnapshot.Item( item, true ) );
                 }
-                final CommandItem commandItem = execQueue.get( execIdx );
-                // Iterate command pointer.
-                execIdx++;
-                // Find and execute the command.
-                Log.d( Tag, String.format("Executing %s %s", commandItem.name, commandItem.args ) );
-                final Command command = commands.get( commandItem.name );
-                if( command == null ) {
-                    Log.e( Tag, String.format("Command not found: %s", commandItem.name ) );
-                    purgeQueue();
-                    return;
+                snapshot.lanes = getLaneStatistics();
+                snapshot.commands = metrics.getCommandMetrics();
+                snapshot.startLatency = metrics.getStartLatency();
+                promise.resolve( snapshot );
+            }
+        };
+        if( execRunQueue.isRunningOnQueueThread() ) {
+            snapshot.run();
+        }
+        else {
+            execRunQueue.dispatch( snapshot );
+        }
+        return promise;
+    }
+
+    /**
+     * Handle a message sent to the scheduler.
+     * Supports a 'diagnostics' message, which takes a snapshot of the scheduler's state; the
+     * snapshot is logged, and is passed to the message sender if it is a snapshot receiver.
+     */
+    @Override
+    public boolean receiveMessage(Message message, final Object sender) {
+        if( message.hasName("diagnostics") ) {
+            getSnapshot().then( new Q.Promise.Callback<SchedulerSnapshot, SchedulerSnapshot>() {
+                @Override
+                public SchedulerSnapshot result(SchedulerSnapshot snapshot) {
+                    Log.i( Tag, String.format("Diagnostics: %s", snapshot.toJSONString() ) );
+                    if( sender instanceof SchedulerSnapshot.Receiver ) {
+                        ((SchedulerSnapshot.Receiver)sender).receiveSchedulerSnapshot( snapshot );
+                    }
+                    return snapshot;
                 }
-                command.execute( commandItem.name, commandItem.args )
-                    .then( new Q.Promise.Callback<CommandList, Object>() {
-                        public Object result(final CommandList commands) {
-                            execRunQueue.dispatch( new Runnable() {
-                                public void run() {
-                                    // Queue any new commands, delete current command from db.
-                                    db.beginTransaction();
-                                    try {
-                                        for( CommandItem command : commands ) {
-                                            // Check for system commands.
-                                            if( "control.purge-queue".equals( command.name ) ) {
-                                                purgeQueue();
-                                                continue;
-                                            }
-                                            if( "control.purge-current-batch".equals( command.name ) ) {
-                                                purgeCurrentBatch();
-                                                continue;
-                                            }
-                                            int batch = currentBatch;
-                                            if( command.priority != null ) {
-                                                batch += command.priority;
-                                                // Negative priorities can place new commands at the head
-                                                // of the queue; reset the exec queue to force a db read,
-                                                // so that these commands are read into the head of the
-                                                // exec queue.
-                                                if( batch < currentBatch ) {
-                                                    execQueue.clear();
-                                                }
-                                            }
-                                            Log.d( Tag, String.format("Appending %s %s", command.name, command.args ) );
-                                            Map<String, Object> values = m(
-                                                kv("batch",     batch ),
-                                                kv("command",   command.name ),
-                                                kv("args",      JSONValue.toJSONString( command.args ) ),
-                                                kv("status",    "P")
-                                            );
-                                            db.insert("queue", values );
-                                        }
-                                        db.commitTransaction();
-                                        continueQueueProcessingAfterCommand( commandItem.rowID );
-                                        // Resolve command item promise, if any.
-                                        if( commandItem.promise != null ) {
-                                            commandItem.promise.resolve( true );
-                                        }
-                                    }
-                                    catch(Exception e) {
-                                        db.rollbackTransaction();
-                                        throw e;
-                                    }
-                                }
-                            } );
-                            return null;
-                        }
-                    } )
-                    .error( new Q.Promise.ErrorCallback() {
-                        public void error(Exception e) {
-                            Log.e( Tag, String.format("Error executing command %s %s", commandItem.name, commandItem.args ), e );
-                            // TODO: Review whether queue should be purged or not. Removed for now.
-                            // Commands should detect errors caused by previous command failures and
-                            // deal with accordingly.
-                            // purgeQueue();
-                            continueQueueProcessingAfterCommand( commandItem.rowID );
-                            // Reject the command item promise, if any.
-                            if( commandItem.promise != null ) {
-                                commandItem.promise.reject( e );
-                            }
+            } );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Load the pending commands from the queue database.
+     * Only done once, at startup; after this the in-memory queue is authoritative. Must be called
+     * on the exec queue.
+     */
+    private void loadQueue() {
+        List<QueueRow> queueRows = db.queryRows( QueueRow.RowSchema, "status='P'");
+        for( QueueRow queueRow : queueRows ) {
+            CommandItem item = new CommandItem( queueRow );
+            addPendingCommand( item );
+            pendingHashes.put( item.hash, item );
+        }
+        nextRowID = Math.max( nextRowID, db.performLongQuery("SELECT MAX(id) FROM queue") + 1 );
+        queueLoaded = true;
+    }
+
+    /**
+     * Start as many pending commands as the execution lanes allow.
+     * Commands in a batch are only started once all commands in earlier batches have completed;
+     * within a batch, each lane starts its commands in queue order, and no more than the lane's
+     * concurrency limit are run at the same time. Commands with declared dependencies are started
+     * once all their dependencies have completed, independently of queue order. Must be called
+     * on the exec queue.
+     */
+    private void dispatchCommands() {
+        if( pendingCommands.isEmpty() ) {
+            return;
+        }
+        // Find the lowest batch number with incomplete commands.
+        int barrier = pendingCommands.getMinBatch();
+        for( CommandItem item : runningCommands ) {
+            if( !item.immediate ) {
+                barrier = Math.min( barrier, item.batch );
+            }
+        }
+        // Lanes without capacity to start another command.
+        Set<String> blockedLanes = new HashSet<>();
+        int laneCount;
+        synchronized( lanes ) {
+            laneCount = lanes.size();
+        }
+        // The time the next delayed command is due.
+        long now = System.currentTimeMillis(), nextDueTime = Long.MAX_VALUE;
+        // Raise the priority of commands which have waited too long.
+        pendingCommands.age( now, agingInterval );
+        // Commands are visited in priority class order, and then in queue order.
+        Iterator<CommandItem> items = pendingCommands.iterator();
+        while( items.hasNext() ) {
+            CommandItem item = items.next();
+            if( item.batch > barrier ) {
+                continue;
+            }
+            if( item.notBefore > now ) {
+                // Command delayed (e.g. waiting to be retried); it doesn't block other commands
+                // in its lane.
+                nextDueTime = Math.min( nextDueTime, item.notBefore );
+                continue;
+            }
+            if( blockedLanes.contains( item.lane ) ) {
+                continue;
+            }
+            ExecutionLane lane = getLane( item.lane );
+            if( !lane.hasCapacity() ) {
+                blockedLanes.add( item.lane );
+                if( blockedLanes.size() >= laneCount ) {
+                    // No lane can start another command.
+                    break;
+                }
+                continue;
+            }
+            if( item.dependencyIDs != null && !Collections.disjoint( item.dependencyIDs, incompleteIDs ) ) {
+                // Command scheduled by its dependencies; it neither waits for nor blocks other
+                // commands in its lane.
+                continue;
+            }
+            items.remove();
+            lane.didDequeue();
+            if( !startCommand( item ) ) {
+                // Queue purged.
+                return;
+            }
+        }
+        if( nextDueTime < Long.MAX_VALUE ) {
+            scheduleWake( nextDueTime );
+        }
+    }
+
+    /** Schedule a wake up of the queue at the specified time. Must be called on the exec queue. */
+    private void scheduleWake(long time) {
+        if( wakeTime > 0 && wakeTime <= time ) {
+            // Earlier wake up already scheduled.
+            return;
+        }
+        getHandler().removeCallbacks( wake );
+        wakeTime = time;
+        getHandler().postDelayed( wake, Math.max( time - System.currentTimeMillis(), 0 ) );
+    }
+
+    /** Update each lane's count of queued commands. Must be called on the exec queue. */
+    private void updateLaneQueueDepths() {
+        Map<String,Integer> depths = new HashMap<>();
+        for( CommandItem item : pendingCommands ) {
+            Integer depth = depths.get( item.lane );
+            depths.put( item.lane, depth == null ? 1 : depth + 1 );
+        }
+        synchronized( lanes ) {
+            for( ExecutionLane lane : lanes.values() ) {
+                Integer depth = depths.get( lane.getName() );
+                lane.setQueued( depth == null ? 0 : depth );
+            }
+        }
+    }
+
+    /**
+     * Start executing a command in its lane. Must be called on the exec queue.
+     * @return false if the command wasn't found, in which case the queue is purged.
+     */
+    private boolean startCommand(final CommandItem commandItem) {
+        // Find the command.
+        final Command command = commands.get( commandItem.name );
+        if( command == null ) {
+            Log.e( Tag, String.format("Command not found: %s", commandItem.name ) );
+            if( commandItem.promise != null ) {
+                commandItem.promise.reject( String.format("Command not found: %s", commandItem.name ) );
+            }
+            purgeQueue();
+            return false;
+        }
+        if( commandItem.lane == null ) {
+            commandItem.lane = getLaneName( commandItem.name );
+        }
+        final ExecutionLane lane = getLane( commandItem.lane );
+        final CancellationToken token = new CancellationToken();
+        commandItem.execution = token;
+        commandItem.startTime = lane.didStart();
+        metrics.didStart( commandItem.name, commandItem.startTime - commandItem.queuedTime );
+        runningCommands.add( commandItem );
+        if( commandItem.rowID == null ) {
+            // Commands executed through execCommand() aren't queued, so are counted once running.
+            countIncomplete( commandItem, 1 );
+        }
+        // Start the command's watchdog.
+        long timeout = getTimeout( commandItem, command );
+        if( timeout > 0 ) {
+            final long commandTimeout = timeout;
+            commandItem.watchdog = new Runnable() {
+                @Override
+                public void run() {
+                    execRunQueue.dispatch( new Runnable() {
+                        public void run() {
+                            commandTimedOut( commandItem, token, commandTimeout );
                         }
                     } );
+                }
+            };
+            getHandler().postDelayed( commandItem.watchdog, timeout );
+        }
+        Log.d( Tag, String.format("Executing %s %s in lane %s", commandItem.name, commandItem.args, lane.getName() ) );
+        laneExecutor.execute( new Runnable() {
+            @Override
+            public void run() {
+                Q.Promise<CommandList> result;
+                try {
+                    if( command instanceof CancellableCommand ) {
+                        result = ((CancellableCommand)command).execute( commandItem.name, commandItem.args, token );
+                    }
+                    else {
+                        result = command.execute( commandItem.name, commandItem.args );
+                    }
+                }
+                catch(Exception e) {
+                    result = Q.reject( e );
+                }
+                result.then( new Q.Promise.Callback<CommandList, Object>() {
+                    public Object result(final CommandList commands) {
+                        execRunQueue.dispatch( new Runnable() {
+                            public void run() {
+                                commandCompleted( commandItem, token, commands );
+                            }
+                        } );
+                        return null;
+                    }
+                } )
+                .error( new Q.Promise.ErrorCallback() {
+                    public void error(final Exception e) {
+                        execRunQueue.dispatch( new Runnable() {
+                            public void run() {
+                                commandFailed( commandItem, token, e );
+                            }
+                        } );
+                    }
+                } );
             }
         } );
+        return true;
+    }
+
+    /**
+     * Settle a command execution; i.e. mark it as no longer running.
+     * Must be called on the exec queue.
+     * @return false if the execution has already been settled - e.g. because it timed out - in
+     * which case its result should be ignored.
+     */
+    private boolean settleCommand(CommandItem commandItem, CancellationToken token) {
+        if( commandItem.execution != token ) {
+            return false;
+        }
+        commandItem.execution = null;
+        if( commandItem.watchdog != null ) {
+            getHandler().removeCallbacks( commandItem.watchdog );
+            commandItem.watchdog = null;
+        }
+        runningCommands.remove( commandItem );
+        if( commandItem.rowID == null ) {
+            countIncomplete( commandItem, -1 );
+        }
+        getLane( commandItem.lane ).didFinish( commandItem.startTime );
+        return true;
+    }
+
+    /**
+     * Process a command timeout. Must be called on the exec queue.
+     * The command's cancellation token is cancelled and the command is failed, so that queue
+     * processing can continue; any result the command produces afterwards is ignored.
+     */
+    private void commandTimedOut(CommandItem commandItem, CancellationToken token, long timeout) {
+        if( commandItem.execution != token ) {
+            // Command already settled.
+            return;
+        }
+        String reason = String.format("Command %s %s timed out after %d ms", commandItem.name, commandItem.args, timeout );
+        getLane( commandItem.lane ).didTimeout();
+        metrics.didTimeout( commandItem.name );
+        token.cancel( reason );
+        commandFailed( commandItem, token, new TimeoutException( reason ) );
+    }
+
+    /** Process the successful completion of a command. Must be called on the exec queue. */
+    private void commandCompleted(CommandItem commandItem, CancellationToken token, CommandList commands) {
+        if( !settleCommand( commandItem, token ) ) {
+            // Late result of a timed out command.
+            Log.w( Tag, String.format("Ignoring result of timed out command %s %s", commandItem.name, commandItem.args ) );
+            return;
+        }
+        metrics.didComplete( commandItem.name, System.currentTimeMillis() - commandItem.startTime );
+        // Journal any new commands and add them to the pending commands.
+        // The row IDs and batches of the queued commands; used to resolve dependencies.
+        Map<CommandItem,String> queuedIDs = new IdentityHashMap<>();
+        Map<CommandItem,Integer> queuedBatches = new IdentityHashMap<>();
+        // The row IDs of the queued commands which no later queued command depends on yet.
+        List<String> unordered = new ArrayList<>();
+        int unorderedBatch = currentBatch;
+        for( CommandItem command : commands ) {
+            // Check for system commands.
+            if( "control.purge-queue".equals( command.name ) ) {
+                purgeQueue();
+                continue;
+            }
+            if( "control.purge-current-batch".equals( command.name ) ) {
+                purgeCurrentBatch();
+                continue;
+            }
+            int batch = currentBatch;
+            Log.d( Tag, String.format("Appending %s %s", command.name, command.args ) );
+            CommandItem item = new CommandItem( command.name, command.args );
+            item.rowID = String.valueOf( nextRowID++ );
+            item.batch = batch;
+            String argsJSON = JSONValue.toJSONString( command.args );
+            // Follow-on commands aren't deduplicated, so their hash isn't written to the table's
+            // unique index; but they are included in the pending hashes, so that appended
+            // duplicates of them are detected.
+            item.hash = CommandItem.hash( batch, command.name, argsJSON );
+            pendingHashes.put( item.hash, item );
+            // Follow-on commands inherit the priority class of the command which queued them.
+            item.priorityClass = command.priorityClass != null ? command.priorityClass : commandItem.priorityClass;
+            if( command.priorityClass == null && command.priority != null && command.priority != 0 ) {
+                // Map deprecated execution priorities onto priority classes.
+                item.priorityClass = command.priority < 0 ? CommandPriority.Foreground : CommandPriority.Background;
+            }
+            Map<String, Object> values = m(
+                kv("id",            item.rowID ),
+                kv("batch",         batch ),
+                kv("command",       command.name ),
+                kv("args",          argsJSON ),
+                kv("status",        "P"),
+                kv("priorityClass", item.priorityClass.ordinal() )
+            );
+            String deps = null;
+            if( command.dependencies != null ) {
+                deps = getDependencyIDs( command, batch, queuedIDs, queuedBatches );
+            }
+            else if( unorderedBatch == batch && unordered.size() > 0 ) {
+                // Follow-on commands without declared dependencies run in list order, whatever
+                // their lanes; so each depends on the commands before it.
+                deps = TextUtils.join(",", unordered );
+                unordered.clear();
+            }
+            if( unorderedBatch != batch ) {
+                unordered.clear();
+                unorderedBatch = batch;
+            }
+            unordered.add( item.rowID );
+            if( deps != null ) {
+                values.put("deps", deps );
+                item.dependencyIDs = new HashSet<>();
+                if( deps.length() > 0 ) {
+                    item.dependencyIDs.addAll( Arrays.asList( deps.split(",") ) );
+                }
+            }
+            journalInserts.add( values );
+            addPendingCommand( item );
+            queuedIDs.put( command, item.rowID );
+            queuedBatches.put( command, batch );
+        }
+        continueQueueProcessingAfterCommand( commandItem );
+        // Resolve command item promise, if any.
+        if( commandItem.promise != null ) {
+            commandItem.promise.resolve( true );
+        }
+    }
+
+    /** Process the failure of a command. Must be called on the exec queue. */
+    private void commandFailed(CommandItem commandItem, CancellationToken token, Exception e) {
+        if( !settleCommand( commandItem, token ) ) {
+            // Late error of a timed out command.
+            return;
+        }
+        long executionTime = System.currentTimeMillis() - commandItem.startTime;
+        // Check whether to retry the command. Note that only queued commands are retried, and not
+        // once their queue record has been purged.
+        RetryPolicy retryPolicy = getRetryPolicy( commandItem.name );
+        if( commandItem.rowID != null && !commandItem.purged && retryPolicy != null ) {
+            int attempts = commandItem.attempts + 1;
+            long delay = retryPolicy.getRetryDelay( attempts, e );
+            if( delay > -1 ) {
+                Log.w( Tag, String.format("Error executing command %s %s, retrying in %d ms",
+                    commandItem.name, commandItem.args, delay ), e );
+                metrics.didRetry( commandItem.name, executionTime );
+                commandItem.attempts = attempts;
+                commandItem.notBefore = System.currentTimeMillis() + delay;
+                journalUpdates.put( commandItem.rowID, m(
+                    kv("id",        commandItem.rowID ),
+                    kv("attempts",  commandItem.attempts ),
+                    kv("notBefore", commandItem.notBefore )
+                ) );
+                addPendingCommand( commandItem );
+                dispatchCommands();
+                scheduleJournalCommit();
+                return;
+            }
+        }
+        Log.e( Tag, String.format("Error executing command %s %s", commandItem.name, commandItem.args ), e );
+        metrics.didFail( commandItem.name, executionTime );
+        // TODO: Review whether queue should be purged or not. Removed for now.
+        // Commands should detect errors caused by previous command failures and
+        // deal with accordingly.
+        // purgeQueue();
+        continueQueueProcessingAfterCommand( commandItem );
+        // Reject the command item promise, if any.
+        if( commandItem.promise != null ) {
+            commandItem.promise.reject( e );
+        }
     }
 
     /** Continue queue processing after execution a command. */
-    private void continueQueueProcessingAfterCommand(String rowID) {
+    private void continueQueueProcessingAfterCommand(CommandItem commandItem) {
+        // Commands executed through execCommand() have no queue record.
+        if( commandItem.rowID != null ) {
+            // The queue records of purged commands were removed by the purge.
+            if( !commandItem.purged ) {
+                journalCompletions.add( commandItem.rowID );
+            }
+            pendingHashes.remove( commandItem.hash );
+            if( incompleteIDs.remove( commandItem.rowID ) ) {
+                countIncomplete( commandItem, -1 );
+            }
+        }
+        // Continue with the next queued commands.
+        dispatchCommands();
+        if( journalSize() >= groupCommitSize || (pendingCommands.isEmpty() && runningCommands.isEmpty()) ) {
+            // Group is full, or the scheduler is idle and no more changes are expected soon.
+            commitJournal();
+        }
+        else {
+            scheduleJournalCommit();
+        }
+    }
+
+    /** Add a command to the pending commands. Must be called on the exec queue. */
+    private void addPendingCommand(CommandItem item) {
+        item.lane = getLaneName( item.name );
+        if( item.priorityClass == null ) {
+            item.priorityClass = CommandPriority.Normal;
+        }
+        item.effectiveClass = item.priorityClass.ordinal();
+        item.queuedTime = Math.max( System.currentTimeMillis(), item.notBefore );
+        pendingCommands.add( item );
+        if( incompleteIDs.add( item.rowID ) ) {
+            countIncomplete( item, 1 );
+        }
+        getLane( item.lane ).didQueue();
+    }
+
+    /** Update the counts of incomplete commands with the same name and name prefix as a command. */
+    private void countIncomplete(CommandItem item, int delta) {
+        int idx = item.name.indexOf('.');
+        String prefix = idx > -1 ? item.name.substring( 0, idx ) : item.name;
+        synchronized( incompleteCounts ) {
+            addCount( incompleteCounts, prefix, delta );
+            addCount( incompleteNameCounts, item.name, delta );
+        }
+    }
+
+    /** Add to a count in a map of counts; counts which fall to zero are removed. */
+    private static void addCount(Map<String,Integer> counts, String key, int delta) {
+        Integer count = counts.get( key );
+        int newCount = (count != null ? count : 0) + delta;
+        if( newCount > 0 ) {
+            counts.put( key, newCount );
+        }
+        else {
+            counts.remove( key );
+        }
+    }
+
+    /** Return the number of uncommitted queue state changes. */
+    private int journalSize() {
+        return journalInserts.size() + journalUpdates.size() + journalCompletions.size();
+    }
+
+    /** Schedule a commit of the journal after the group commit delay. */
+    private void scheduleJournalCommit() {
+        if( journalCommitScheduled ) {
+            return;
+        }
+        journalCommitScheduled = getHandler().postDelayed( new Runnable() {
+            @Override
+            public void run() {
+                execRunQueue.dispatch( new Runnable() {
+                    @Override
+                    public void run() {
+                        journalCommitScheduled = false;
+                        commitJournal();
+                    }
+                } );
+            }
+        }, groupCommitDelay );
+    }
+
+    /**
+     * Commit all journalled queue state changes to the queue database in a single transaction.
+     * Completions are applied first, so that the hashes of completed commands are cleared before
+     * any new commands with the same hash are inserted. Commands queued and completed within the
+     * same journal are written in their completed state. Must be called on the exec queue.
+     * @return true if the journal was committed; false if the commit failed, in which case the
+     * journal is kept and the commit is retried later.
+     */
+    private boolean commitJournal() {
+        if( journalSize() == 0 ) {
+            return true;
+        }
+        boolean ok = true;
         db.beginTransaction();
         try {
-            // Delete the command record from the queue.
-            if( deleteExecutedQueueRecords ) {
-                db.delete( "queue", rowID );
+            // The row IDs of commands completed before their insert was committed.
+            Set<String> insertedCompletions = new HashSet<>();
+            for( Map<String,Object> values : journalInserts ) {
+                String rowID = (String)values.get("id");
+                if( journalCompletions.contains( rowID ) ) {
+                    insertedCompletions.add( rowID );
+                }
             }
-            else {
-                Map<String, Object> values = new HashMap<>();
-                values.put( "id", rowID );
-                values.put( "status", "X" );
-                db.update( "queue", values );
+            for( String rowID : journalCompletions ) {
+                if( insertedCompletions.contains( rowID ) ) {
+                    continue;
+                }
+                // Delete the command record from the queue.
+                if( deleteExecutedQueueRecords ) {
+                    if( db.deleteWhere("queue", "id=?", rowID ) < 1 ) {
+                        Log.w( Tag, String.format("Failed to delete queue record %s", rowID ) );
+                        ok = false;
+                    }
+                }
+                else {
+                    // Clear the hash, so that the command can be queued again.
+                    ok &= db.performUpdate("UPDATE queue SET status='X', hash=NULL WHERE id=?", rowID );
+                }
+            }
+            for( Map<String,Object> values : journalInserts ) {
+                if( insertedCompletions.contains( values.get("id") ) ) {
+                    if( deleteExecutedQueueRecords ) {
+                        continue;
+                    }
+                    values = new HashMap<>( values );
+                    values.put("status", "X");
+                    values.remove("hash");
+                }
+                ok &= db.insert("queue", values );
+            }
+            for( Map<String,Object> values : journalUpdates.values() ) {
+                // Updates to completed commands are superseded by their completion.
+                if( journalCompletions.contains( values.get("id") ) ) {
+                    continue;
+                }
+                ok &= db.update("queue", values );
             }
-            db.commitTransaction();
-            // Continue to next queued command.
-            executeNextCommand();
         }
         catch(Exception e) {
-            Log.e(Tag, "Continuing queue processing", e );
+            Log.e(Tag, "Committing queue journal", e );
+            ok = false;
+        }
+        if( ok ) {
+            ok = db.commitTransaction();
+        }
+        else {
             db.rollbackTransaction();
         }
+        if( ok ) {
+            journalInserts.clear();
+            journalUpdates.clear();
+            journalCompletions.clear();
+        }
+        else {
+            Log.w(Tag, "Failed to commit queue journal; will retry");
+            scheduleJournalCommit();
+        }
+        return ok;
+    }
+
+    /**
+     * Resolve a follow-on command's dependencies to a comma separated list of queue row IDs.
+     * @param command       The follow-on command.
+     * @param batch         The batch the command is being queued in.
+     * @param queuedIDs     The row IDs of the follow-on commands already queued.
+     * @param queuedBatches The batches of the follow-on commands already queued.
+     */
+    private String getDependencyIDs(CommandItem command, int batch, Map<CommandItem,String> queuedIDs, Map<CommandItem,Integer> queuedBatches) {
+        StringBuilder deps = new StringBuilder();
+        for( CommandItem dependency : command.dependencies ) {
+            String id = queuedIDs.get( dependency );
+            Integer dependencyBatch = queuedBatches.get( dependency );
+            if( id == null || dependencyBatch != batch ) {
+                // Dependencies on commands queued later or in another batch could never be
+                // satisfied in batch order, so are ignored.
+                Log.w( Tag, String.format("Ignoring dependency of %s on %s", command.name, dependency.name ) );
+                continue;
+            }
+            if( deps.length() > 0 ) {
+                deps.append(',');
+            }
+            deps.append( id );
+        }
+        return deps.toString();
+    }
+
+    /** Return the handler used to schedule timed events. */
+    private Handler getHandler() {
+        if( handler == null ) {
+            handler = new Handler( Looper.getMainLooper() );
+        }
+        return handler;
+    }
+
+    /** Return a command's timeout, in milliseconds; or 0 if the command has no timeout. */
+    private long getTimeout(CommandItem commandItem, Command command) {
+        Number timeout = commandTimeouts.get( commandItem.name );
+        if( timeout == null ) {
+            timeout = laneTimeouts.get( commandItem.lane );
+        }
+        if( timeout != null ) {
+            return timeout.longValue();
+        }
+        boolean cancellable = command instanceof CancellableCommand && ((CancellableCommand)command).isCancellable( commandItem.name );
+        return cancellable ? defaultTimeout : 0;
+    }
+
+    /** Return the retry policy of a named command; or null if the command isn't retried. */
+    private RetryPolicy getRetryPolicy(String name) {
+        RetryPolicy policy = retryPolicies.get( name );
+        if( policy == null ) {
+            Command command = commands.get( name );
+            if( command instanceof RetryableCommand ) {
+                policy = ((RetryableCommand)command).getRetryPolicy( name );
+            }
+        }
+        return policy != null ? policy : defaultRetryPolicy;
+    }
+
+    /** Return the name of the lane a command runs in. */
+    private String getLaneName(String name) {
+        Command command = commands.get( name );
+        if( command instanceof LanedCommand ) {
+            String lane = ((LanedCommand)command).getLane( name );
+            if( lane != null ) {
+                return lane;
+            }
+        }
+        return ExecutionLane.Default;
+    }
+
+    /** Return the named execution lane, creating it if it doesn't exist yet. */
+    private ExecutionLane getLane(String name) {
+        synchronized( lanes ) {
+            ExecutionLane lane = lanes.get( name );
+            if( lane == null ) {
+                Integer concurrency = laneConcurrency.get( name );
+                lane = new ExecutionLane( name, concurrency != null ? concurrency : 1 );
+                lanes.put( name, lane );
+            }
+            return lane;
+        }
     }
 
     /**
@@ -459,12 +1353,35 @@ public class CommandScheduler implements Service {
     public void startService() {
         // Start the database.
         db.startService();
+        // Create the command executor; concurrency is limited per lane by the scheduler.
+        laneExecutor = Executors.newCachedThreadPool();
         // Start the run queue.
         execRunQueue.start();
     }
 
     @Override
     public void stopService() {
-        db.stopService();
+        if( laneExecutor != null ) {
+            laneExecutor.shutdown();
+        }
+        Runnable stop = new Runnable() {
+            public void run() {
+                // Cancel running commands.
+                for( CommandItem item : runningCommands ) {
+                    if( item.execution != null && item.execution.cancel("Command scheduler stopped") ) {
+                        getLane( item.lane ).didCancel();
+                    }
+                }
+                commitJournal();
+                db.stopService();
+            }
+        };
+        // Commit any journalled changes on the exec queue before stopping the database.
+        if( execRunQueue.isRunningOnQueueThread() ) {
+            stop.run();
+        }
+        else {
+            execRunQueue.dispatch( stop );
+        }
     }
 }
@@ -0,0 +1,167 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+/**
+ * A command scheduler execution lane.
+ * Each lane runs up to a configured number of commands concurrently, and tracks its queue depth
+ * and utilisation. Lanes are normally used to group commands by the resource they use - e.g.
+ * network, disk or db - so that a long running command in one lane doesn't block the commands
+ * in other lanes.
+ */
+public class ExecutionLane {
+
+    /** The name of the default lane. */
+    public static final String Default = "default";
+
+    /** A snapshot of a lane's state. */
+    public static class Statistics {
+        /** The lane name. */
+        public String name;
+        /** The maximum number of commands run concurrently in the lane. */
+        public int concurrency;
+        /** The number of commands currently running. */
+        public int running;
+        /** The number of commands queued for the lane. */
+        public int queued;
+        /** The number of commands started since the lane was created. */
+        public long started;
+        /** The number of commands completed since the lane was created. */
+        public long completed;
+        /** The number of commands which timed out. */
+        public long timedOut;
+        /** The number of running commands cancelled other than by a timeout. */
+        public long cancelled;
+        /**
+         * The lane's utilisation since it was created; the proportion of the lane's capacity
+         * (i.e. elapsed time x concurrency) spent running commands, in the range 0 - 1.
+         */
+        public double utilisation;
+
+        @Override
+        public String toString() {
+            return String.format("%s: concurrency=%d running=%d queued=%d started=%d completed=%d timedOut=%d cancelled=%d utilisation=%.2f",
+                name, concurrency, running, queued, started, completed, timedOut, cancelled, utilisation );
+        }
+    }
+
+    /** The lane name. */
+    private final String name;
+    /** The maximum number of commands run concurrently. */
+    private int concurrency;
+    /** The number of commands currently running. */
+    private int running;
+    /** The number of commands queued for the lane. */
+    private int queued;
+    /** The number of commands started. */
+    private long started;
+    /** The number of commands completed. */
+    private long completed;
+    /** The number of commands which timed out. */
+    private long timedOut;
+    /** The number of running commands cancelled other than by a timeout. */
+    private long cancelled;
+    /** The total run time of completed commands, in milliseconds. */
+    private long busyTime;
+    /** The sum of the start times of running commands; used to calculate in-progress run time. */
+    private long runningStartTimes;
+    /** The time the lane was created. */
+    private final long createTime = System.currentTimeMillis();
+
+    ExecutionLane(String name, int concurrency) {
+        this.name = name;
+        this.concurrency = Math.max( concurrency, 1 );
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    synchronized void setConcurrency(int concurrency) {
+        this.concurrency = Math.max( concurrency, 1 );
+    }
+
+    /** Test whether the lane can start another command. */
+    synchronized boolean hasCapacity() {
+        return running < concurrency;
+    }
+
+    /** Set the number of commands queued for the lane. */
+    synchronized void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+    /** Record a command being queued for the lane. */
+    synchronized void didQueue() {
+        queued++;
+    }
+
+    /** Record a queued command being removed from the lane's queue. */
+    synchronized void didDequeue() {
+        queued--;
+    }
+
+    /**
+     * Record the start of a command.
+     * @return The command's start time.
+     */
+    synchronized long didStart() {
+        long now = System.currentTimeMillis();
+        running++;
+        started++;
+        runningStartTimes += now;
+        return now;
+    }
+
+    /**
+     * Record the completion of a command.
+     * @param startTime The command's start time, as returned by didStart().
+     */
+    synchronized void didFinish(long startTime) {
+        running--;
+        completed++;
+        runningStartTimes -= startTime;
+        busyTime += System.currentTimeMillis() - startTime;
+    }
+
+    /** Record a command timeout. */
+    synchronized void didTimeout() {
+        timedOut++;
+    }
+
+    /** Record the cancellation of a running command. */
+    synchronized void didCancel() {
+        cancelled++;
+    }
+
+    /** Return a snapshot of the lane's state. */
+    public synchronized Statistics getStatistics() {
+        long now = System.currentTimeMillis();
+        Statistics stats = new Statistics();
+        stats.name = name;
+        stats.concurrency = concurrency;
+        stats.running = running;
+        stats.queued = queued;
+        stats.started = started;
+        stats.completed = completed;
+        stats.timedOut = timedOut;
+        stats.cancelled = cancelled;
+        long elapsed = now - createTime;
+        if( elapsed > 0 ) {
+            long busy = busyTime + (running * now - runningStartTimes);
+            stats.utilisation = Math.min( (double)busy / (elapsed * concurrency), 1.0 );
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A histogram of time values, in milliseconds.
+ * Values are counted in fixed, roughly exponential buckets, so recording a value takes constant
+ * time and space; percentiles are approximated by the upper bound of the bucket they fall in.
+ */
+public class Histogram {
+
+    /** The upper bounds of the histogram buckets, in milliseconds. */
+    static final long[] Bounds = new long[]{
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000
+    };
+
+    /** The bucket counts; the last bucket counts values above the largest bound. */
+    private long[] counts = new long[Bounds.length + 1];
+    /** The number of recorded values. */
+    private long count;
+    /** The sum of recorded values. */
+    private long sum;
+    /** The largest recorded value. */
+    private long max;
+
+    /** Record a value. */
+    synchronized void record(long value) {
+        int idx = 0;
+        while( idx < Bounds.length && value > Bounds[idx] ) {
+            idx++;
+        }
+        counts[idx]++;
+        count++;
+        sum += value;
+        max = Math.max( max, value );
+    }
+
+    /** Return a copy of the histogram. */
+    public synchronized Histogram copy() {
+        Histogram copy = new Histogram();
+        copy.counts = counts.clone();
+        copy.count = count;
+        copy.sum = sum;
+        copy.max = max;
+        return copy;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Return an approximate percentile of the recorded values.
+     * @param percentile A percentile, 0 - 100.
+     * @return The upper bound of the bucket containing the percentile; or the largest recorded
+     * value, if smaller.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if( count == 0 ) {
+            return 0;
+        }
+        long rank = (long)Math.ceil( count * percentile / 100.0 );
+        long seen = 0;
+        for( int idx = 0; idx < Bounds.length; idx++ ) {
+            seen += counts[idx];
+            if( seen >= rank ) {
+                return Math.min( Bounds[idx], max );
+            }
+        }
+        return max;
+    }
+
+    /** Return a summary of the histogram as a JSON compatible map. */
+    public synchronized Map<String,Object> toMap() {
+        Map<String,Object> result = new LinkedHashMap<>();
+        result.put("count", count );
+        result.put("mean", getMean() );
+        result.put("p50", getPercentile( 50 ) );
+        result.put("p90", getPercentile( 90 ) );
+        result.put("p99", getPercentile( 99 ) );
+        result.put("max", max );
+        Map<String,Object> buckets = new LinkedHashMap<>();
+        for( int idx = 0; idx < counts.length; idx++ ) {
+            if( counts[idx] > 0 ) {
+                String bucket = idx < Bounds.length ? "<="+Bounds[idx] : ">"+Bounds[Bounds.length - 1];
+                buckets.put( bucket, counts[idx] );
+            }
+        }
+        result.put("buckets", buckets );
+        return result;
+    }
+}
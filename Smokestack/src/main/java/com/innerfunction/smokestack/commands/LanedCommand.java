@@ -0,0 +1,29 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+/**
+ * A command which declares the execution lane it runs in.
+ * Commands in different lanes can run concurrently; see CommandScheduler. Commands which don't
+ * implement this interface run in the default lane.
+ */
+public interface LanedCommand extends Command {
+
+    /**
+     * Return the name of the lane that the named command runs in.
+     * Standard lane names are 'network', 'disk' and 'db'. Returns null for the default lane.
+     */
+    String getLane(String name);
+
+}
@@ -27,7 +27,12 @@ import java.util.List;
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class MvFileCommand implements Command {
+public class MvFileCommand implements LanedCommand {
+
+    @Override
+    public String getLane(String name) {
+        return "disk";
+    }
 
     @Override
     public Q.Promise<CommandList> execute(String name, List args) {
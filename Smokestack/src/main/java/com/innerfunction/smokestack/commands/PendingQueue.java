@@ -0,0 +1,152 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * The command scheduler's queue of pending commands.
+ * Commands are held in one queue per priority class, each ordered by batch and then by queue
+ * position; iteration visits the classes in priority order. A command's position is determined
+ * by its effective class, which starts as its priority class and is raised as the command ages.
+ * Not thread safe; only used on the scheduler's queue.
+ */
+class PendingQueue implements Iterable<CommandItem> {
+
+    /** Orders queued commands by batch number, and then by row ID (i.e. queue position). */
+    static final Comparator<CommandItem> QueueOrder = new Comparator<CommandItem>() {
+        @Override
+        public int compare(CommandItem item1, CommandItem item2) {
+            if( item1.batch != item2.batch ) {
+                return item1.batch < item2.batch ? -1 : 1;
+            }
+            long id1 = Long.parseLong( item1.rowID ), id2 = Long.parseLong( item2.rowID );
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    };
+
+    /** The queues of each priority class, in priority order. */
+    private List<TreeSet<CommandItem>> queues = new ArrayList<>();
+    /** The number of commands in the queue. */
+    private int size;
+
+    PendingQueue() {
+        for( int i = 0; i < CommandPriority.values().length; i++ ) {
+            queues.add( new TreeSet<>( QueueOrder ) );
+        }
+    }
+
+    /** Add a command to the queue of its effective priority class. */
+    void add(CommandItem item) {
+        if( queues.get( item.effectiveClass ).add( item ) ) {
+            size++;
+        }
+    }
+
+    /** Move a command into a higher effective priority class. */
+    void promote(CommandItem item, int effectiveClass) {
+        if( effectiveClass < item.effectiveClass && queues.get( item.effectiveClass ).remove( item ) ) {
+            item.effectiveClass = effectiveClass;
+            queues.get( effectiveClass ).add( item );
+        }
+    }
+
+    /**
+     * Age pending commands.
+     * A command is raised one class for each agingInterval milliseconds it has been waiting. Each
+     * class queue is checked from its head, which in queue order is normally its oldest command,
+     * until a command which hasn't aged is found.
+     */
+    void age(long now, long agingInterval) {
+        if( agingInterval <= 0 ) {
+            return;
+        }
+        // Check lowest classes first, so that commands can be raised more than one class at once.
+        for( int c = queues.size() - 1; c > 0; c-- ) {
+            Iterator<CommandItem> items = queues.get( c ).iterator();
+            while( items.hasNext() ) {
+                CommandItem item = items.next();
+                int classes = (int)((now - item.queuedTime) / agingInterval);
+                int effectiveClass = Math.max( item.priorityClass.ordinal() - classes, 0 );
+                if( effectiveClass >= c ) {
+                    break;
+                }
+                items.remove();
+                item.effectiveClass = c - 1;
+                queues.get( c - 1 ).add( item );
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        for( TreeSet<CommandItem> queue : queues ) {
+            queue.clear();
+        }
+        size = 0;
+    }
+
+    /** Return the lowest batch number of the pending commands. */
+    int getMinBatch() {
+        int batch = Integer.MAX_VALUE;
+        for( TreeSet<CommandItem> queue : queues ) {
+            if( !queue.isEmpty() ) {
+                batch = Math.min( batch, queue.first().batch );
+            }
+        }
+        return batch;
+    }
+
+    /** Iterate over the pending commands, in priority class order and then queue order. */
+    @Override
+    public Iterator<CommandItem> iterator() {
+        return new Iterator<CommandItem>() {
+            int queueIdx = 0;
+            Iterator<CommandItem> items = queues.get( 0 ).iterator();
+            Iterator<CommandItem> lastItems;
+            @Override
+            public boolean hasNext() {
+                while( !items.hasNext() && queueIdx < queues.size() - 1 ) {
+                    items = queues.get( ++queueIdx ).iterator();
+                }
+                return items.hasNext();
+            }
+            @Override
+            public CommandItem next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                lastItems = items;
+                return items.next();
+            }
+            @Override
+            public void remove() {
+                lastItems.remove();
+                size--;
+            }
+        };
+    }
+}
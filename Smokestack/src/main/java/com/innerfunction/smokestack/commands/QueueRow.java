@@ -0,0 +1,225 @@
+// Generated by RowClassGenerator from the queue table schema; do not edit.
+package com.innerfunction.smokestack.commands;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import com.innerfunction.smokestack.db.TypedRow;
+
+/**
+ * A typed row of the queue table.
+ */
+public class QueueRow implements TypedRow {
+
+    public static final String TableName = "queue";
+
+    public static final String[] ColumnNames = new String[]{ "id", "batch", "command", "args", "status", "deps", "hash", "attempts", "notBefore", "priorityClass" };
+
+    public static final TypedRow.Schema<QueueRow> RowSchema = new TypedRow.Schema<QueueRow>() {
+        @Override
+        public String getTableName() {
+            return TableName;
+        }
+        @Override
+        public String[] getColumnNames() {
+            return ColumnNames;
+        }
+        @Override
+        public String getIDColumn() {
+            return "id";
+        }
+        @Override
+        public QueueRow newRow() {
+            return new QueueRow();
+        }
+    };
+
+    public long id;
+    public long batch;
+    public String command;
+    public String args;
+    public String status;
+    public String deps;
+    public String hash;
+    public long attempts;
+    public long notBefore;
+    public long priorityClass;
+    /** Null flags for primitive fields; bit n is set when column n is NULL. */
+    private long nulls = (1L << 0) | (1L << 1) | (1L << 7) | (1L << 8) | (1L << 9);
+
+    /** Test whether a column's value is NULL. */
+    public boolean isNull(int column) {
+        switch( column ) {
+        case 2: return command == null;
+        case 3: return args == null;
+        case 4: return status == null;
+        case 5: return deps == null;
+        case 6: return hash == null;
+        default: return (nulls & (1L << column)) != 0;
+        }
+    }
+
+    public void setId(long id) {
+        this.id = id;
+        this.nulls &= ~(1L << 0);
+    }
+
+    public void setBatch(long batch) {
+        this.batch = batch;
+        this.nulls &= ~(1L << 1);
+    }
+
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    public void setArgs(String args) {
+        this.args = args;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public void setDeps(String deps) {
+        this.deps = deps;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public void setAttempts(long attempts) {
+        this.attempts = attempts;
+        this.nulls &= ~(1L << 7);
+    }
+
+    public void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+        this.nulls &= ~(1L << 8);
+    }
+
+    public void setPriorityClass(long priorityClass) {
+        this.priorityClass = priorityClass;
+        this.nulls &= ~(1L << 9);
+    }
+
+    /** Set a primitive column's value to NULL. */
+    public void setNull(int column) {
+        nulls |= (1L << column);
+    }
+
+    @Override
+    public void readFromCursor(Cursor cursor) {
+        nulls = 0;
+        if( cursor.isNull( 0 ) ) {
+            id = 0;
+            nulls |= (1L << 0);
+        }
+        else {
+            id = cursor.getLong( 0 );
+        }
+        if( cursor.isNull( 1 ) ) {
+            batch = 0;
+            nulls |= (1L << 1);
+        }
+        else {
+            batch = cursor.getLong( 1 );
+        }
+        command = cursor.getString( 2 );
+        args = cursor.getString( 3 );
+        status = cursor.getString( 4 );
+        deps = cursor.getString( 5 );
+        hash = cursor.getString( 6 );
+        if( cursor.isNull( 7 ) ) {
+            attempts = 0;
+            nulls |= (1L << 7);
+        }
+        else {
+            attempts = cursor.getLong( 7 );
+        }
+        if( cursor.isNull( 8 ) ) {
+            notBefore = 0;
+            nulls |= (1L << 8);
+        }
+        else {
+            notBefore = cursor.getLong( 8 );
+        }
+        if( cursor.isNull( 9 ) ) {
+            priorityClass = 0;
+            nulls |= (1L << 9);
+        }
+        else {
+            priorityClass = cursor.getLong( 9 );
+        }
+    }
+
+    @Override
+    public void bindToStatement(SQLiteStatement statement) {
+        if( (nulls & (1L << 0)) != 0 ) {
+            statement.bindNull( 1 );
+        }
+        else {
+            statement.bindLong( 1, id );
+        }
+        if( (nulls & (1L << 1)) != 0 ) {
+            statement.bindNull( 2 );
+        }
+        else {
+            statement.bindLong( 2, batch );
+        }
+        if( command == null ) {
+            statement.bindNull( 3 );
+        }
+        else {
+            statement.bindString( 3, command );
+        }
+        if( args == null ) {
+            statement.bindNull( 4 );
+        }
+        else {
+            statement.bindString( 4, args );
+        }
+        if( status == null ) {
+            statement.bindNull( 5 );
+        }
+        else {
+            statement.bindString( 5, status );
+        }
+        if( deps == null ) {
+            statement.bindNull( 6 );
+        }
+        else {
+            statement.bindString( 6, deps );
+        }
+        if( hash == null ) {
+            statement.bindNull( 7 );
+        }
+        else {
+            statement.bindString( 7, hash );
+        }
+        if( (nulls & (1L << 7)) != 0 ) {
+            statement.bindNull( 8 );
+        }
+        else {
+            statement.bindLong( 8, attempts );
+        }
+        if( (nulls & (1L << 8)) != 0 ) {
+            statement.bindNull( 9 );
+        }
+        else {
+            statement.bindLong( 9, notBefore );
+        }
+        if( (nulls & (1L << 9)) != 0 ) {
+            statement.bindNull( 10 );
+        }
+        else {
+            statement.bindLong( 10, priorityClass );
+        }
+    }
+
+    @Override
+    public TypedRow.Schema<QueueRow> getSchema() {
+        return RowSchema;
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import java.util.Random;
+
+/**
+ * A policy for retrying failed commands.
+ * Failed commands are retried after a delay which grows exponentially with the number of failed
+ * attempts, up to a maximum delay. A random proportion of each delay (the jitter) is subtracted
+ * from it, so that commands which failed together aren't all retried at the same time.
+ * Retries are scheduled by the command scheduler, and delayed commands don't hold up other
+ * commands in the same batch; the time of a command's next attempt is persisted with the
+ * command's queue record, so retry delays survive a process restart.
+ */
+public class RetryPolicy {
+
+    /** A source of random jitter. */
+    static final Random Jitter = new Random();
+
+    /** The maximum number of times a command is attempted, including the first attempt. */
+    private int maxAttempts = 3;
+    /** The delay, in milliseconds, before the first retry. */
+    private long initialDelay = 1000;
+    /** The maximum delay, in milliseconds, between attempts. */
+    private long maxDelay = 5 * 60 * 1000;
+    /** The factor the delay is multiplied by after each failed attempt. */
+    private double multiplier = 2.0;
+    /** The maximum proportion of each delay which is randomly subtracted from it, 0 - 1. */
+    private double jitter = 0.5;
+
+    public RetryPolicy() {}
+
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    public void setJitter(double jitter) {
+        this.jitter = Math.max( 0, Math.min( jitter, 1.0 ) );
+    }
+
+    /**
+     * Test whether a command error can be retried.
+     * Returns true for all errors; subclasses can override this to fail immediately on errors
+     * which a retry can't fix.
+     */
+    public boolean isRetryable(Exception e) {
+        return true;
+    }
+
+    /**
+     * Return the delay before a failed command's next attempt.
+     * @param attempts  The number of attempts made so far, including the one which just failed.
+     * @param e         The error which caused the failure.
+     * @return The delay in milliseconds; or -1 if the command shouldn't be retried.
+     */
+    public long getRetryDelay(int attempts, Exception e) {
+        if( attempts >= maxAttempts || !isRetryable( e ) ) {
+            return -1;
+        }
+        double delay = initialDelay * Math.pow( multiplier, Math.max( attempts - 1, 0 ) );
+        delay = Math.min( delay, maxDelay );
+        delay -= delay * jitter * Jitter.nextDouble();
+        return (long)delay;
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+/**
+ * A command which declares a retry policy.
+ * When a queued command fails, the command scheduler uses the command's retry policy to decide
+ * whether, and when, to run the command again; see RetryPolicy.
+ */
+public interface RetryableCommand extends Command {
+
+    /**
+     * Return the retry policy of the named command.
+     * Returns null if the command shouldn't be retried.
+     */
+    RetryPolicy getRetryPolicy(String name);
+
+}
@@ -26,11 +26,29 @@ import java.util.List;
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class RmFileCommand implements Command {
+public class RmFileCommand implements LanedCommand, CancellableCommand {
+
+    @Override
+    public String getLane(String name) {
+        return "disk";
+    }
+
+    @Override
+    public boolean isCancellable(String name) {
+        return true;
+    }
 
     @Override
     public Q.Promise<CommandList> execute(String name, List args) {
+        return execute( name, args, null );
+    }
+
+    @Override
+    public Q.Promise<CommandList> execute(String name, List args, CancellationToken token) {
         for(Object arg : args) {
+            if( token != null && token.isCancelled() ) {
+                return Q.reject( token.getReason() );
+            }
             String path = arg.toString();
             File file = new File( path );
             if( file.exists() ) {
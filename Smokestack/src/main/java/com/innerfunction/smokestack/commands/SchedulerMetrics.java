@@ -0,0 +1,132 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command scheduler metrics.
+ * Records the latency between commands being queued (or becoming due, for delayed commands) and
+ * being started, and the execution times and outcomes of commands, by command name.
+ */
+public class SchedulerMetrics {
+
+    /** Metrics for a single command name. */
+    public static class CommandMetrics {
+        /** The command name. */
+        public String name;
+        /** The number of times the command was started. */
+        public long started;
+        /** The number of times the command completed successfully. */
+        public long completed;
+        /** The number of times the command failed and wasn't retried. */
+        public long failed;
+        /** The number of times the command failed and was queued for a retry. */
+        public long retried;
+        /** The number of times the command timed out. */
+        public long timedOut;
+        /** The command's execution times, in milliseconds. */
+        public Histogram executionTime = new Histogram();
+
+        CommandMetrics(String name) {
+            this.name = name;
+        }
+
+        CommandMetrics copy() {
+            CommandMetrics copy = new CommandMetrics( name );
+            copy.started = started;
+            copy.completed = completed;
+            copy.failed = failed;
+            copy.retried = retried;
+            copy.timedOut = timedOut;
+            copy.executionTime = executionTime.copy();
+            return copy;
+        }
+
+        /** Return the metrics as a JSON compatible map. */
+        public Map<String,Object> toMap() {
+            Map<String,Object> result = new LinkedHashMap<>();
+            result.put("started", started );
+            result.put("completed", completed );
+            result.put("failed", failed );
+            result.put("retried", retried );
+            result.put("timedOut", timedOut );
+            result.put("executionTime", executionTime.toMap() );
+            return result;
+        }
+    }
+
+    /** Metrics by command name. */
+    private Map<String,CommandMetrics> commandMetrics = new HashMap<>();
+    /** The latency, in milliseconds, between commands being queued or due, and being started. */
+    private Histogram startLatency = new Histogram();
+
+    /** Return the metrics for a command name, creating them if necessary. */
+    private CommandMetrics getMetrics(String name) {
+        CommandMetrics metrics = commandMetrics.get( name );
+        if( metrics == null ) {
+            metrics = new CommandMetrics( name );
+            commandMetrics.put( name, metrics );
+        }
+        return metrics;
+    }
+
+    /** Record a command start. */
+    synchronized void didStart(String name, long latency) {
+        getMetrics( name ).started++;
+        startLatency.record( Math.max( latency, 0 ) );
+    }
+
+    /** Record a successful command execution. */
+    synchronized void didComplete(String name, long executionTime) {
+        CommandMetrics metrics = getMetrics( name );
+        metrics.completed++;
+        metrics.executionTime.record( executionTime );
+    }
+
+    /** Record a failed command execution which won't be retried. */
+    synchronized void didFail(String name, long executionTime) {
+        CommandMetrics metrics = getMetrics( name );
+        metrics.failed++;
+        metrics.executionTime.record( executionTime );
+    }
+
+    /** Record a failed command execution which will be retried. */
+    synchronized void didRetry(String name, long executionTime) {
+        CommandMetrics metrics = getMetrics( name );
+        metrics.retried++;
+        metrics.executionTime.record( executionTime );
+    }
+
+    /** Record a command timeout. */
+    synchronized void didTimeout(String name) {
+        getMetrics( name ).timedOut++;
+    }
+
+    /** Return a copy of the metrics of each command, keyed by command name. */
+    public synchronized Map<String,CommandMetrics> getCommandMetrics() {
+        Map<String,CommandMetrics> result = new HashMap<>();
+        for( CommandMetrics metrics : commandMetrics.values() ) {
+            result.put( metrics.name, metrics.copy() );
+        }
+        return result;
+    }
+
+    /** Return a copy of the command start latency histogram. */
+    public synchronized Histogram getStartLatency() {
+        return startLatency.copy();
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.commands;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONValue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A snapshot of the state of a command scheduler.
+ * Lists pending and running commands, queue depths, lane statistics and scheduler metrics.
+ * Snapshots can be converted to JSON, for diagnostics output.
+ */
+public class SchedulerSnapshot implements JSONAware {
+
+    /** A receiver of scheduler snapshots; see CommandScheduler.receiveMessage(). */
+    public interface Receiver {
+        void receiveSchedulerSnapshot(SchedulerSnapshot snapshot);
+    }
+
+    /** A description of a queued or running command. */
+    public static class Item {
+        /** The ID of the command's queue record; null for commands submitted by execCommand(). */
+        public String rowID;
+        /** The command name. */
+        public String name;
+        /** The command arguments. */
+        public List args;
+        /** The command's batch. */
+        public int batch;
+        /** The command's lane. */
+        public String lane;
+        /** The command's priority class. */
+        public CommandPriority priorityClass;
+        /** The number of failed attempts to execute the command. */
+        public int attempts;
+        /** The earliest time the command can be started; 0 if not delayed. */
+        public long notBefore;
+        /** For running commands, the time the command was started; otherwise 0. */
+        public long startTime;
+
+        Item(CommandItem item, boolean running) {
+            this.rowID = item.rowID;
+            this.name = item.name;
+            this.args = item.args;
+            this.batch = item.batch;
+            this.lane = item.lane;
+            this.priorityClass = item.priorityClass;
+            this.attempts = item.attempts;
+            this.notBefore = item.notBefore;
+            this.startTime = running ? item.startTime : 0;
+        }
+
+        /** Return the item as a JSON compatible map. */
+        public Map<String,Object> toMap() {
+            Map<String,Object> result = new LinkedHashMap<>();
+            result.put("id", rowID );
+            result.put("name", name );
+            result.put("args", args );
+            result.put("batch", batch );
+            result.put("lane", lane );
+            result.put("priorityClass", priorityClass != null ? priorityClass.name() : null );
+            result.put("attempts", attempts );
+            if( notBefore > 0 ) {
+                result.put("notBefore", notBefore );
+            }
+            if( startTime > 0 ) {
+                result.put("startTime", startTime );
+            }
+            return result;
+        }
+    }
+
+    /** The time the snapshot was taken. */
+    public long time = System.currentTimeMillis();
+    /** The scheduler's current batch number. */
+    public int currentBatch;
+    /** The pending commands, in execution order. */
+    public List<Item> pending = new ArrayList<>();
+    /** The running commands. */
+    public List<Item> running = new ArrayList<>();
+    /** The number of pending commands in each batch, keyed by batch number. */
+    public Map<Integer,Integer> depthByBatch = new TreeMap<>();
+    /** Execution lane statistics, keyed by lane name. */
+    public Map<String,ExecutionLane.Statistics> lanes;
+    /** Command metrics, keyed by command name. */
+    public Map<String,SchedulerMetrics.CommandMetrics> commands;
+    /** The latency between commands being queued or due, and being started. */
+    public Histogram startLatency;
+
+    /** Return the snapshot as a JSON compatible map. */
+    public Map<String,Object> toMap() {
+        Map<String,Object> result = new LinkedHashMap<>();
+        result.put("time", time );
+        result.put("currentBatch", currentBatch );
+        Map<String,Object> depths = new LinkedHashMap<>();
+        for( Integer batch : depthByBatch.keySet() ) {
+            depths.put( batch.toString(), depthByBatch.get( batch ) );
+        }
+        result.put("depthByBatch", depths );
+        List<Object> items = new ArrayList<>();
+        for( Item item : pending ) {
+            items.add( item.toMap() );
+        }
+        result.put("pending", items );
+        items = new ArrayList<>();
+        for( Item item : running ) {
+            items.add( item.toMap() );
+        }
+        result.put("running", items );
+        Map<String,Object> laneStats = new LinkedHashMap<>();
+        for( ExecutionLane.Statistics stats : lanes.values() ) {
+            Map<String,Object> lane = new LinkedHashMap<>();
+            lane.put("concurrency", stats.concurrency );
+            lane.put("running", stats.running );
+            lane.put("queued", stats.queued );
+            lane.put("started", stats.started );
+            lane.put("completed", stats.completed );
+            lane.put("timedOut", stats.timedOut );
+            lane.put("cancelled", stats.cancelled );
+            lane.put("utilisation", stats.utilisation );
+            laneStats.put( stats.name, lane );
+        }
+        result.put("lanes", laneStats );
+        Map<String,Object> commandStats = new LinkedHashMap<>();
+        for( SchedulerMetrics.CommandMetrics metrics : commands.values() ) {
+            commandStats.put( metrics.name, metrics.toMap() );
+        }
+        result.put("commands", commandStats );
+        result.put("startLatency", startLatency.toMap() );
+        return result;
+    }
+
+    @Override
+    public String toJSONString() {
+        return JSONValue.toJSONString( toMap() );
+    }
+}
@@ -33,7 +33,7 @@ import java.util.List;
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class UnzipCommand implements Command {
+public class UnzipCommand implements LanedCommand {
 
     private Assets assets;
 
@@ -41,6 +41,11 @@ public class UnzipCommand implements Command {
         this.assets = new Assets( context );
     }
 
+    @Override
+    public String getLane(String name) {
+        return "disk";
+    }
+
     @Override
     public Q.Promise<CommandList> execute(String name, List args) {
         if( args.size() < 2 ) {
@@ -35,11 +35,12 @@ import java.util.Map;
  * content URL and resolver subsystems and the content internal URI scheme.
  *
  * Subclasses must provide an implementation of the refreshContent() method suitable for their
- * data source.
+ * data source. Authorities with a refresh interval are refreshed periodically by the content
+ * provider's refresh scheduler.
  *
  * Created by juliangoacher on 08/03/2017.
  */
-public abstract class AbstractAuthority implements Authority, Service, IOCObjectAware {
+public abstract class AbstractAuthority implements Authority, Service, IOCObjectAware, RefreshScheduler.Refreshable {
 
     static final String Tag = AbstractAuthority.class.getSimpleName();
 
@@ -69,6 +70,11 @@ public abstract class AbstractAuthority implements Authority, Service, IOCObject
         this.refreshInterval = interval;
     }
 
+    @Override
+    public float getRefreshInterval() {
+        return refreshInterval;
+    }
+
     public void setPathRoots(Map<String,PathRoot> pathRoots) {
         this.pathRoots = pathRoots;
     }
@@ -105,8 +111,20 @@ public abstract class AbstractAuthority implements Authority, Service, IOCObject
      * Refreshed content, e.g. by checking a server for downloadable updates.
      * Subclasses should provide an implementation of this class.
      */
+    @Override
     public abstract void refreshContent();
 
+    /**
+     * Test whether a content refresh is in progress.
+     * By default, a refresh is in progress whilst the authority's refresh command is pending or
+     * running; follow-on commands of the refresh, such as downloads in retry backoff, don't delay
+     * the next refresh.
+     */
+    @Override
+    public boolean isRefreshing() {
+        return getCommandScheduler().hasIncompleteCommand( authorityName.concat(".refresh") );
+    }
+
     /** A path for temporarily staging downloaded content. */
     @Override
     public String getStagingPath() {
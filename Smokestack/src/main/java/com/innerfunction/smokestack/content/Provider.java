@@ -54,8 +54,13 @@ public class Provider implements Service, MessageRouter, MessageReceiver {
 
     static final String SmokestackNamePrefix = "smokestack";
 
+    /** The message target name of the command scheduler. */
+    static final String CommandSchedulerTarget = "command-scheduler";
+
     /** A command scheduler to be used by the different content authorities. */
     private CommandScheduler commandScheduler;
+    /** A scheduler for periodically refreshing content authorities. */
+    private RefreshScheduler refreshScheduler = new RefreshScheduler();
     /** A map of content authority instances keyed by authority name. */
     private Map<String,Authority> authorities;
     /** A path for temporarily staging downloaded content. */
@@ -115,6 +120,14 @@ public class Provider implements Service, MessageRouter, MessageReceiver {
         this.commandScheduler = scheduler;
     }
 
+    public RefreshScheduler getRefreshScheduler() {
+        return refreshScheduler;
+    }
+
+    public void setRefreshScheduler(RefreshScheduler scheduler) {
+        this.refreshScheduler = scheduler;
+    }
+
     public void setAuthorities(Map<String,Authority> authorities) {
         this.authorities = authorities;
         for( Authority authority : authorities.values() ) {
@@ -225,6 +238,10 @@ public class Provider implements Service, MessageRouter, MessageReceiver {
     public boolean routeMessage(Message message, Object sender) {
         boolean routed = false;
         String authorityName = message.targetHead();
+        if( CommandSchedulerTarget.equals( authorityName ) ) {
+            // Message to the command scheduler, e.g. a diagnostics request.
+            return commandScheduler.receiveMessage( message, sender );
+        }
         Authority authority = authorities.get( authorityName );
         if( authority instanceof MessageReceiver ) {
             routed = ((MessageReceiver)authority).receiveMessage( message, sender );
@@ -240,9 +257,19 @@ public class Provider implements Service, MessageRouter, MessageReceiver {
     @Override
     public void startService() {
         commandScheduler.startService();
+        // Schedule periodic refreshes of each authority.
+        for( String name : authorities.keySet() ) {
+            Authority authority = authorities.get( name );
+            if( authority instanceof RefreshScheduler.Refreshable ) {
+                refreshScheduler.addRefreshable( name, (RefreshScheduler.Refreshable)authority );
+            }
+        }
+        refreshScheduler.startService();
     }
 
     @Override
-    public void stopService() {}
+    public void stopService() {
+        refreshScheduler.stopService();
+    }
 
 }
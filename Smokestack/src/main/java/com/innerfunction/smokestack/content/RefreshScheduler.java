@@ -0,0 +1,280 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.content;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.innerfunction.scffld.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A service which periodically refreshes content authorities.
+ * Each registered authority is refreshed once every refresh interval, plus or minus a random
+ * jitter, so that many clients don't all check a server for updates at the same time.
+ *
+ * Refreshes are paused while the app is in the background (see pause() and resume()); refreshes
+ * which come due while paused are coalesced into a single refresh once resumed. The scheduler
+ * starts paused, and is resumed once the app has a started activity. An authority
+ * isn't refreshed again while its previous refresh is still in progress; that refresh is left to
+ * complete, and the next refresh is scheduled a full interval later.
+ *
+ * Timing is driven by a Clock, which by default uses a main thread handler; an alternative clock
+ * can be injected so that the scheduler can be used without the Android framework.
+ */
+public class RefreshScheduler implements Service {
+
+    static final String Tag = RefreshScheduler.class.getSimpleName();
+
+    /** An object which can be periodically refreshed. */
+    public interface Refreshable {
+
+        /** Return the interval between refreshes, in minutes; 0 or less disables refreshes. */
+        float getRefreshInterval();
+
+        /** Test whether a previously started refresh is still in progress. */
+        boolean isRefreshing();
+
+        /** Start a refresh. */
+        void refreshContent();
+
+    }
+
+    /** A clock used to read the current time and to schedule refreshes. */
+    public interface Clock {
+
+        /** Return the current time, in milliseconds. */
+        long currentTimeMillis();
+
+        /** Run a task after a delay, in milliseconds. */
+        void postDelayed(Runnable task, long delay);
+
+        /** Cancel a task scheduled by postDelayed(). */
+        void removeCallbacks(Runnable task);
+
+    }
+
+    /** The default clock; schedules tasks on the main thread. */
+    static class HandlerClock implements Clock {
+
+        private Handler handler = new Handler( Looper.getMainLooper() );
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            handler.postDelayed( task, delay );
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            handler.removeCallbacks( task );
+        }
+    }
+
+    /** The refresh schedule of a single refreshable. */
+    class Schedule implements Runnable {
+
+        /** The name of the refreshable; used for logging. */
+        String name;
+        /** The object being refreshed. */
+        Refreshable refreshable;
+        /** The refresh interval, in milliseconds. */
+        long interval;
+        /** The time the next refresh is due. */
+        long dueTime;
+
+        Schedule(String name, Refreshable refreshable) {
+            this.name = name;
+            this.refreshable = refreshable;
+        }
+
+        @Override
+        public void run() {
+            refreshDue( this );
+        }
+    }
+
+    /** The clock used to schedule refreshes. */
+    private Clock clock;
+    /** A source of random numbers, for jitter. */
+    private Random random = new Random();
+    /**
+     * The maximum random variation of each refresh delay, as a proportion of the refresh interval;
+     * e.g. 0.1 means +/-10%.
+     */
+    private double jitter = 0.1;
+    /** Refresh schedules, keyed by name. */
+    private Map<String,Schedule> schedules = new LinkedHashMap<>();
+    /** Flag indicating that the service is running. */
+    private boolean running;
+    /**
+     * Flag indicating that refreshes are paused, e.g. because the app is in the background.
+     * Initially true, so that nothing is refreshed until the app is in the foreground.
+     */
+    private boolean paused = true;
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    /**
+     * Add an object to be refreshed.
+     * The object's refresh interval is read when the service is started.
+     */
+    public synchronized void addRefreshable(String name, Refreshable refreshable) {
+        schedules.put( name, new Schedule( name, refreshable ) );
+    }
+
+    /** Test whether refreshes are paused. */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Pause refreshes.
+     * Should be called when the app moves to the background.
+     */
+    public synchronized void pause() {
+        if( paused ) {
+            return;
+        }
+        paused = true;
+        if( running ) {
+            for( Schedule schedule : schedules.values() ) {
+                getClock().removeCallbacks( schedule );
+            }
+        }
+    }
+
+    /**
+     * Resume refreshes.
+     * Any refresh which came due while paused is started immediately; refreshes which came due
+     * more than once are only started once.
+     */
+    public void resume() {
+        List<Schedule> due = new ArrayList<>();
+        synchronized( this ) {
+            if( !paused ) {
+                return;
+            }
+            paused = false;
+            if( running ) {
+                long now = getClock().currentTimeMillis();
+                for( Schedule schedule : schedules.values() ) {
+                    if( schedule.interval > 0 ) {
+                        if( schedule.dueTime <= now ) {
+                            due.add( schedule );
+                        }
+                        else {
+                            getClock().postDelayed( schedule, schedule.dueTime - now );
+                        }
+                    }
+                }
+            }
+        }
+        for( Schedule schedule : due ) {
+            refreshDue( schedule );
+        }
+    }
+
+    /**
+     * Process a due refresh.
+     * The refreshable is called after the scheduler's lock is released, so that a slow refresh
+     * doesn't block pause() and resume() on other threads.
+     */
+    void refreshDue(Schedule schedule) {
+        synchronized( this ) {
+            if( !running || paused ) {
+                // The refresh will be started on resume, if still due.
+                return;
+            }
+            scheduleNext( schedule );
+        }
+        // If the previous refresh is still in progress then coalesce with it.
+        if( !schedule.refreshable.isRefreshing() ) {
+            try {
+                schedule.refreshable.refreshContent();
+            }
+            catch(Exception e) {
+                Log.e( Tag, String.format("Refreshing %s", schedule.name ), e );
+            }
+        }
+    }
+
+    /** Schedule the next refresh, one jittered interval from now. */
+    private void scheduleNext(Schedule schedule) {
+        long delay = schedule.interval;
+        if( jitter > 0 ) {
+            delay += (long)(schedule.interval * jitter * (random.nextDouble() * 2 - 1));
+        }
+        schedule.dueTime = getClock().currentTimeMillis() + delay;
+        getClock().postDelayed( schedule, delay );
+    }
+
+    /** Return the scheduler's clock, creating the default clock if none was set. */
+    private Clock getClock() {
+        if( clock == null ) {
+            clock = new HandlerClock();
+        }
+        return clock;
+    }
+
+    @Override
+    public synchronized void startService() {
+        if( running ) {
+            return;
+        }
+        running = true;
+        for( Schedule schedule : schedules.values() ) {
+            schedule.interval = (long)(schedule.refreshable.getRefreshInterval() * 60000);
+            if( schedule.interval > 0 ) {
+                // Note that authorities refresh when their service is started, so the first
+                // periodic refresh is due one interval after startup.
+                scheduleNext( schedule );
+                if( paused ) {
+                    getClock().removeCallbacks( schedule );
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stopService() {
+        if( !running ) {
+            return;
+        }
+        running = false;
+        for( Schedule schedule : schedules.values() ) {
+            getClock().removeCallbacks( schedule );
+        }
+    }
+}
@@ -19,21 +19,30 @@ import com.innerfunction.http.Client;
 import com.innerfunction.http.Response;
 import com.innerfunction.q.Q;
 import com.innerfunction.smokestack.AppContainer;
+import com.innerfunction.smokestack.commands.CancellableCommand;
+import com.innerfunction.smokestack.commands.CancellationToken;
 import com.innerfunction.smokestack.commands.Command;
 import com.innerfunction.smokestack.commands.CommandList;
+import com.innerfunction.smokestack.commands.CommandPriority;
 import com.innerfunction.smokestack.commands.CommandScheduler;
+import com.innerfunction.smokestack.commands.RetryPolicy;
+import com.innerfunction.smokestack.db.DBMaintenance;
+import com.innerfunction.smokestack.db.ORM;
 import com.innerfunction.smokestack.db.Record;
 import com.innerfunction.smokestack.db.ResultSet;
-import com.innerfunction.util.Files;
 import com.innerfunction.util.KeyPath;
 
 import static com.innerfunction.util.DataLiterals.*;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 /**
  * CMS operations command protocol.
@@ -49,6 +58,13 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
 
     static final Object NullCategory = new Object();
 
+    /** The maximum number of attempts made to download a fileset. */
+    static final int DownloadAttempts = 5;
+    /** The delay, in milliseconds, before the first retry of a failed fileset download. */
+    static final long DownloadRetryDelay = 5000;
+    /** The maximum delay, in milliseconds, between fileset download attempts. */
+    static final long DownloadMaxRetryDelay = 5 * 60 * 1000;
+
     private AuthenticationManager authManager;
     private String logoutAction;
     /** The content repository's settings. */
@@ -66,23 +82,56 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
         this.httpClient = authority.getHttpClient();
         this.fileDB = authority.getFileDB();
 
-        // Register command handlers.
-        addCommand( "refresh", new Command() {
+        // Register command handlers. Refreshes run in the db lane, so that a shadow DB swap is
+        // never made while maintenance is running on the file DB. Fileset downloads are follow-ons
+        // of a refresh, so only start once it has completed; they run concurrently in the network
+        // lane, and the file DB serializes their writes.
+        // Refreshes and downloads are cancellable, so that a timed out execution makes no further
+        // changes once its retry may have started.
+        addCommand( "refresh", "db", new CancellableCommand() {
+            @Override
+            public Q.Promise<CommandList> execute(String name, List args) {
+                return execute( name, args, null );
+            }
+            @Override
+            public Q.Promise<CommandList> execute(String name, List args, CancellationToken token) {
+                return CommandProtocol.this.refresh( args, token );
+            }
+            @Override
+            public boolean isCancellable(String name) {
+                return true;
+            }
+        } );
+        addCommand( "download-fileset", "network", new CancellableCommand() {
             @Override
             public Q.Promise<CommandList> execute(String name, List args) {
-                return CommandProtocol.this.refresh( args );
+                return execute( name, args, null );
+            }
+            @Override
+            public Q.Promise<CommandList> execute(String name, List args, CancellationToken token) {
+                return CommandProtocol.this.downloadFileset( args, token );
+            }
+            @Override
+            public boolean isCancellable(String name) {
+                return true;
             }
         } );
-        addCommand( "download-fileset", new Command() {
+        addCommand( "maintain-db", "db", new Command() {
             @Override
             public Q.Promise<CommandList> execute(String name, List args) {
-                return CommandProtocol.this.downloadFileset( args );
+                return CommandProtocol.this.maintainDB();
             }
         } );
+        // Retry failed fileset downloads with backoff; a failed refresh is retried by the next refresh.
+        setRetryPolicy("download-fileset", new RetryPolicy( DownloadAttempts, DownloadRetryDelay, DownloadMaxRetryDelay ) );
     }
 
-    /** Start a content refresh. */
-    private Q.Promise<CommandList> refresh(List<String> args) {
+    /**
+     * Start a content refresh.
+     * The HTTP request can't be interrupted, but if the token is cancelled then no updates are
+     * applied from its response.
+     */
+    private Q.Promise<CommandList> refresh(List<String> args, final CancellationToken token) {
 
         final Q.Promise<CommandList> promise = new Q.Promise<>();
         final String refreshURL = cms.getURLForUpdates();
@@ -123,6 +172,10 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
                 @Override
                 public Response result(Response response) {
 
+                    if( isCancelled( token, promise ) ) {
+                        return null;
+                    }
+
                     // Create list of follow up commands.
                     CommandList commands = new CommandList();
 
@@ -154,26 +207,51 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
                         // A map of fileset category names to a 'since' commit value (may be null).
                         Map<String, Object> updatedCategories = new HashMap<>();
 
+                        // Check group fingerprint to see if a migration is needed.
+                        String updateGroup = KeyPath.getValueAsString( "repository.group", updatesData );
+                        boolean migrate = _group == null || !_group.equals( updateGroup );
+
+                        // Build migrations in a shadow copy of the file DB, so that readers of the
+                        // live DB aren't blocked while the whole DB is rewritten.
+                        FileDB targetDB = fileDB;
+                        if( migrate && fileDB.isShadowMigrations() ) {
+                            FileDB shadowDB = fileDB.createShadowDB();
+                            if( shadowDB != null ) {
+                                targetDB = shadowDB;
+                            }
+                        }
+
+                        // Cached copies of deleted files; deleted once the DB changes are visible.
+                        List<File> deletedCacheFiles = new ArrayList<>();
+
                         // Start a DB transaction.
-                        fileDB.beginTransaction();
+                        boolean committed = false;
+                        targetDB.beginTransaction();
                         try {
-                            // Check group fingerprint to see if a migration is needed.
-                            String updateGroup = KeyPath.getValueAsString( "repository.group", updatesData );
-                            boolean migrate = _group == null || !_group.equals( updateGroup );
                             if( migrate ) {
                                 // Performing a migration due to an ACM group ID change; mark all files
                                 // as provisionally deleted.
-                                fileDB.performUpdate( "UPDATE files SET status='deleted'" );
+                                targetDB.performUpdate( "UPDATE files SET status='deleted'" );
                             }
                             // Shift current fileset fingerprints to previous.
-                            fileDB.performUpdate( "UPDATE fingerprints SET previous=current" );
+                            targetDB.performUpdate( "UPDATE fingerprints SET previous=current" );
+
+                            // The IDs of file records with updated ORM values.
+                            ORM orm = targetDB.getOrm();
+                            boolean hasViews = orm != null && orm.hasMaterializedViews();
+                            boolean hasPivots = orm != null && orm.hasPivots();
+                            Set<String> updatedFileIDs = new HashSet<>();
 
                             // Apply all downloaded updates to the database.
                             for( String tableName : updates.keySet() ) {
+                                checkCancelled( token );
                                 boolean isFilesTable = "files".equals( tableName );
                                 List<Map<String, Object>> table = (List<Map<String, Object>>)updates.get( tableName );
+                                if( hasViews || hasPivots ) {
+                                    updatedFileIDs.addAll( orm.getOwnerIDs( tableName, table ) );
+                                }
                                 for( Map<String, Object> values : table ) {
-                                    fileDB.upsert( tableName, values );
+                                    targetDB.upsert( tableName, values );
                                     // If processing the files table then record the updated file
                                     // category name.
                                     if( isFilesTable ) {
@@ -192,24 +270,38 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
                             }
 
                             // Check for deleted files.
-                            ResultSet deleted = fileDB.performQuery( "SELECT id, path FROM files WHERE status='deleted'" );
+                            ResultSet deleted = targetDB.performQuery( "SELECT id, path, category, status FROM files WHERE status='deleted'" );
                             for( Record record : deleted ) {
-                                // Delete cached file, if exists.
+                                // Record cached file for deletion, if exists.
                                 String path = fileDB.getCacheLocationForFileRecord( record );
                                 if( path != null ) {
-                                    File cacheFile = new File( path );
-                                    cacheFile.delete();
+                                    deletedCacheFiles.add( new File( path ) );
                                 }
                             }
 
                             // Delete obsolete records.
-                            fileDB.performUpdate( "DELETE FROM files WHERE status='deleted'" );
+                            targetDB.performUpdate( "DELETE FROM files WHERE status='deleted'" );
+
+                            // Delete inline data of deleted files.
+                            targetDB.pruneInlineFileData();
 
                             // Prune ORM related records.
-                            fileDB.pruneRelatedValues();
+                            targetDB.pruneRelatedValues();
+
+                            // Refresh materialized views of the updated files; rebuild in full after a migration.
+                            // A failed refresh rolls back its nested transaction, which fails the
+                            // whole transaction; so the refresh is failed here and not at commit.
+                            if( hasViews && !orm.refreshMaterializedViews( migrate ? null : updatedFileIDs ) ) {
+                                throw new RuntimeException("Failed to refresh materialized views");
+                            }
+
+                            // Refresh pivot tables of promoted meta keys.
+                            if( hasPivots && !orm.refreshPivots( migrate ? null : updatedFileIDs ) ) {
+                                throw new RuntimeException("Failed to refresh pivot tables");
+                            }
 
                             // Read list of fileset names with modified fingerprints.
-                            ResultSet rs = fileDB.performQuery( "SELECT category FROM fingerprints WHERE current != previous" );
+                            ResultSet rs = targetDB.performQuery( "SELECT category FROM fingerprints WHERE current != previous" );
                             for( Record record : rs ) {
                                 String category = record.getValueAsString( "category" );
                                 if( "$group".equals( category ) ) {
@@ -236,17 +328,48 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
                                     if( since != NullCategory ) {
                                         args.add( since.toString() );
                                     }
-                                    commands.addCommand( command, args );
+                                    // Fileset downloads are independent of each other.
+                                    commands.addCommand( command, args ).dependsOn();
                                 }
                             }
 
+                            // Queue post-sync database maintenance. Maintenance is deferrable, so
+                            // yields to other work, but doesn't wait for downloads in retry backoff.
+                            if( fileDB.getMaintenance() != null ) {
+                                command = CommandProtocol.this.getQualifiedCommandName( "maintain-db" );
+                                commands.addCommand( command, Collections.EMPTY_LIST )
+                                    .withPriorityClass( CommandPriority.Background )
+                                    .dependsOn();
+                            }
+
                             // Commit the transaction.
-                            fileDB.commitTransaction();
+                            checkCancelled( token );
+                            committed = targetDB.commitTransaction();
                         }
                         catch(Exception e) {
-                            fileDB.rollbackTransaction();
+                            targetDB.rollbackTransaction();
+                            if( targetDB != fileDB ) {
+                                fileDB.discardShadowDB( targetDB );
+                            }
                             throw e;
                         }
+                        if( !committed ) {
+                            if( targetDB != fileDB ) {
+                                fileDB.discardShadowDB( targetDB );
+                            }
+                            throw new RuntimeException("Failed to commit content updates");
+                        }
+
+                        // Swap in the migrated shadow DB.
+                        if( targetDB != fileDB && !fileDB.replaceDatabaseFile( targetDB ) ) {
+                            fileDB.discardShadowDB( targetDB );
+                            throw new RuntimeException("Failed to swap in migrated file DB");
+                        }
+
+                        // Delete cached copies of deleted files.
+                        for( File cacheFile : deletedCacheFiles ) {
+                            cacheFile.delete();
+                        }
                     }
 
                     promise.resolve( commands );
@@ -266,8 +389,12 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
         return promise;
     }
 
-    /** Download a fileset. */
-    private Q.Promise<CommandList> downloadFileset(List<String> args) {
+    /**
+     * Download a fileset.
+     * The download can't be interrupted, but if the token is cancelled then the fileset isn't
+     * unzipped, or unzipping is stopped, and the fileset's fingerprint isn't updated.
+     */
+    private Q.Promise<CommandList> downloadFileset(List<String> args, final CancellationToken token) {
 
         final Q.Promise<CommandList> promise = new Q.Promise<>();
 
@@ -286,15 +413,21 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
             .then(new Q.Promise.Callback<Response, Response>() {
                 @Override
                 public Response result(Response response) {
+                    if( isCancelled( token, promise ) ) {
+                        return null;
+                    }
                     int responseCode = response.getStatusCode();
                     if( responseCode == 200 ) {
-                        // Unzip downloaded file to content location.
+                        // Unzip downloaded file to content location; small files may be stored
+                        // inline in the file DB.
                         File dataFile = response.getDataFile();
-                        Files.unzip( dataFile, new File( cachePath ) );
+                        if( !fileDB.unzipFileset( category, dataFile, cachePath, token ) ) {
+                            promise.reject( String.format("Failed to unzip fileset %s", category ) );
+                            return null;
+                        }
                     }
                     if( responseCode == 200 || responseCode == 204 ) {
-                        // Update the fileset's fingerprint.
-                        fileDB.performUpdate("UPDATE fingerprints SET previous=current WHERE category=?", category );
+                        fileDB.updateFilesetFingerprint( category );
                     }
                     // Resolve empty list - no follow-on commands.
                     promise.resolve( CommandScheduler.NoFollowOns );
@@ -312,6 +445,35 @@ public class CommandProtocol extends com.innerfunction.smokestack.commands.Comma
         return promise;
     }
 
+    /**
+     * Test whether a command's cancellation token is cancelled.
+     * If it is then the command's promise is rejected.
+     */
+    private static boolean isCancelled(CancellationToken token, Q.Promise<CommandList> promise) {
+        if( token != null && token.isCancelled() ) {
+            promise.reject( token.getReason() );
+            return true;
+        }
+        return false;
+    }
+
+    /** Throw an exception if a command's cancellation token is cancelled. */
+    private static void checkCancelled(CancellationToken token) {
+        if( token != null && token.isCancelled() ) {
+            throw new CancellationException( token.getReason() );
+        }
+    }
+
+    /** Perform file DB maintenance, if enough changes have been made since the last run. */
+    private Q.Promise<CommandList> maintainDB() {
+        if( fileDB.isMaintenanceDue() ) {
+            DBMaintenance.Report report = fileDB.performMaintenance();
+            Log.i( Tag, String.format("File DB maintenance: reclaimed %d bytes in %d ms",
+                report.bytesReclaimed, report.timeSpent ) );
+        }
+        return Q.resolve( CommandScheduler.NoFollowOns );
+    }
+
     private String getIsSecureParam() {
         return authManager.hasCredentials() ? "true" : "false";
     }
@@ -14,13 +14,37 @@
 package com.innerfunction.smokestack.content.cms;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
 
+import com.innerfunction.smokestack.commands.CancellationToken;
 import com.innerfunction.smokestack.db.DB;
+import com.innerfunction.smokestack.db.DBMaintenance;
 import com.innerfunction.smokestack.db.ORM;
+import com.innerfunction.smokestack.db.Record;
 import com.innerfunction.smokestack.db.ResultSet;
+import com.innerfunction.smokestack.db.WriteBehindBuffer;
+import com.innerfunction.util.Files;
 import com.innerfunction.util.Paths;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * A content repository's file database.
@@ -29,16 +53,41 @@ import java.util.Map;
  */
 public class FileDB extends DB {
 
+    static final String Tag = FileDB.class.getSimpleName();
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
     /** The content authority this database belongs to. */
     private Repository authority;
     /** The fileset categories defined for the database. */
     private Map<String,Fileset> filesets;
     /** The name of the files table; defaults to 'files'. */
     private String filesTable = "files";
+    /** The name of the table holding inline file data; defaults to 'filedata'. */
+    private String fileDataTable = "filedata";
+    /**
+     * Flag indicating whether full content migrations are built in a shadow copy of the database,
+     * which is then swapped in, instead of being written to the live database.
+     */
+    private boolean shadowMigrations = true;
+    /**
+     * Lock serializing the database writes of fileset downloads.
+     * Downloads run concurrently, but only write to the database once their fileset is unpacked.
+     */
+    private final Object filesetWriteLock = new Object();
+
+    /** The file record columns needed to resolve a file's cache location. */
+    static final List<String> CacheLocationColumns = Arrays.asList("path", "category", "status");
+    /** The columns read when reading a file's inline data. */
+    static final List<String> InlineDataColumns = Arrays.asList("data");
 
     public FileDB(Context context, Repository authority) {
         setAndroidContext( context );
         this.authority = authority;
+        // Content refreshes delete and rewrite many rows, so track changes for maintenance.
+        setMaintenance( new DBMaintenance() );
+        // Inline data for individually downloaded files is written through a write-behind buffer.
+        setWriteBehindBuffer( new WriteBehindBuffer() );
     }
 
     public void setFilesets(Map<String,Fileset> filesets) {
@@ -49,10 +98,74 @@ public class FileDB extends DB {
         return filesets;
     }
 
+    @Override
+    public void startService() {
+        super.startService();
+        // Add materialized views for filesets which declare them.
+        ORM orm = getOrm();
+        if( filesets != null && orm != null ) {
+            List<String> indexColumns = Arrays.asList( String.format("%s.category", orm.getSource() ) );
+            for( Fileset fileset : filesets.values() ) {
+                List<String> mappings = fileset.getMappings();
+                if( fileset.isMaterialized() && mappings != null ) {
+                    orm.addMaterializedView( mappings, indexColumns );
+                }
+            }
+        }
+    }
+
     public void setFilesTable(String table) {
         this.filesTable = table;
     }
 
+    public void setFileDataTable(String table) {
+        this.fileDataTable = table;
+    }
+
+    public void setShadowMigrations(boolean shadowMigrations) {
+        this.shadowMigrations = shadowMigrations;
+    }
+
+    public boolean isShadowMigrations() {
+        return shadowMigrations;
+    }
+
+    /**
+     * Create a shadow copy of the database.
+     * The shadow is a copy of the database file, opened on its own connection with the same
+     * schema, mappings and filesets, and is used to build a full content migration without
+     * blocking readers of this database. Once built, the shadow is swapped in using
+     * replaceDatabaseFile(); or should be discarded using discardShadowDB().
+     * @return The shadow database; or null if it can't be created.
+     */
+    public FileDB createShadowDB() {
+        String shadowName = getName()+"-shadow";
+        File shadowFile = getAndroidContext().getDatabasePath( shadowName );
+        // Delete any shadow (and its journal) left by a previous, failed migration.
+        SQLiteDatabase.deleteDatabase( shadowFile );
+        if( !copyDatabaseFile( shadowFile ) ) {
+            return null;
+        }
+        FileDB shadow = new FileDB( getAndroidContext(), authority );
+        shadow.setName( shadowName );
+        shadow.setVersion( getVersion() );
+        shadow.setTables( getTables() );
+        shadow.setOrm( getOrm().copyForDB( shadow ) );
+        shadow.setFilesets( filesets );
+        shadow.setFilesTable( filesTable );
+        shadow.setFileDataTable( fileDataTable );
+        // Share maintenance, so that changes made in the shadow are counted.
+        shadow.setMaintenance( getMaintenance() );
+        shadow.startService();
+        return shadow;
+    }
+
+    /** Close and delete a shadow database which won't be swapped in. */
+    public void discardShadowDB(FileDB shadow) {
+        shadow.stopService();
+        SQLiteDatabase.deleteDatabase( getAndroidContext().getDatabasePath( shadow.getName() ) );
+    }
+
     /**
      * Return the absolute path for the cache location of the specified file record.
      * Returns null if the file isn't locally cachable.
@@ -85,7 +198,8 @@ public class FileDB extends DB {
      */
     public String getCacheLocationForFileWithPath(String path) {
         String location = null;
-        String sql = String.format("SELECT * FROM %s WHERE path=?", filesTable );
+        String projection = getProjectionSQL( filesTable, CacheLocationColumns );
+        String sql = String.format("SELECT %s FROM %s WHERE path=?", projection, filesTable );
         ResultSet rs = performQuery( sql, path );
         if( rs.size() > 0 ) {
             location = getCacheLocationForFileRecord( rs.get( 0 ) );
@@ -106,6 +220,278 @@ public class FileDB extends DB {
         return location;
     }
 
+    /** Test whether the database schema includes a table for inline file data. */
+    public boolean supportsInlineFiles() {
+        return getTables().containsKey( fileDataTable );
+    }
+
+    /** Test whether files in the specified fileset category can be stored inline. */
+    public boolean isInlineFileset(String category) {
+        Fileset fileset = filesets.get( category );
+        return fileset != null
+            && fileset.isCachable()
+            && fileset.getInlineThreshold() > 0
+            && supportsInlineFiles();
+    }
+
+    /** Test whether files in any fileset category can be stored inline. */
+    public boolean hasInlineFilesets() {
+        if( filesets != null ) {
+            for( String category : filesets.keySet() ) {
+                if( isInlineFileset( category ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Test whether a cached file of the specified size in the specified fileset category should be
+     * stored inline in the database.
+     */
+    public boolean isInlineFileSize(String category, long size) {
+        return isInlineFileset( category ) && size < filesets.get( category ).getInlineThreshold();
+    }
+
+    /**
+     * Read the inline data of the file with the specified path.
+     * Returns null if the file isn't stored inline.
+     */
+    public byte[] readInlineFileData(String path) {
+        if( !supportsInlineFiles() ) {
+            return null;
+        }
+        // Read by ID so that any buffered write of the file's data is seen.
+        Record record = read( fileDataTable, path, InlineDataColumns );
+        return record != null ? record.getValueAsBlob("data") : null;
+    }
+
+    /** Write inline data for the file with the specified path. */
+    public boolean writeInlineFileData(String path, byte[] data) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("path", path );
+        values.put("data", data );
+        return upsert( fileDataTable, values );
+    }
+
+    /**
+     * Write inline data for the file with the specified path through the write-behind buffer.
+     * Data written this way may be lost if the process dies before the buffer is flushed, so
+     * should only be used for data which can be fetched again.
+     */
+    public boolean writeInlineFileDataBehind(String path, byte[] data) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("path", path );
+        values.put("data", data );
+        return writeBehind( fileDataTable, values );
+    }
+
+    /** Delete any inline data for the file with the specified path. */
+    public void deleteInlineFileData(String path) {
+        if( supportsInlineFiles() ) {
+            deleteWhere( fileDataTable, "path=?", path );
+        }
+    }
+
+    /**
+     * Move a downloaded file into inline storage.
+     * The file's contents are written to the database and the file is then deleted.
+     * @return The file's contents; or null if the file can't be read.
+     */
+    public byte[] moveFileInline(String path, File file) {
+        byte[] data = null;
+        InputStream in = null;
+        try {
+            in = new FileInputStream( file );
+            ByteArrayOutputStream out = new ByteArrayOutputStream( (int)file.length() );
+            copy( in, out );
+            data = out.toByteArray();
+        }
+        catch(IOException e) {
+            Log.e( Tag, String.format("Reading %s", file ), e );
+        }
+        finally {
+            close( in );
+        }
+        // The file is a download, so can be downloaded again if the buffered write is lost.
+        if( data != null && writeInlineFileDataBehind( path, data ) ) {
+            file.delete();
+        }
+        return data;
+    }
+
+    /**
+     * Read the contents of the file with the specified path as a string.
+     * Reads the file's inline data, if any, or else the file's cached copy.
+     * @return The file contents; or null if no local copy of the file is found.
+     */
+    public String readFileStringWithPath(String path) {
+        byte[] data = hasInlineFilesets() ? readInlineFileData( path ) : null;
+        if( data != null ) {
+            return new String( data, UTF8 );
+        }
+        String location = getCacheLocationForFileWithPath( path );
+        if( location != null ) {
+            File file = new File( location );
+            if( file.exists() ) {
+                return Files.readString( file );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Unzip a downloaded fileset to the fileset's cache location.
+     * Entries smaller than the fileset's inline threshold are written to the file data table; all
+     * other entries are written to the filesystem under the cache path. Inline entries are held in
+     * memory until the zip file has been unpacked, and are then written in a single transaction,
+     * so that the database isn't held in a transaction while large entries are written to disk.
+     * @param token An optional cancellation token; checked before each entry is unpacked. Inline
+     *              data isn't written if the unzip is cancelled.
+     * @return true if the zip file was unpacked successfully.
+     */
+    public boolean unzipFileset(String category, File zipFile, String cachePath, CancellationToken token) {
+        boolean inline = isInlineFileset( category );
+        int threshold = inline ? filesets.get( category ).getInlineThreshold() : 0;
+        // The inline entries, keyed by path; and the paths of entries written to the filesystem.
+        Map<String,byte[]> inlineEntries = new LinkedHashMap<>();
+        List<String> filePaths = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        boolean ok = false;
+        ZipInputStream zin = null;
+        try {
+            zin = new ZipInputStream( new BufferedInputStream( new FileInputStream( zipFile ) ) );
+            ZipEntry entry;
+            while( (entry = zin.getNextEntry()) != null ) {
+                if( token != null && token.isCancelled() ) {
+                    throw new IOException( token.getReason() );
+                }
+                String path = entry.getName();
+                if( entry.isDirectory() || path.contains("..") ) {
+                    continue;
+                }
+                // Read the entry into memory up to the inline threshold.
+                ByteArrayOutputStream head = new ByteArrayOutputStream();
+                int count;
+                while( head.size() < threshold && (count = zin.read( buffer )) != -1 ) {
+                    head.write( buffer, 0, count );
+                }
+                if( head.size() < threshold ) {
+                    // Whole entry read and is below the threshold, so store inline.
+                    inlineEntries.put( path, head.toByteArray() );
+                }
+                else {
+                    // Entry is too large to store inline; write it to the filesystem.
+                    File file = new File( cachePath, path );
+                    file.getParentFile().mkdirs();
+                    OutputStream out = new FileOutputStream( file );
+                    try {
+                        head.writeTo( out );
+                        copy( zin, out );
+                    }
+                    finally {
+                        close( out );
+                    }
+                    filePaths.add( path );
+                }
+            }
+            ok = true;
+        }
+        catch(IOException e) {
+            Log.e( Tag, String.format("Unzipping %s", zipFile ), e );
+        }
+        finally {
+            close( zin );
+        }
+        if( ok && inline ) {
+            ok = writeUnzippedInlineData( inlineEntries, filePaths );
+            if( ok ) {
+                // Delete any cached copies of the files now stored inline.
+                for( String path : inlineEntries.keySet() ) {
+                    new File( cachePath, path ).delete();
+                }
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Write the inline entries of an unzipped fileset, and delete any previous inline data of the
+     * entries written to the filesystem, in a single transaction.
+     */
+    private boolean writeUnzippedInlineData(Map<String,byte[]> inlineEntries, List<String> filePaths) {
+        synchronized( filesetWriteLock ) {
+            boolean ok = true;
+            beginTransaction();
+            try {
+                for( Map.Entry<String,byte[]> entry : inlineEntries.entrySet() ) {
+                    ok &= writeInlineFileData( entry.getKey(), entry.getValue() );
+                }
+                for( String path : filePaths ) {
+                    deleteInlineFileData( path );
+                }
+            }
+            catch(Exception e) {
+                Log.e( Tag, "Writing inline file data", e );
+                ok = false;
+            }
+            if( ok ) {
+                ok = commitTransaction();
+            }
+            else {
+                rollbackTransaction();
+            }
+            return ok;
+        }
+    }
+
+    /**
+     * Record that a fileset's current version has been downloaded, by setting its previous
+     * fingerprint to its current fingerprint. The fingerprint is written through the write-behind
+     * buffer; if the write is lost then the fileset is downloaded again on the next refresh.
+     */
+    public void updateFilesetFingerprint(String category) {
+        synchronized( filesetWriteLock ) {
+            Record fingerprint = read("fingerprints", category );
+            if( fingerprint != null ) {
+                Map<String,Object> values = new HashMap<>();
+                values.put("category", category );
+                values.put("previous", fingerprint.get("current") );
+                writeBehind("fingerprints", values );
+            }
+        }
+    }
+
+    /** Delete inline file data which no longer has a corresponding file record. */
+    public void pruneInlineFileData() {
+        if( supportsInlineFiles() ) {
+            String where = String.format("path NOT IN (SELECT path FROM %s)", filesTable );
+            deleteWhere( fileDataTable, where );
+        }
+    }
+
+    /** Copy the contents of an input stream to an output stream. */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while( (count = in.read( buffer )) != -1 ) {
+            out.write( buffer, 0, count );
+        }
+    }
+
+    /** Close a stream, ignoring any errors. */
+    private static void close(Closeable stream) {
+        if( stream != null ) {
+            try {
+                stream.close();
+            }
+            catch(IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
     /**
      * Prune ORM related values after applying updates to the database.
      * Deletes records in related tables where the version value (as specified in the table's
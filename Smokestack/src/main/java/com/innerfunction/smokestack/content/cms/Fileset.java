@@ -28,6 +28,12 @@ public class Fileset implements IOCObjectAware {
 
     /** A list of the mapping names supported by the fileset. */
     private JSONArray mappings;
+    /**
+     * A list of the columns read by fileset queries.
+     * Column names are qualified by relation name, e.g. 'files.path', 'post.title' or 'commit.*'.
+     * All columns of the source table and of each mapped table are read if not specified.
+     */
+    private JSONArray columns;
     /**
      * The fileset's caching policy.
      * One of the following strings:
@@ -45,6 +51,18 @@ public class Fileset implements IOCObjectAware {
     private String category;
     /** A flag indicating whether a fileset's content should be downloaded and cached. */
     private boolean cachable;
+    /**
+     * The size, in bytes, below which cached files are stored inline in the file database rather
+     * than as separate files on the filesystem. Defaults to 0, i.e. no files are stored inline.
+     */
+    private int inlineThreshold;
+    /**
+     * A flag indicating whether the fileset's mapping set should be materialized.
+     * When true, the file DB maintains a denormalized table holding the joined source and
+     * mapped table records, which is refreshed after each content update, and fileset queries
+     * read from that table instead of performing the joins.
+     */
+    private boolean materialized;
 
     public void setMappings(JSONArray mappings) {
         this.mappings = mappings;
@@ -54,6 +72,14 @@ public class Fileset implements IOCObjectAware {
         return mappings;
     }
 
+    public void setColumns(JSONArray columns) {
+        this.columns = columns;
+    }
+
+    public JSONArray getColumns() {
+        return columns;
+    }
+
     public void setCache(String cache) {
         this.cache = cache;
         this.cachable = "content".equals( cache ) || "app".equals( cache );
@@ -87,6 +113,22 @@ public class Fileset implements IOCObjectAware {
         return cachable;
     }
 
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    public void setMaterialized(boolean materialized) {
+        this.materialized = materialized;
+    }
+
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
     @Override
     public void notifyIOCObject(Object object, String propertyName) {
         // Record the fileset's category name as the name this object is bound to in its parent
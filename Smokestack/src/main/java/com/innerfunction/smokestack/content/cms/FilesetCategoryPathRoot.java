@@ -16,6 +16,7 @@ package com.innerfunction.smokestack.content.cms;
 import android.database.Cursor;
 import android.os.CancellationSignal;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.innerfunction.http.Client;
 import com.innerfunction.http.Response;
@@ -34,9 +35,11 @@ import com.innerfunction.util.Paths;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * A default path root implementation for access to a single category of fileset contents.
@@ -45,6 +48,16 @@ import java.util.Map;
  */
 public class FilesetCategoryPathRoot implements PathRoot {
 
+    static final String Tag = FilesetCategoryPathRoot.class.getSimpleName();
+
+    /** The name of the query parameter specifying the result order. */
+    static final String OrderByParameter = "orderBy";
+    /**
+     * Pattern for validating order by parameter values.
+     * A comma separated list of qualified column names, each optionally followed by a direction.
+     */
+    static final Pattern OrderByPattern = Pattern.compile("^\\w+\\.\\w+(\\s+(?i:ASC|DESC))?(\\s*,\\s*\\w+\\.\\w+(\\s+(?i:ASC|DESC))?)*$");
+
     /** The fileset being accessed. */
     protected Fileset fileset;
     /** The content repository. */
@@ -85,10 +98,20 @@ public class FilesetCategoryPathRoot implements PathRoot {
 
     /** Query the file database for entries in the current fileset. */
     public ResultSet queryWithParameters(Map<String,Object> parameters) {
+        List<String> columns = fileset != null ? fileset.getColumns() : null;
+        return queryWithParameters( parameters, columns );
+    }
+
+    /**
+     * Query the file database for entries in the current fileset, reading only the specified
+     * columns. Column names are qualified by relation name; a null list reads all columns.
+     */
+    public ResultSet queryWithParameters(Map<String,Object> parameters, List<String> columns) {
 
         List<String> wheres = new ArrayList<>();
         List<String> values = new ArrayList<>();
         List<String> mappings = Collections.emptyList();
+        String orderBy = null;
 
         // Note that category field is qualifed by source table name.
         if( fileset != null ) {
@@ -99,7 +122,20 @@ public class FilesetCategoryPathRoot implements PathRoot {
 
         // Add filters for each of the specified parameters.
         for( String key : parameters.keySet() ) {
-            // Note that parameter names must be qualified by the correct relation name.
+            if( OrderByParameter.equals( key ) ) {
+                // Order by column names must be qualified in the same way as parameter names; e.g.
+                // 'meta.date DESC' orders by a promoted meta key.
+                String value = parameters.get( key ).toString();
+                if( OrderByPattern.matcher( value ).matches() ) {
+                    orderBy = value;
+                }
+                else {
+                    Log.w( Tag, String.format("Ignoring invalid order by: %s", value ) );
+                }
+                continue;
+            }
+            // Note that parameter names must be qualified by the correct relation name. References
+            // to promoted map keys (e.g. 'meta.date') are filtered using the key's pivot table.
             wheres.add( String.format("%s = ?", key ) );
             values.add( parameters.get( key ).toString() );
         }
@@ -107,7 +143,7 @@ public class FilesetCategoryPathRoot implements PathRoot {
         // Join the wheres into a single where clause.
         String where = TextUtils.join(" AND ", wheres );
         // Execute query and return result.
-        return fileDB.getOrm().selectWhere( mappings, where, values );
+        return fileDB.getOrm().selectWhere( mappings, columns, where, values, orderBy );
     }
 
     /** Read a single entry from the file database by key (i.e. file ID). */
@@ -116,6 +152,14 @@ public class FilesetCategoryPathRoot implements PathRoot {
         return orm.selectKey( key, fileset.getMappings() );
     }
 
+    /**
+     * Read multiple entries from the file database by key, e.g. the images referenced by a page
+     * of posts. Returns a map of the entries found, keyed by key.
+     */
+    public Map<String,Record> getRecordsWithKeys(Collection<String> keys) {
+        return orm.selectKeys( keys, fileset.getMappings(), fileset.getColumns() );
+    }
+
     /** Read a single file record from the database by file path. */
     public Record getRecordWithPath(String path) {
         ResultSet rs = orm.selectWhere( fileset.getMappings(), "path = ?", path );
@@ -152,11 +196,23 @@ public class FilesetCategoryPathRoot implements PathRoot {
                 String ext = Paths.extname( path ); // Note that this includes the leading dot.
                 if( fileset != null && ("."+type).equals( ext ) ) {
                     final String mimeType = null; // TODO
+                    final String filePath = path;
+                    final String category = fileset.getCategory();
                     String cachePath = fileDB.getCacheLocationForFileRecord( content );
                     final File cacheFile = new File( cachePath );
                     final boolean cachable = fileset.isCachable();
+                    // Check if the file's data is stored inline in the file DB; only possible if
+                    // inlining is enabled for the fileset.
+                    byte[] inlineData = null;
+                    if( fileDB.isInlineFileset( category ) ) {
+                        inlineData = fileDB.readInlineFileData( path );
+                    }
+                    if( inlineData != null ) {
+                        // Inline copy found, respond with contents.
+                        response.respondWithData( inlineData, mimeType );
+                    }
                     // Check if a local copy of the file exists in the cache.
-                    if( cachable && cacheFile.exists() ) {
+                    else if( cachable && cacheFile.exists() ) {
                         // Local copy found, respond with contents.
                         response.respondWithFileData( cacheFile, mimeType );
                     }
@@ -168,6 +224,14 @@ public class FilesetCategoryPathRoot implements PathRoot {
                                 @Override
                                 public Response result(Response httpResponse) {
                                     File downloadFile = httpResponse.getDataFile();
+                                    // If small enough then store the file inline in the file DB.
+                                    if( fileDB.isInlineFileSize( category, downloadFile.length() ) ) {
+                                        byte[] data = fileDB.moveFileInline( filePath, downloadFile );
+                                        if( data != null ) {
+                                            response.respondWithData( data, mimeType );
+                                            return httpResponse;
+                                        }
+                                    }
                                     // If cachable then move file to cache.
                                     if( cachable ) {
                                         Files.mv( downloadFile, cacheFile );
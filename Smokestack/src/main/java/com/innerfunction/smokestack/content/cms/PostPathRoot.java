@@ -17,12 +17,9 @@ import android.util.Log;
 
 import com.innerfunction.smokestack.content.AuthorityResponse;
 import com.innerfunction.smokestack.db.Record;
-import com.innerfunction.util.Files;
 import com.samskivert.mustache.Mustache;
 import com.samskivert.mustache.MustacheException;
 
-import java.io.File;
-
 /**
  * A path root providing post content.
  *
@@ -40,21 +37,18 @@ public class PostPathRoot extends FilesetCategoryPathRoot {
     public String renderPostContent(Record post) {
         String postType = post.getValueAsString("posts.type");
         String postHTML = null;
-        // Resolve the client template to use to render the post.
+        // Resolve the client template to use to render the post. Note that templates may be
+        // stored inline in the file DB or as cached files.
         String templateFilename = String.format("_templates/post-%s.html", postType );
-        String templatePath = fileDB.getCacheLocationForFileWithPath( templateFilename );
-        File templateFile = new File( templatePath );
-        if( !templateFile.exists() ) {
-            templatePath = fileDB.getCacheLocationForFileWithPath("_templates/post.html");
-            templateFile = new File( templatePath );
-            if( !templateFile.exists() ) {
+        String template = fileDB.readFileStringWithPath( templateFilename );
+        if( template == null ) {
+            template = fileDB.readFileStringWithPath("_templates/post.html");
+            if( template == null ) {
                 Log.w( Tag, String.format("Client template not found for post type %s", postType ) );
-                templateFile = null;
             }
         }
-        if( templateFile != null ) {
-            // Load the template and render the post.
-            String template = Files.readString( templateFile );
+        if( template != null ) {
+            // Render the post.
             try {
                 postHTML = Mustache.compiler().compile( template ).execute( post );
             }
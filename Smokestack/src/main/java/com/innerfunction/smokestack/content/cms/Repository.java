@@ -275,25 +275,25 @@ public class Repository extends AbstractAuthority implements MessageReceiver {
         /** The file database settings. */
         private JSONObject fileDB = new JSONObject( m(
             kv("name",      "$dbName"),
-            kv("version",   1 ),
+            kv("version",   3 ),
             kv("tables", m(
                 kv("files", m(
                     kv("columns", m(
                         kv("id",            m( kv("type", "INTEGER"), kv("tag", "id") ) ),
                         kv("path",          m( kv("type", "STRING") ) ),
-                        kv("category",      m( kv("type", "STRING") ) ),
-                        kv("status",        m( kv("type", "STRING") ) ),
-                        kv("commit",        m( kv("type", "STRING"), kv("tag", "version") ) )
+                        kv("category",      m( kv("type", "STRING"), kv("interned", true ) ) ),
+                        kv("status",        m( kv("type", "STRING"), kv("interned", true ) ) ),
+                        kv("commit",        m( kv("type", "STRING"), kv("tag", "version"), kv("interned", true ) ) )
                     ))
                 )),
                 kv("posts", m(
                     kv("columns", m(
                         kv("id",            m( kv("type", "INTEGER"), kv("tag", "id") ) ),
-                        kv("type",          m( kv("type", "STRING") ) ),
+                        kv("type",          m( kv("type", "STRING"), kv("interned", true ) ) ),
                         kv("title",         m( kv("type", "STRING") ) ),
-                        kv("body",          m( kv("type", "STRING") ) ),
+                        kv("body",          m( kv("type", "STRING"), kv("compressed", true ) ) ),
                         kv("image",         m( kv("type", "INTEGER") ) ),
-                        kv("commit",        m( kv("type", "STRING"), kv("tag", "version") ) )
+                        kv("commit",        m( kv("type", "STRING"), kv("tag", "version"), kv("interned", true ) ) )
                     ))
                 )),
                 kv("commits", m(
@@ -307,9 +307,25 @@ public class Repository extends AbstractAuthority implements MessageReceiver {
                     kv("columns", m(
                         kv("id",            m( kv("type", "STRING"),  kv("tag", "id"), kv("format", "{fileid}:{key}") ) ),
                         kv("fileid",        m( kv("type", "INTEGER"), kv("tag", "ownerid") ) ),
-                        kv("key",           m( kv("type", "STRING"),  kv("tag", "key") ) ),
+                        kv("key",           m( kv("type", "STRING"),  kv("tag", "key"), kv("interned", true ) ) ),
                         kv("value",         m( kv("type", "STRING") ) ),
-                        kv("commit",        m( kv("type", "STRING"),  kv("tag", "version") ) )
+                        kv("commit",        m( kv("type", "STRING"),  kv("tag", "version"), kv("interned", true ) ) )
+                    ))
+                )),
+                kv("filedata", m(
+                    kv("since",     2 ),
+                    kv("cache",     true ),
+                    kv("columns", m(
+                        kv("path",          m( kv("type", "TEXT PRIMARY KEY"), kv("tag", "id") ) ),
+                        kv("data",          m( kv("type", "BLOB") ) )
+                    ))
+                )),
+                kv("fingerprints", m(
+                    kv("since",     3 ),
+                    kv("columns", m(
+                        kv("category",      m( kv("type", "TEXT PRIMARY KEY"), kv("tag", "id") ) ),
+                        kv("current",       m( kv("type", "STRING") ) ),
+                        kv("previous",      m( kv("type", "STRING") ) )
                     ))
                 ))
             )),
@@ -368,8 +384,8 @@ public class Repository extends AbstractAuthority implements MessageReceiver {
                 kv("-class", "com.innerfunction.smokestack.content.cms.FilesetCategoryPathRoot")
             ))
         ));
-        /** The content refresh interval, in minutes. */
-        private float refreshInterval = 1.0f; // Refresh once per minute.
+        /** The content refresh interval, in minutes; 0 (the default) disables periodic refreshes. */
+        private float refreshInterval = 0;
         /** An action to be performed after a logout. e.g. after the server returns a 401. */
         private String logoutAction;
 
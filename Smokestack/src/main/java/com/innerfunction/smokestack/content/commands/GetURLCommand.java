@@ -16,9 +16,10 @@ package com.innerfunction.smokestack.content.commands;
 import com.innerfunction.http.Client;
 import com.innerfunction.http.Response;
 import com.innerfunction.q.Q;
-import com.innerfunction.smokestack.commands.Command;
 import com.innerfunction.smokestack.commands.CommandList;
 import com.innerfunction.smokestack.commands.CommandScheduler;
+import com.innerfunction.smokestack.commands.RetryPolicy;
+import com.innerfunction.smokestack.commands.RetryableCommand;
 import com.innerfunction.util.Files;
 
 import android.os.Handler;
@@ -30,16 +31,15 @@ import java.util.List;
 
 /**
  * A command to get the contents of a URL and write it to a file.
- * Arguments: <url> <filename> <retries>
+ * Arguments: <url> <filename>
  * - url:       The URL to fetch.
  * - filename:  The name of the file to write the result to.
- * - attempt:   The number of attempts made to fetch the URL. Defaults to 0 and is incremented after
- *              each failed attempt. The command fails once maxRetries number of attempts has been
- *              made.
+ * Failed requests are retried by the command scheduler, with exponential backoff, until
+ * maxRetries number of attempts has been made.
  *
  * Attached by juliangoacher on 11/07/16.
  */
-public class GetURLCommand implements Command {
+public class GetURLCommand implements RetryableCommand {
 
     static final int DefaultMaxRetries = 3;
     static final float RequestWindowSize = 5;
@@ -48,8 +48,6 @@ public class GetURLCommand implements Command {
     private Client httpClient;
     /** A promise which will be resolved once the URL is fetched. */
     private Q.Promise<CommandList> promise;
-    /** The name the command was invoked under. Needed for queueing retries. */
-    private String commandName;
     /** The URL to fetch. */
     private String url;
     /** The name of the file to write the URL result to. */
@@ -59,8 +57,13 @@ public class GetURLCommand implements Command {
      * Used to control request rates.
      */
     private List<Long> requestWindow = new ArrayList<>();
-    /** The maximum number of times a failed request should be retried before the command fails. */
-    private int maxRetries = DefaultMaxRetries;
+    /** The command's retry policy. Requests for malformed URLs aren't retried. */
+    private RetryPolicy retryPolicy = new RetryPolicy( DefaultMaxRetries, 1000, 60000 ) {
+        @Override
+        public boolean isRetryable(Exception e) {
+            return !(e instanceof MalformedURLException);
+        }
+    };
     /** The maximum number of requests per minute. Used to throttle requests. */
     private float maxRequestsPerMinute;
     /** An object used to schedule delayed commands. Used when throttling requests. */
@@ -72,16 +75,20 @@ public class GetURLCommand implements Command {
     }
 
     public void setMaxRetries(int max) {
-        this.maxRetries = max;
+        retryPolicy.setMaxAttempts( max );
     }
 
     public void setMaxRequestsPerMinute(float max) {
         this.maxRequestsPerMinute = max;
     }
 
+    @Override
+    public RetryPolicy getRetryPolicy(String name) {
+        return retryPolicy;
+    }
+
     @Override
     public Q.Promise<CommandList> execute(String name, List args) {
-        this.commandName = name;
         this.promise = new Q.Promise<>();
 
         if( args.size() > 1 ) {
@@ -89,10 +96,6 @@ public class GetURLCommand implements Command {
             this.url = args.get( 0 ).toString();
             this.filename = args.get( 1 ).toString();
 
-            final int previousAttempts = (args.size() > 2)
-                ? Integer.parseInt( args.get( 2 ).toString() )
-                : 0;
-
             Runnable request = new Runnable() {
                 @Override
                 public void run() {
@@ -115,22 +118,8 @@ public class GetURLCommand implements Command {
                         } )
                         .error( new Q.Promise.ErrorCallback() {
                             public void error(Exception e) {
-                                if( e instanceof MalformedURLException ) {
-                                    // No point retrying if URL is bad.
-                                    promise.reject( e );
-                                }
-                                else {
-                                    // Check for retries.
-                                    int attempts = previousAttempts + 1;
-                                    if( attempts < maxRetries ) {
-                                        CommandList commands = new CommandList();
-                                        commands.addCommand( commandName, url, attempts );
-                                        promise.resolve( commands );
-                                    }
-                                    else {
-                                        promise.reject( "All retries used" );
-                                    }
-                                }
+                                // Retries are scheduled according to the retry policy.
+                                promise.reject( e );
                             }
                         } );
                 }
@@ -18,11 +18,28 @@ package com.innerfunction.smokestack.db;
  */
 public class Column {
 
+    /**
+     * SQLite column type affinities.
+     * Determines the storage class used when binding values to a column.
+     * @see <a href="https://www.sqlite.org/datatype3.html#type_affinity">SQLite type affinity</a>
+     */
+    public enum Affinity { INTEGER, REAL, TEXT, BLOB, NUMERIC }
+
     protected String name;
     protected String type;
     protected String tag;
     protected int since = -1;
     protected int until = -1;
+    /**
+     * Flag indicating that the column's string values should be interned when read.
+     * Should be set on columns with a small number of distinct values repeated over many rows.
+     */
+    protected boolean interned;
+    /**
+     * Flag indicating that the column's text values should be stored compressed.
+     * Should be set on columns holding large text values; see TextCompression.
+     */
+    protected boolean compressed;
 
     public Column() {}
 
@@ -49,6 +66,40 @@ public class Column {
         this.tag = tag;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Return the column's type affinity.
+     * The affinity is derived from the declared column type using the same rules as SQLite, so
+     * e.g. 'INTEGER PRIMARY KEY' has INTEGER affinity and 'VARCHAR(20)' has TEXT affinity.
+     */
+    public Affinity getAffinity() {
+        String type = this.type == null ? "" : this.type.toUpperCase();
+        if( type.contains("INT") ) {
+            return Affinity.INTEGER;
+        }
+        if( type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT") ) {
+            return Affinity.TEXT;
+        }
+        if( type.contains("BLOB") || type.length() == 0 ) {
+            return Affinity.BLOB;
+        }
+        if( type.contains("REAL") || type.contains("FLOA") || type.contains("DOUB") ) {
+            return Affinity.REAL;
+        }
+        return Affinity.NUMERIC;
+    }
+
     public void setSince(int since) {
         this.since = since;
     }
@@ -56,4 +107,20 @@ public class Column {
     public void setUntil(int until) {
         this.until = until;
     }
+
+    public void setInterned(boolean interned) {
+        this.interned = interned;
+    }
+
+    public boolean isInterned() {
+        return interned;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
 }
@@ -15,23 +15,37 @@ package com.innerfunction.smokestack.db;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.innerfunction.scffld.IOCContextAware;
 import com.innerfunction.scffld.Service;
 import com.innerfunction.util.Files;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A SQL database wrapper.
@@ -43,7 +57,7 @@ import java.util.Set;
  *
  * Attached by juliangoacher on 09/05/16.
  */
-public class DB implements Service, IOCContextAware {
+public class DB implements Service, IOCContextAware, QueryPlanAdvisor.Explainer {
 
     static final String Tag = DB.class.getSimpleName();
 
@@ -57,16 +71,72 @@ public class DB implements Service, IOCContextAware {
      */
     public static final String NullParameterValue = DB.class.getCanonicalName()+"#NullParameterValue";
 
+    /**
+     * The maximum number of values bound in a single IN (...) list.
+     * Kept well below SQLite's default limit of 999 bound parameters per statement.
+     */
+    public static final int MaxINListSize = 500;
+    /** The maximum number of values held in the database's dictionary of interned strings. */
+    static final int MaxInternedStrings = 2048;
+    /** The minimum number of result rows before string columns are automatically interned. */
+    static final int AutoInternMinRows = 64;
+    /**
+     * The maximum number of distinct values in an automatically interned column.
+     * Interning of a column stops once more distinct values than this have been read.
+     */
+    static final int AutoInternMaxValues = 32;
+    /**
+     * The maximum length of a value in an automatically interned column.
+     * Interning of a column stops once a longer value is read, as long values are rarely repeated.
+     */
+    static final int AutoInternMaxLength = 256;
+
+    /**
+     * Database storage types.
+     * <ul>
+     * <li>File: A persistent database file, located by the database name.</li>
+     * <li>Memory: An in-memory database, discarded when the service is stopped. In-memory databases
+     *   can't be attached to other databases.</li>
+     * <li>Temp: A database in a temporary file under the app's cache directory, deleted when the
+     *   service is stopped. Can be attached to other databases, e.g. for staging data.</li>
+     * </ul>
+     */
+    public enum Storage { File, Memory, Temp }
+
     /** The android context - needed for the database helper. */
     private Context androidContext;
     /** A helper for managing database initializations and upgrades. */
-    private DBHelper helper;
+    private volatile DBHelper helper;
     /** A writeable connection to the database. */
-    private SQLiteDatabase db;
+    private volatile SQLiteDatabase db;
+    /**
+     * A lock on the database connection. Operations on the connection hold the read lock, and
+     * transactions hold it until they are committed or rolled back; the write lock is held while
+     * the connection is replaced (see replaceDatabaseFile()).
+     */
+    private final ReentrantReadWriteLock connectionLock = new ReentrantReadWriteLock();
+    /**
+     * A count of write operations which changed the database; excluding writes to cache tables,
+     * and write-behind flushes, which are replayed after a file replacement.
+     */
+    private final AtomicLong changeCount = new AtomicLong();
+    /** The change count when the database file was last copied; or -1 if it hasn't been copied. */
+    private volatile long copyChangeCount = -1;
+    /** The thread flushing the write-behind buffer; its writes aren't counted in changeCount. */
+    private volatile Thread flushThread;
+    /**
+     * Write-behind writes flushed since the database file was last copied, in flush order; these
+     * are replayed if the copy replaces the database file.
+     */
+    private final List<Map<String,Map<String,WriteBehindBuffer.PendingWrite>>> flushedSinceCopy = new ArrayList<>();
+    /** The names of cache tables; see Table.setCache(). */
+    private Set<String> cacheTableNames = new HashSet<>();
     /** A map of tagged column names, by table. */
     private Map<String,Map<String,String>> taggedTableColumns = new HashMap<>();
     /** A map of column names, by table. */
     private Map<String,Set<String>> tableColumnNames = new HashMap<>();
+    /** A map of column definitions, keyed by column name, by table. */
+    private Map<String,Map<String,Column>> tableColumns = new HashMap<>();
     /** The database name. */
     private String name;
     /** The current database schema version number. */
@@ -82,6 +152,32 @@ public class DB implements Service, IOCContextAware {
      * If specified, then this will be copied before the database is first used.
      */
     private String initialCopyPath;
+    /** An optional advisor recording executed statements for query plan analysis. */
+    private QueryPlanAdvisor queryPlanAdvisor;
+    /** Optional database maintenance; tracks table changes when set. */
+    private DBMaintenance maintenance;
+    /** The database's storage type. */
+    private Storage storage = Storage.File;
+    /** The database file of a temporary database. */
+    private File tempFile;
+    /** Optional buffer for small, frequent row writes. */
+    private WriteBehindBuffer writeBehindBuffer;
+    /**
+     * The names of columns whose values are interned.
+     * Columns are matched by unqualified name, so that ORM result columns qualified with a
+     * relation name also match.
+     */
+    private Set<String> internedColumnNames = new HashSet<>();
+    /** The names of columns whose values are compressed; matched in the same way as interned columns. */
+    private Set<String> compressedColumnNames = new HashSet<>();
+    /** A dictionary of interned values of columns declared as interned. */
+    private StringDictionary stringDictionary = new StringDictionary( MaxInternedStrings );
+    /**
+     * Flag indicating whether to detect and intern low cardinality string columns in large
+     * query results, for columns not declared as interned. Off by default; compressed columns are
+     * never interned automatically.
+     */
+    private boolean autoInternStrings;
 
     public DB() {
         this.name = "semo";
@@ -132,17 +228,49 @@ public class DB implements Service, IOCContextAware {
             Table table = tables.get( name );
             Map<String, String> columnTags = new HashMap<>();
             Set<String> columnNames = new HashSet<>();
+            Map<String, Column> columns = new HashMap<>();
             for( Column column : table.columns ) {
                 if( column.tag != null ) {
                     columnTags.put( column.tag, column.name );
                 }
+                if( column.interned ) {
+                    internedColumnNames.add( column.name );
+                }
+                if( column.compressed ) {
+                    compressedColumnNames.add( column.name );
+                }
                 columnNames.add( column.name );
+                columns.put( column.name, column );
             }
             taggedTableColumns.put( table.name, columnTags );
             tableColumnNames.put( table.name, columnNames );
+            tableColumns.put( table.name, columns );
+            if( table.cache ) {
+                cacheTableNames.add( table.name );
+            }
+        }
+        if( queryPlanAdvisor != null ) {
+            queryPlanAdvisor.setTables( tables );
         }
     }
 
+    public void setAutoInternStrings(boolean autoIntern) {
+        this.autoInternStrings = autoIntern;
+    }
+
+    /**
+     * Return the database's dictionary of interned strings.
+     * The dictionary's statistics include values interned automatically in large query results,
+     * and give an estimate of the heap saved by interning.
+     */
+    public StringDictionary getStringDictionary() {
+        return stringDictionary;
+    }
+
+    public Context getAndroidContext() {
+        return androidContext;
+    }
+
     public Map<String,Table> getTables() {
         return tables;
     }
@@ -155,6 +283,310 @@ public class DB implements Service, IOCContextAware {
         this.orm = orm;
     }
 
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Return the name passed to the database open helper.
+     * This is the database name for file databases; the absolute path of the database file for
+     * temporary databases; and null for in-memory databases.
+     */
+    String getDatabaseName() {
+        switch( storage ) {
+        case Memory:
+            return null;
+        case Temp:
+            return tempFile != null ? tempFile.getAbsolutePath() : null;
+        default:
+            return name;
+        }
+    }
+
+    /** Return the path to the database file; or null if the database isn't open or is in-memory. */
+    public String getPath() {
+        return db != null && storage != Storage.Memory ? db.getPath() : null;
+    }
+
+    /**
+     * Attach another database to this database's connection.
+     * Tables in the attached database can then be referenced in SQL using the alias as a schema
+     * name, e.g. to merge staged data into this database using mergeFromAttached(). The other
+     * database must be a file or temporary database. Can't be called within a transaction.
+     * @param other The database to attach.
+     * @param alias The schema name to attach the database as.
+     * @return true if the database was attached.
+     */
+    public boolean attach(DB other, String alias) {
+        acquireConnection();
+        try {
+            String path = other.getPath();
+            if( path == null ) {
+                Log.w( Tag, String.format("Can't attach database %s; database isn't open or is in-memory", other.getName() ) );
+                return false;
+            }
+            // Ensure that all of the other database's data is visible through the attachment.
+            other.flushWrites();
+            try {
+                db.execSQL("ATTACH DATABASE ? AS "+alias, new Object[]{ path } );
+                return true;
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Attaching %s as %s", path, alias ), e );
+            }
+            return false;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /** Detach a database previously attached with attach(). */
+    public boolean detach(String alias) {
+        acquireConnection();
+        try {
+            try {
+                db.execSQL("DETACH DATABASE "+alias );
+                return true;
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Detaching %s", alias ), e );
+            }
+            return false;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Merge rows from a table in an attached database into the same named table in this database.
+     * Rows are copied using a single INSERT OR REPLACE ... SELECT statement, so that no row data
+     * passes through Java. Only columns defined in this database's schema for the table are copied;
+     * the attached table must have the same columns.
+     * @param alias The schema name of the attached database.
+     * @param table The table to merge.
+     * @param where An optional filter on the rows to merge; or null to merge all rows.
+     * @param args  Arguments to the filter.
+     * @return The number of rows merged; or -1 if the merge fails.
+     */
+    public int mergeFromAttached(String alias, String table, String where, String... args) {
+        acquireConnection();
+        try {
+            Table tableDef = tables.get( table );
+            if( tableDef == null ) {
+                Log.w( Tag, String.format("Can't merge unknown table %s", table ) );
+                return -1;
+            }
+            flushWritesForTable( table );
+            List<String> columns = new ArrayList<>();
+            for( Column column : tableDef.columns ) {
+                columns.add( column.name );
+            }
+            String columnList = TextUtils.join(",", columns );
+            String sql = String.format("INSERT OR REPLACE INTO %s (%s) SELECT %s FROM %s.%s",
+                table, columnList, columnList, alias, table );
+            if( where != null ) {
+                sql = String.format("%s WHERE %s", sql, where );
+            }
+            int count = -1;
+            SQLiteStatement statement = null;
+            try {
+                statement = db.compileStatement( sql );
+                statement.bindAllArgsAsStrings( replaceNullParameterValue( args ) );
+                count = statement.executeUpdateDelete();
+                didChangeTable( table, count );
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Merging %s.%s", alias, table ), e );
+            }
+            finally {
+                if( statement != null ) {
+                    statement.close();
+                }
+            }
+            return count;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Copy the database file to another location.
+     * The WAL is checkpointed and the copy is then made within an exclusive transaction, so that it
+     * is consistent; other writers are blocked only for the duration of the file copy. Any WAL
+     * frames which couldn't be checkpointed are copied with the file.
+     * @param target    The location to copy the database to; any file at the location, and any
+     *                  journal files of that file, are replaced.
+     * @return true if the database was copied.
+     */
+    public boolean copyDatabaseFile(File target) {
+        String path = getPath();
+        if( path == null ) {
+            Log.w( Tag, String.format("Can't copy database %s; database isn't open or is in-memory", name ) );
+            return false;
+        }
+        flushWrites();
+        checkpointWAL();
+        deleteJournalFiles( target );
+        boolean ok = false;
+        beginTransaction();
+        try {
+            copyFile( new File( path ), target );
+            File walFile = new File( path+"-wal");
+            if( walFile.length() > 0 ) {
+                copyFile( walFile, new File( target.getPath()+"-wal") );
+            }
+            copyChangeCount = changeCount.get();
+            synchronized( flushedSinceCopy ) {
+                flushedSinceCopy.clear();
+            }
+            ok = true;
+        }
+        catch(IOException e) {
+            Log.e( Tag, String.format("Copying %s to %s", path, target ), e );
+        }
+        finally {
+            rollbackTransaction();
+        }
+        return ok;
+    }
+
+    /**
+     * Replace this database's file with another database's file.
+     * The other database is stopped, this database's connection is closed, and the other database's
+     * file is moved over this database's file before a new connection is opened on the moved file.
+     * Operations and transactions already in progress on other threads complete before the
+     * connection is closed; operations started during the replacement wait for the new connection.
+     * The replacement is abandoned if this database was written to after it was last copied (see
+     * copyDatabaseFile()), as those writes would otherwise be lost; except for writes to cache
+     * tables, which are discarded, and write-behind writes, which are replayed into the replacement
+     * database. Intended for swapping in a
+     * shadow copy of the database built on a separate connection. Must not be called within a
+     * transaction on this database.
+     * @param other A file database, located in the same directory as this database.
+     * @return true if the database file was replaced.
+     */
+    public boolean replaceDatabaseFile(DB other) {
+        String path = other.getPath();
+        if( storage != Storage.File || path == null ) {
+            Log.w( Tag, String.format("Can't replace database %s with %s", name, other.getName() ) );
+            return false;
+        }
+        if( connectionLock.getReadHoldCount() > 0 ) {
+            Log.w( Tag, String.format("Can't replace database %s within a transaction", name ) );
+            return false;
+        }
+        other.stopService();
+        File source = new File( path );
+        File target = androidContext.getDatabasePath( name );
+        connectionLock.writeLock().lock();
+        try {
+            if( changeCount.get() != copyChangeCount ) {
+                Log.w( Tag, String.format("Database %s changed after it was copied; not replacing with %s", name, other.getName() ) );
+                return false;
+            }
+            // Close the old connection before the move, so that it can't later checkpoint into or
+            // delete the journal files of the new database.
+            helper.close();
+            deleteJournalFiles( target );
+            boolean moved = source.renameTo( target );
+            if( !moved ) {
+                Log.e( Tag, String.format("Failed to move %s to %s", source, target ) );
+            }
+            // Reopen the database; on the original file, if the move failed.
+            this.helper = new DBHelper( androidContext, this );
+            this.db = helper.getWritableDatabase();
+            copyChangeCount = -1;
+            synchronized( flushedSinceCopy ) {
+                if( moved ) {
+                    // Replay write-behind writes flushed to the old file since it was copied; they
+                    // are written to the new file, before any writes still buffered, on the next flush.
+                    for( int i = flushedSinceCopy.size() - 1; i >= 0; i-- ) {
+                        writeBehindBuffer.restore( flushedSinceCopy.get( i ) );
+                    }
+                }
+                flushedSinceCopy.clear();
+            }
+            if( moved ) {
+                Log.i( Tag, String.format("Replaced database %s with %s", name, other.getName() ) );
+            }
+            return moved;
+        }
+        finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    /** Checkpoint the WAL, if the database is in WAL mode, and truncate the WAL file. */
+    private void checkpointWAL() {
+        acquireConnection();
+        try {
+            Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null );
+            cursor.moveToFirst();
+            cursor.close();
+        }
+        catch(SQLException e) {
+            Log.w( Tag, String.format("Checkpointing %s", name ), e );
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /** Delete any journal files belonging to a database file. */
+    private static void deleteJournalFiles(File file) {
+        for( String suffix : new String[]{ "-wal", "-shm", "-journal" } ) {
+            new File( file.getPath()+suffix ).delete();
+        }
+    }
+
+    /** Copy a file. */
+    private static void copyFile(File source, File target) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream( source );
+            out = new FileOutputStream( target );
+            byte[] buffer = new byte[65536];
+            int count;
+            while( (count = in.read( buffer )) != -1 ) {
+                out.write( buffer, 0, count );
+            }
+        }
+        finally {
+            close( in );
+            close( out );
+        }
+    }
+
+    /** Acquire the database connection for an operation; see connectionLock. */
+    private void acquireConnection() {
+        connectionLock.readLock().lock();
+    }
+
+    /** Release the database connection after an operation. */
+    private void releaseConnection() {
+        connectionLock.readLock().unlock();
+    }
+
+    /** Close a stream, ignoring any errors. */
+    private static void close(Closeable stream) {
+        if( stream != null ) {
+            try {
+                stream.close();
+            }
+            catch(IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
     public String getInitialCopyPath() {
         return initialCopyPath;
     }
@@ -163,14 +595,258 @@ public class DB implements Service, IOCContextAware {
         this.initialCopyPath = path;
     }
 
+    /**
+     * Set a query plan advisor.
+     * Enables analysis mode; each distinct statement executed through the query methods is
+     * recorded with the advisor. Set to null to disable.
+     */
+    public void setQueryPlanAdvisor(QueryPlanAdvisor advisor) {
+        this.queryPlanAdvisor = advisor;
+        if( advisor != null ) {
+            advisor.setTables( tables );
+        }
+    }
+
+    public QueryPlanAdvisor getQueryPlanAdvisor() {
+        return queryPlanAdvisor;
+    }
+
+    /**
+     * Set the database maintenance configuration.
+     * Enables tracking of the number of rows changed in each table.
+     */
+    public void setMaintenance(DBMaintenance maintenance) {
+        this.maintenance = maintenance;
+    }
+
+    public DBMaintenance getMaintenance() {
+        return maintenance;
+    }
+
+    /** Test whether enough changes have been made to the database to make maintenance worthwhile. */
+    public boolean isMaintenanceDue() {
+        return maintenance != null && maintenance.isMaintenanceDue();
+    }
+
+    /**
+     * Perform database maintenance.
+     * Analyzes changed tables, releases free pages and checkpoints the WAL, as needed. Shouldn't
+     * be called from within a transaction.
+     * @return A report of the work done; or null if maintenance isn't configured.
+     */
+    public DBMaintenance.Report performMaintenance() {
+        acquireConnection();
+        try {
+            if( maintenance == null ) {
+                return null;
+            }
+            return maintenance.perform( db );
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Set a write-behind buffer.
+     * Enables buffering of row writes made through writeBehind() and deleteBehind().
+     */
+    public void setWriteBehindBuffer(WriteBehindBuffer buffer) {
+        this.writeBehindBuffer = buffer;
+        if( buffer != null ) {
+            buffer.attach( this );
+        }
+    }
+
+    public WriteBehindBuffer getWriteBehindBuffer() {
+        return writeBehindBuffer;
+    }
+
+    /**
+     * Write values to a table row through the write-behind buffer.
+     * The values are upserted into the row when the buffer is next flushed; if no buffer is
+     * configured then the values are upserted immediately.
+     * @param table     The table to write to.
+     * @param values    The values to write. A value must be supplied for the ID column.
+     * @return false if the values can't be written.
+     */
+    public boolean writeBehind(String table, Map<String,Object> values) {
+        if( writeBehindBuffer == null || !writeBehindBuffer.isBuffering() ) {
+            return upsert( table, values );
+        }
+        String idColumn = getColumnForTag( table, "id" );
+        Object id = idColumn != null ? values.get( idColumn ) : null;
+        if( id == null ) {
+            Log.w( Tag, String.format("No ID value for write-behind to %s", table ));
+            return false;
+        }
+        if( writeBehindBuffer.write( table, id.toString(), values ) ) {
+            return flushWrites();
+        }
+        return true;
+    }
+
+    /**
+     * Delete a table row through the write-behind buffer.
+     * The row is deleted when the buffer is next flushed; if no buffer is configured then the row
+     * is deleted immediately.
+     */
+    public boolean deleteBehind(String table, String id) {
+        if( writeBehindBuffer == null || !writeBehindBuffer.isBuffering() ) {
+            return delete( table, id );
+        }
+        if( writeBehindBuffer.delete( table, id ) ) {
+            return flushWrites();
+        }
+        return true;
+    }
+
+    /**
+     * Flush all pending writes in the write-behind buffer to the database in a single transaction.
+     * If the flush fails then the writes are returned to the buffer.
+     * @return true if all writes were flushed.
+     */
+    public boolean flushWrites() {
+        if( writeBehindBuffer == null || !writeBehindBuffer.hasPendingWrites() ) {
+            return true;
+        }
+        Map<String,Map<String,WriteBehindBuffer.PendingWrite>> writes = writeBehindBuffer.drain();
+        boolean ok = true;
+        beginTransaction();
+        // Whether the file was copied before the flush; checked within the transaction, as copies
+        // are made in a transaction.
+        boolean copied = copyChangeCount >= 0;
+        Thread outerFlushThread = flushThread;
+        flushThread = Thread.currentThread();
+        try {
+            for( String table : writes.keySet() ) {
+                String idColumn = getColumnForTag( table, "id" );
+                Map<String,WriteBehindBuffer.PendingWrite> tableWrites = writes.get( table );
+                for( String id : tableWrites.keySet() ) {
+                    WriteBehindBuffer.PendingWrite write = tableWrites.get( id );
+                    if( write.delete ) {
+                        int count = db.delete( table, String.format("%s=?", idColumn ), new String[]{ id } );
+                        didChangeTable( table, count );
+                    }
+                    if( write.values != null ) {
+                        ok &= upsert( table, write.values );
+                    }
+                }
+            }
+            flushThread = outerFlushThread;
+            if( ok ) {
+                ok = commitTransaction();
+            }
+            else {
+                rollbackTransaction();
+            }
+        }
+        catch(Exception e) {
+            Log.e( Tag, "Flushing writes", e );
+            flushThread = outerFlushThread;
+            rollbackTransaction();
+            ok = false;
+        }
+        if( !ok ) {
+            writeBehindBuffer.restore( writes );
+        }
+        else if( copied ) {
+            synchronized( flushedSinceCopy ) {
+                flushedSinceCopy.add( writes );
+            }
+        }
+        return ok;
+    }
+
+    /** Flush pending writes if any are pending on the named table. */
+    private void flushWritesForTable(String table) {
+        if( writeBehindBuffer != null && writeBehindBuffer.hasPendingWrites( table ) ) {
+            flushWrites();
+        }
+    }
+
+    /** Flush pending writes if any are pending on a table referenced by a SQL statement. */
+    private void flushWritesForSQL(String sql) {
+        if( writeBehindBuffer != null && writeBehindBuffer.hasPendingWrites() && writeBehindBuffer.referencesPendingTable( sql ) ) {
+            flushWrites();
+        }
+    }
+
+    /** Record the number of rows changed in a table. */
+    private void didChangeTable(String table, long count) {
+        if( count > 0 && !cacheTableNames.contains( table ) && flushThread != Thread.currentThread() ) {
+            changeCount.incrementAndGet();
+        }
+        if( maintenance != null ) {
+            maintenance.recordChanges( table, count );
+        }
+    }
+
+    /**
+     * Analyze the query plans of all statements recorded by the query plan advisor.
+     * @return A list of query plan problems; empty if analysis mode isn't enabled.
+     */
+    public List<QueryPlanAdvisor.Finding> analyzeQueryPlans() {
+        if( queryPlanAdvisor == null ) {
+            return new ArrayList<>();
+        }
+        return queryPlanAdvisor.analyze( this );
+    }
+
+    @Override
+    public List<String> explainQueryPlan(String sql, String... args) {
+        acquireConnection();
+        try {
+            List<String> plan = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery("EXPLAIN QUERY PLAN "+sql, replaceNullParameterValue( args.clone() ) );
+                int detailIdx = cursor.getColumnIndex("detail");
+                while( detailIdx > -1 && cursor.moveToNext() ) {
+                    plan.add( cursor.getString( detailIdx ) );
+                }
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Explaining %s", sql ), e );
+            }
+            finally {
+                if( cursor != null ) {
+                    cursor.close();
+                }
+            }
+            return plan;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
     /**
      * Open a writeable database connection and begin a transaction.
      */
     public boolean beginTransaction() {
-        db.beginTransaction();
+        acquireConnection();
+        try {
+            db.beginTransaction();
+        }
+        catch(RuntimeException e) {
+            releaseConnection();
+            throw e;
+        }
         return true;
     }
 
+    /** Test whether the current thread has a transaction open on the database. */
+    public boolean isInTransaction() {
+        acquireConnection();
+        try {
+            return db.inTransaction();
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
     /**
      * Commit a DB transaction.
      */
@@ -184,7 +860,12 @@ public class DB implements Service, IOCContextAware {
             Log.e( Tag, "Committing transaction", e );
         }
         finally {
-            db.endTransaction();
+            try {
+                db.endTransaction();
+            }
+            finally {
+                releaseConnection();
+            }
         }
         return ok;
     }
@@ -193,7 +874,12 @@ public class DB implements Service, IOCContextAware {
      * Rollback a DB transaction.
      */
     public boolean rollbackTransaction() {
-        db.endTransaction();
+        try {
+            db.endTransaction();
+        }
+        finally {
+            releaseConnection();
+        }
         return true;
     }
 
@@ -228,6 +914,27 @@ public class DB implements Service, IOCContextAware {
         return result;
     }
 
+    /**
+     * Return the SQL column list for a query projection on a table.
+     * Only the names of columns which are defined on the table are included in the result.
+     * @param table     A table name.
+     * @param columns   A list of column names; or null to select all columns.
+     * @return A comma separated list of column names, or * if all columns are to be selected.
+     */
+    public String getProjectionSQL(String table, List<String> columns) {
+        if( columns == null || columns.size() == 0 ) {
+            return "*";
+        }
+        List<String> projection = new ArrayList<>();
+        Set<String> columnNames = tableColumnNames.get( table );
+        for( String column : columns ) {
+            if( columnNames == null || columnNames.contains( column ) ) {
+                projection.add( column );
+            }
+        }
+        return projection.size() > 0 ? TextUtils.join(",", projection ) : "*";
+    }
+
     /**
      * Read an object from the database.
      * @param table     The name of the table containing the data.
@@ -235,29 +942,253 @@ public class DB implements Service, IOCContextAware {
      * @return A record object containing the object's values.
      */
     public Record read(String table, String id) {
-        return read( db, table, id );
+        return read( table, id, null );
     }
 
-    private Record read(SQLiteDatabase db, String table, String id) {
-        Record result = null;
-        String idColumn = getColumnForTag( table, "id" );
-        if( idColumn != null ) {
-            result = read( db, table, idColumn, id );
+    /**
+     * Read an object from the database, returning only the specified columns.
+     * @param table     The name of the table containing the data.
+     * @param id        The ID of the object to read.
+     * @param columns   A list of the names of the columns to read; or null to read all columns.
+     * @return A record object containing the object's values.
+     */
+    public Record read(String table, String id, List<String> columns) {
+        acquireConnection();
+        try {
+            Record result = null;
+            String idColumn = getColumnForTag( table, "id" );
+            if( idColumn != null ) {
+                result = read( db, table, idColumn, id, columns );
+                // Apply any pending buffered write.
+                if( writeBehindBuffer != null && writeBehindBuffer.hasPendingWrites( table ) ) {
+                    result = writeBehindBuffer.overlay( table, id, result, columns );
+                }
+            }
+            else {
+                Log.w( Tag, String.format("No ID column found for table %s", table ));
+            }
+            return result;
         }
-        else {
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Read multiple objects from the database.
+     * Objects are read using IN (...) queries, with at most MaxINListSize IDs per query.
+     * @param table     The name of the table containing the data.
+     * @param ids       The IDs of the objects to read.
+     * @param columns   A list of the names of the columns to read; or null to read all columns.
+     *                  The ID column is always read.
+     * @return A map of the objects found, keyed by ID and in the order of the ids argument.
+     */
+    public Map<String,Record> readMany(String table, Collection<String> ids, List<String> columns) {
+        Map<String,Record> result = new LinkedHashMap<>();
+        String idColumn = getColumnForTag( table, "id" );
+        if( idColumn == null ) {
             Log.w( Tag, String.format("No ID column found for table %s", table ));
+            return result;
+        }
+        if( columns != null && columns.size() > 0 && !columns.contains( idColumn ) ) {
+            columns = new ArrayList<>( columns );
+            columns.add( idColumn );
+        }
+        String projection = getProjectionSQL( table, columns );
+        // Read records into a temporary map, so that the result can be ordered by ID.
+        Map<String,Record> records = new HashMap<>();
+        List<String> idList = new ArrayList<>( new LinkedHashSet<>( ids ) );
+        for( int i = 0; i < idList.size(); i += MaxINListSize ) {
+            List<String> chunk = idList.subList( i, Math.min( i + MaxINListSize, idList.size() ) );
+            StringBuilder placeholders = new StringBuilder("?");
+            for( int j = 1; j < chunk.size(); j++ ) {
+                placeholders.append(",?");
+            }
+            String sql = String.format("SELECT %s FROM %s WHERE %s IN (%s)", projection, table, idColumn, placeholders );
+            for( Record record : performQuery( sql, chunk ) ) {
+                records.put( record.getValueAsString( idColumn ), record );
+            }
+        }
+        for( String id : idList ) {
+            Record record = records.get( id );
+            if( record != null ) {
+                result.put( id, record );
+            }
         }
         return result;
     }
 
-    private Record read(SQLiteDatabase db, String table, String idColumn, String id) {
+    /**
+     * Read multiple objects from the database.
+     * @see #readMany(String, Collection, List)
+     */
+    public Map<String,Record> readMany(String table, Collection<String> ids) {
+        return readMany( table, ids, null );
+    }
+
+    /**
+     * Query a table for typed rows.
+     * @param schema    The schema of the typed row class.
+     * @param where     A where clause; or null to read all rows. May include an ORDER BY clause.
+     * @param args      Arguments to the where clause.
+     * @return A list of typed rows.
+     */
+    public <T extends TypedRow> List<T> queryRows(TypedRow.Schema<T> schema, String where, String... args) {
+        acquireConnection();
+        try {
+            String sql = String.format("SELECT %s FROM %s", TextUtils.join(",", schema.getColumnNames() ), schema.getTableName() );
+            if( where != null ) {
+                sql = String.format("%s WHERE %s", sql, where );
+            }
+            flushWritesForTable( schema.getTableName() );
+            if( queryPlanAdvisor != null ) {
+                queryPlanAdvisor.record( sql, args );
+            }
+            List<T> rows = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery( sql, replaceNullParameterValue( args ) );
+                while( cursor.moveToNext() ) {
+                    T row = schema.newRow();
+                    row.readFromCursor( cursor );
+                    rows.add( row );
+                }
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Querying %s", schema.getTableName() ), e );
+            }
+            finally {
+                if( cursor != null ) {
+                    cursor.close();
+                }
+            }
+            return rows;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Read a typed row by ID.
+     * @return The row; or null if not found, or if the table has no ID column.
+     */
+    public <T extends TypedRow> T readRow(TypedRow.Schema<T> schema, String id) {
+        String idColumn = schema.getIDColumn();
+        if( idColumn == null ) {
+            Log.w( Tag, String.format("No ID column found for table %s", schema.getTableName() ));
+            return null;
+        }
+        List<T> rows = queryRows( schema, String.format("%s=?", idColumn ), id );
+        return rows.size() > 0 ? rows.get( 0 ) : null;
+    }
+
+    /**
+     * Insert a typed row.
+     * @return The ID of the inserted row; or -1 if the insert fails.
+     */
+    public long insertRow(TypedRow row) {
+        return writeRow( row, "INSERT" );
+    }
+
+    /**
+     * Insert or replace a typed row.
+     * Unlike upsert(), all of the row's columns are written.
+     * @return The ID of the written row; or -1 if the write fails.
+     */
+    public long upsertRow(TypedRow row) {
+        return writeRow( row, "INSERT OR REPLACE" );
+    }
+
+    /**
+     * Insert or replace a list of typed rows of the same type.
+     * The rows are written in a single transaction using a single compiled statement.
+     * @return true if all rows were written.
+     */
+    public boolean upsertRows(List<? extends TypedRow> rows) {
+        acquireConnection();
+        try {
+            if( rows.size() == 0 ) {
+                return true;
+            }
+            boolean ok = true;
+            TypedRow.Schema<?> schema = rows.get( 0 ).getSchema();
+            SQLiteStatement statement = null;
+            db.beginTransaction();
+            try {
+                statement = db.compileStatement( getWriteRowSQL( schema, "INSERT OR REPLACE") );
+                for( TypedRow row : rows ) {
+                    statement.clearBindings();
+                    row.bindToStatement( statement );
+                    ok &= statement.executeInsert() > -1;
+                }
+                db.setTransactionSuccessful();
+                didChangeTable( schema.getTableName(), rows.size() );
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Writing rows to %s", schema.getTableName() ), e );
+                ok = false;
+            }
+            finally {
+                if( statement != null ) {
+                    statement.close();
+                }
+                db.endTransaction();
+            }
+            return ok;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /** Write a typed row using the specified insert verb. */
+    private long writeRow(TypedRow row, String verb) {
+        acquireConnection();
+        try {
+            long id = -1;
+            TypedRow.Schema<?> schema = row.getSchema();
+            SQLiteStatement statement = null;
+            try {
+                statement = db.compileStatement( getWriteRowSQL( schema, verb ) );
+                row.bindToStatement( statement );
+                id = statement.executeInsert();
+                didChangeTable( schema.getTableName(), 1 );
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Writing row to %s", schema.getTableName() ), e );
+            }
+            finally {
+                if( statement != null ) {
+                    statement.close();
+                }
+            }
+            return id;
+        }
+        finally {
+            releaseConnection();
+        }
+    }
+
+    /** Return the SQL for writing a typed row. */
+    private String getWriteRowSQL(TypedRow.Schema<?> schema, String verb) {
+        String[] columns = schema.getColumnNames();
+        StringBuilder placeholders = new StringBuilder("?");
+        for( int i = 1; i < columns.length; i++ ) {
+            placeholders.append(",?");
+        }
+        return String.format("%s INTO %s (%s) VALUES (%s)", verb, schema.getTableName(), TextUtils.join(",", columns ), placeholders );
+    }
+
+    private Record read(SQLiteDatabase db, String table, String idColumn, String id, List<String> columns) {
         Record result = null;
         try {
-            String sql = String.format("SELECT * FROM %s WHERE %s=?", table, idColumn );
+            String projection = getProjectionSQL( table, columns );
+            String sql = String.format("SELECT %s FROM %s WHERE %s=?", projection, table, idColumn );
             String[] params = new String[]{ id };
             Cursor cursor = db.rawQuery( sql, params );
             if( cursor.moveToFirst() ) {
-                result = readRowFromCursor( cursor );
+                result = new CursorReader( cursor ).readRow();
             }
             cursor.close();
         }
@@ -294,18 +1225,30 @@ public class DB implements Service, IOCContextAware {
      * @return A ResultSet instance.
      */
     public ResultSet performQuery(String sql, String... args) {
-        args = replaceNullParameterValue( args );
-        ResultSet rs = new ResultSet();
-        Cursor cursor = db.rawQuery( sql, args );
-        int rowCount = cursor.getCount();
-        if( cursor.moveToFirst() ) {
-            for( int i = 0; i < rowCount; i++ ) {
-                rs.add( readRowFromCursor( cursor ) );
-                cursor.moveToNext();
+        acquireConnection();
+        try {
+            flushWritesForSQL( sql );
+            if( queryPlanAdvisor != null ) {
+                queryPlanAdvisor.record( sql, args );
+            }
+            args = replaceNullParameterValue( args );
+            ResultSet rs = new ResultSet();
+            Cursor cursor = db.rawQuery( sql, args );
+            int rowCount = cursor.getCount();
+            if( cursor.moveToFirst() ) {
+                CursorReader reader = new CursorReader( cursor );
+                for( int i = 0; i < rowCount; i++ ) {
+                    rs.add( reader.readRow() );
+                    cursor.moveToNext();
+                }
+                reader.close();
             }
+            cursor.close();
+            return rs;
+        }
+        finally {
+            releaseConnection();
         }
-        cursor.close();
-        return rs;
     }
 
     /**
@@ -315,69 +1258,188 @@ public class DB implements Service, IOCContextAware {
      * @return true if the statement executed successfully.
      */
     public boolean performUpdate(String sql, String... args) {
-        args = replaceNullParameterValue( args );
-        boolean ok = true;
-        SQLiteStatement statement = null;
+        acquireConnection();
         try {
-            statement = db.compileStatement( sql );
-            statement.bindAllArgsAsStrings( args );
-            statement.executeUpdateDelete();
-        }
-        catch(SQLException e) {
-            Log.e( Tag, "Error executing statement", e );
-            ok = false;
+            flushWritesForSQL( sql );
+            args = replaceNullParameterValue( args );
+            boolean ok = true;
+            SQLiteStatement statement = null;
+            try {
+                statement = db.compileStatement( sql );
+                statement.bindAllArgsAsStrings( args );
+                int count = statement.executeUpdateDelete();
+                if( count > 0 ) {
+                    changeCount.incrementAndGet();
+                }
+                if( maintenance != null ) {
+                    maintenance.recordStatementChanges( sql, count );
+                }
+            }
+            catch(SQLException e) {
+                Log.e( Tag, "Error executing statement", e );
+                ok = false;
+            }
+            finally {
+                if( statement != null ) {
+                    statement.close();
+                }
+            }
+            return ok;
         }
         finally {
-            if( statement != null ) {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Query the DB for a single integer value.
+     * Reads the first column of the first result row without creating a result set or boxing
+     * the value.
+     * @param sql   The SQL to execute.
+     * @param args  Arguments to the SQL.
+     * @return The query result; or 0 if the query returns no rows.
+     */
+    public long performLongQuery(String sql, String... args) {
+        acquireConnection();
+        try {
+            flushWritesForSQL( sql );
+            if( queryPlanAdvisor != null ) {
+                queryPlanAdvisor.record( sql, args );
+            }
+            args = replaceNullParameterValue( args );
+            long result = 0;
+            SQLiteStatement statement = db.compileStatement( sql );
+            try {
+                statement.bindAllArgsAsStrings( args );
+                result = statement.simpleQueryForLong();
+            }
+            catch(SQLiteDoneException e) {
+                // No result rows.
+            }
+            finally {
                 statement.close();
             }
+            return result;
+        }
+        finally {
+            releaseConnection();
         }
-        return ok;
     }
 
     /** Return the number of records matching the specified where clause in the specified table. */
     public int countInTable(String table, String where, String... args) {
-        args = replaceNullParameterValue( args );
-        int count = 0;
         String sql = String.format("SELECT count(*) AS count FROM %s WHERE %s", table, where );
-        ResultSet rs = performQuery( sql, args );
-        if( rs.size() > 0 ) {
-            Record record = rs.get( 0 );
-            count = record.getValueAsInteger("count");
-        }
-        return count;
-    }
-
-    /**
-     * Read data from a DB cursor.
-     * @param cursor
-     * @return A Record instance containing all the values in the current cursor row.
-     */
-    private Record readRowFromCursor(Cursor cursor) {
-        Record result = new Record();
-        int ccount = cursor.getColumnCount();
-        for( int i = 0; i < ccount; i++ ) {
-            String cname = cursor.getColumnName( i );
-            if( !cursor.isNull( i ) ) {
-                switch( cursor.getType( i ) ) {
-                case Cursor.FIELD_TYPE_NULL:
-                    break;
-                case Cursor.FIELD_TYPE_FLOAT:
-                    result.put( cname, cursor.getFloat( i ) );
-                    break;
-                case Cursor.FIELD_TYPE_INTEGER:
-                    result.put( cname, cursor.getInt( i ) );
-                    break;
-                case Cursor.FIELD_TYPE_STRING:
-                    result.put( cname, cursor.getString( i ) );
-                    break;
-                case Cursor.FIELD_TYPE_BLOB:
-                    // Not supported.
-                    break;
+        return (int)performLongQuery( sql, args );
+    }
+
+    /**
+     * A reader of rows from a DB cursor.
+     * String values of interned columns are read through the database's string dictionary.
+     * If auto-interning is enabled then in large results, other uncompressed string columns are
+     * read through a dictionary local to the result, until more than AutoInternMaxValues distinct
+     * values, or a value longer than AutoInternMaxLength, are found in the column.
+     */
+    private class CursorReader {
+
+        /** The cursor being read. */
+        Cursor cursor;
+        /** The cursor's column names. */
+        String[] names;
+        /** The dictionary used to intern each column's values; null for columns not interned. */
+        StringDictionary[] dictionaries;
+        /** Flags indicating which columns hold compressed values. */
+        boolean[] compressed;
+        /** A buffer for reading string values of interned columns. */
+        CharArrayBuffer buffer = new CharArrayBuffer( 64 );
+
+        CursorReader(Cursor cursor) {
+            this.cursor = cursor;
+            int ccount = cursor.getColumnCount();
+            this.names = new String[ccount];
+            this.dictionaries = new StringDictionary[ccount];
+            this.compressed = new boolean[ccount];
+            boolean autoIntern = autoInternStrings && cursor.getCount() >= AutoInternMinRows;
+            for( int i = 0; i < ccount; i++ ) {
+                names[i] = cursor.getColumnName( i );
+                String name = names[i].substring( names[i].lastIndexOf('.') + 1 );
+                compressed[i] = compressedColumnNames.contains( name );
+                if( internedColumnNames.contains( name ) ) {
+                    dictionaries[i] = stringDictionary;
+                }
+                else if( autoIntern && !compressed[i] ) {
+                    // Sized so that the dictionary fills only when the limit is exceeded.
+                    dictionaries[i] = new StringDictionary( AutoInternMaxValues + 1 );
+                }
+            }
+        }
+
+        /**
+         * Read data from the cursor.
+         * @return A Record instance containing all the values in the current cursor row.
+         */
+        Record readRow() {
+            Record result = new Record();
+            for( int i = 0; i < names.length; i++ ) {
+                String cname = names[i];
+                if( !cursor.isNull( i ) ) {
+                    switch( cursor.getType( i ) ) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        result.put( cname, cursor.getDouble( i ) );
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        result.put( cname, cursor.getLong( i ) );
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        result.put( cname, readString( i ) );
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] data = cursor.getBlob( i );
+                        if( compressed[i] && TextCompression.isCompressed( data ) ) {
+                            // Decompressed by the record on first access.
+                            result.put( cname, new TextCompression.CompressedValue( data ) );
+                        }
+                        else {
+                            result.put( cname, data );
+                        }
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /** Read a string value, interning it if the column is interned. */
+        String readString(int i) {
+            StringDictionary dictionary = dictionaries[i];
+            if( dictionary == null ) {
+                return cursor.getString( i );
+            }
+            cursor.copyStringToBuffer( i, buffer );
+            if( dictionary != stringDictionary && buffer.sizeCopied > AutoInternMaxLength ) {
+                // Long value; stop interning the column.
+                stringDictionary.addStatistics( dictionary );
+                dictionaries[i] = null;
+                return new String( buffer.data, 0, buffer.sizeCopied );
+            }
+            String value = dictionary.intern( buffer.data, buffer.sizeCopied );
+            if( dictionary != stringDictionary && dictionary.isFull() ) {
+                // Too many distinct values; stop interning the column.
+                stringDictionary.addStatistics( dictionary );
+                dictionaries[i] = null;
+            }
+            return value;
+        }
+
+        /** Add the statistics of any result local dictionaries to the database's dictionary. */
+        void close() {
+            for( StringDictionary dictionary : dictionaries ) {
+                if( dictionary != null && dictionary != stringDictionary ) {
+                    stringDictionary.addStatistics( dictionary );
                 }
             }
         }
-        return result;
     }
 
     /**
@@ -389,13 +1451,19 @@ public class DB implements Service, IOCContextAware {
      * @return true if all values were inserted.
      */
     public boolean insert(String table, List<Map<String,Object>> valuesList) {
-        boolean result = true;
-        // TODO willChangeValueForKey:table
-        for( Map<String, Object> values : valuesList ) {
-            result &= insert( db, table, values );
+        acquireConnection();
+        try {
+            boolean result = true;
+            // TODO willChangeValueForKey:table
+            for( Map<String, Object> values : valuesList ) {
+                result &= insert( db, table, values );
+            }
+            // TODO didChangeValueForKey:table
+            return result;
+        }
+        finally {
+            releaseConnection();
         }
-        // TODO didChangeValueForKey:table
-        return result;
     }
 
     /**
@@ -406,11 +1474,18 @@ public class DB implements Service, IOCContextAware {
      * @return true if the value was inserted.
      */
     public boolean insert(String table, Map<String,Object> values) {
-        boolean result;
-        // TODO willChangeValueForKey:table
-        result = insert( db, table, values );
-        // TODO didChangeValueForKey:table
-        return result;
+        acquireConnection();
+        try {
+            boolean result;
+            flushWritesForTable( table );
+            // TODO willChangeValueForKey:table
+            result = insert( db, table, values );
+            // TODO didChangeValueForKey:table
+            return result;
+        }
+        finally {
+            releaseConnection();
+        }
     }
 
     protected boolean insert(SQLiteDatabase db, String table, Map<String,Object> values) {
@@ -419,6 +1494,7 @@ public class DB implements Service, IOCContextAware {
         if( cvalues.size() > 0 ) {
             try {
                 db.insertOrThrow( table,  null, cvalues );
+                didChangeTable( table, 1 );
             }
             catch(SQLException e) {
                 Log.e( Tag, "Inserting row", e );
@@ -438,6 +1514,7 @@ public class DB implements Service, IOCContextAware {
      */
     public boolean update(String table, Map<String,Object> values) {
         boolean result = false;
+        flushWritesForTable( table );
         // TODO willChangeValueForKey:table
         String idColumn = getColumnForTag( table, "id" );
         if( idColumn != null ) {
@@ -457,11 +1534,19 @@ public class DB implements Service, IOCContextAware {
     }
 
     private boolean update(String table, String idColumn, Map<String,Object> values) {
-        ContentValues cvalues = toContentValues( table, values );
-        String id = values.get( idColumn ).toString();
-        String whereClause = String.format("%s = ?", idColumn );
-        String[] whereArgs = new String[]{ id };
-        return db.update( table, cvalues, whereClause, whereArgs ) > 0;
+        acquireConnection();
+        try {
+            ContentValues cvalues = toContentValues( table, values );
+            String id = values.get( idColumn ).toString();
+            String whereClause = String.format("%s = ?", idColumn );
+            String[] whereArgs = new String[]{ id };
+            int count = db.update( table, cvalues, whereClause, whereArgs );
+            didChangeTable( table, count );
+            return count > 0;
+        }
+        finally {
+            releaseConnection();
+        }
     }
 
     /**
@@ -474,6 +1559,7 @@ public class DB implements Service, IOCContextAware {
      */
     public boolean upsert(String table, Map<String,Object> values) {
         boolean result, update = false;
+        flushWritesForTable( table );
         String idColumn = getColumnForTag( table, "id" );
         if( idColumn != null ) {
             Object idValue = values.get( idColumn );
@@ -513,30 +1599,37 @@ public class DB implements Service, IOCContextAware {
      * @return true if all values were merged successfully into the db.
      */
     public boolean merge(String table, List<Map<String,Object>> valuesList) {
-        boolean result = true;
-        String idColumn = getColumnForTag( table, "id" );
-        if( idColumn != null ) {
-            // TODO willChangeValueForKey:table
-            int i = 0;
-            for( Map<String, Object> values : valuesList ) {
-                String id = values.get( idColumn ).toString();
-                Map<String, Object> record = read( db, table, idColumn, id );
-                if( record != null ) {
-                    record.putAll( values );
-                    result &= update( table, idColumn, record );
-                }
-                else {
-                    result &= insert( table, values );
-                }
-                i++;
+        acquireConnection();
+        try {
+            boolean result = true;
+            flushWritesForTable( table );
+            String idColumn = getColumnForTag( table, "id" );
+            if( idColumn != null ) {
+                // TODO willChangeValueForKey:table
+                int i = 0;
+                for( Map<String, Object> values : valuesList ) {
+                    String id = values.get( idColumn ).toString();
+                    Map<String, Object> record = read( db, table, idColumn, id, null );
+                    if( record != null ) {
+                        record.putAll( values );
+                        result &= update( table, idColumn, record );
+                    }
+                    else {
+                        result &= insert( table, values );
+                    }
+                    i++;
 //                Log.i( Tag, String.format( "Merged %d records...", i ) );
+                }
+                // TODO didChangeValueForKey:table
             }
-            // TODO didChangeValueForKey:table
+            else {
+                Log.w( Tag, String.format("No ID column found for table %s", table ));
+            }
+            return result;
         }
-        else {
-            Log.w( Tag, String.format("No ID column found for table %s", table ));
+        finally {
+            releaseConnection();
         }
-        return result;
     }
 
     /**
@@ -546,6 +1639,7 @@ public class DB implements Service, IOCContextAware {
      * @param ids       An array of object IDs.
      */
     public boolean delete(String table, String... ids) {
+        flushWritesForTable( table );
         String idColumn = getColumnForTag( table, "id" );
         if( idColumn != null ) {
             return delete( table, idColumn, ids );
@@ -562,56 +1656,139 @@ public class DB implements Service, IOCContextAware {
     }
 
     private boolean delete(String table, String idColumn, String[] ids) {
-        boolean ok = false;
-        if( ids.length > 0 ) {
-            // TODO willChangeValueForKey:table
-            StringBuilder placeholders = new StringBuilder( "?" );
-            for( int i = 1; i < ids.length; i++ ) {
-                placeholders.append( ",?" );
+        acquireConnection();
+        try {
+            boolean ok = false;
+            if( ids.length > 0 ) {
+                // TODO willChangeValueForKey:table
+                StringBuilder placeholders = new StringBuilder( "?" );
+                for( int i = 1; i < ids.length; i++ ) {
+                    placeholders.append( ",?" );
+                }
+                String where = String.format( "%s IN (%s)", idColumn, placeholders );
+                int count = db.delete( table, where, ids );
+                didChangeTable( table, count );
+                ok = (count == ids.length);
+                // TODO didChangeValueForKey:table
             }
-            String where = String.format( "%s IN (%s)", idColumn, placeholders );
-            int count = db.delete( table, where, ids );
-            ok = (count == ids.length);
-            // TODO didChangeValueForKey:table
+            return ok;
+        }
+        finally {
+            releaseConnection();
         }
-        return ok;
     }
 
     public int deleteWhere(String table, String where, String... args) {
-        int result;
-        args = replaceNullParameterValue( args );
-        result = db.delete( table, where, args );
-        return result;
+        acquireConnection();
+        try {
+            int result;
+            flushWritesForTable( table );
+            args = replaceNullParameterValue( args );
+            result = db.delete( table, where, args );
+            didChangeTable( table, result );
+            return result;
+        }
+        finally {
+            releaseConnection();
+        }
     }
 
     /**
      * Convert a map of values to a ContentValues object.
+     * Values are bound using the storage class indicated by each column's declared type, so e.g.
+     * numbers written to an INTEGER column are bound as longs, and not as doubles.
      * @param tname     The name of the table values are being inserted into.
      * @param values    Mapped values. Only includes values with corresponding column names in the table.
      * @return
      */
     private ContentValues toContentValues(String tname, Map<String,Object> values) {
         ContentValues cvalues = new ContentValues();
-        Set<String> columnNames = tableColumnNames.get( tname );
-        if( columnNames != null ) {
+        Map<String,Column> columns = tableColumns.get( tname );
+        if( columns != null ) {
             for( String cname : values.keySet() ) {
-                if( columnNames.contains( cname ) ) {
-                    Object cvalue = values.get( cname );
-                    if( cvalue instanceof Number ) {
-                        cvalues.put( cname, ((Number)cvalue).doubleValue() );
-                    }
-                    else if( cvalue instanceof Boolean ) {
-                        cvalues.put( cname, (Boolean)cvalue );
-                    }
-                    else if( cvalue != null ) {
-                        cvalues.put( cname, cvalue.toString() );
-                    }
+                Column column = columns.get( cname );
+                if( column != null ) {
+                    putContentValue( cvalues, column, values.get( cname ) );
                 }
             }
         }
         return cvalues;
     }
 
+    /**
+     * Add a value to a ContentValues object, using the storage class appropriate to the column's
+     * type affinity. Null values are ignored.
+     */
+    private void putContentValue(ContentValues cvalues, Column column, Object value) {
+        String cname = column.name;
+        if( value == null ) {
+            return;
+        }
+        if( column.compressed ) {
+            // Values read from a compressed column are written back without recompressing.
+            if( value instanceof TextCompression.CompressedValue ) {
+                cvalues.put( cname, ((TextCompression.CompressedValue)value).getData() );
+                return;
+            }
+            if( value instanceof String ) {
+                byte[] data = TextCompression.compress( (String)value );
+                if( data != null ) {
+                    cvalues.put( cname, data );
+                    return;
+                }
+            }
+        }
+        Column.Affinity affinity = column.getAffinity();
+        switch( affinity ) {
+        case TEXT:
+            if( value instanceof byte[] ) {
+                cvalues.put( cname, (byte[])value );
+            }
+            else {
+                cvalues.put( cname, value.toString() );
+            }
+            break;
+        case REAL:
+            if( value instanceof Number ) {
+                cvalues.put( cname, ((Number)value).doubleValue() );
+                break;
+            }
+            // Else fall through to bind the value by its own type.
+        default:
+            if( value instanceof Number ) {
+                Number number = (Number)value;
+                // Whole number doubles are stored as integers in INTEGER columns.
+                if( isIntegral( number ) || (affinity == Column.Affinity.INTEGER && isWholeNumber( number )) ) {
+                    cvalues.put( cname, number.longValue() );
+                }
+                else {
+                    cvalues.put( cname, number.doubleValue() );
+                }
+            }
+            else if( value instanceof Boolean ) {
+                cvalues.put( cname, (Boolean)value ? 1L : 0L );
+            }
+            else if( value instanceof byte[] ) {
+                cvalues.put( cname, (byte[])value );
+            }
+            else {
+                cvalues.put( cname, value.toString() );
+            }
+        }
+    }
+
+    /** Test whether a number is of an integer type. */
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer
+            || number instanceof Short || number instanceof Byte;
+    }
+
+    /** Test whether a number has a whole value which can be represented as a long. */
+    private static boolean isWholeNumber(Number number) {
+        double d = number.doubleValue();
+        return d == Math.rint( d ) && Math.abs( d ) < (double)Long.MAX_VALUE;
+    }
+
     /**
      * Deploy a database file by copying to the live database location.
      * This method is used when the app is packaged with a pre-built and pre-populated copy of the
@@ -631,6 +1808,10 @@ public class DB implements Service, IOCContextAware {
     // Service interface
     @Override
     public void startService() {
+        if( storage != Storage.File ) {
+            startTransientService();
+            return;
+        }
         this.helper = new DBHelper( androidContext, this );
         if( resetDatabase ) {
             Log.w( Tag, String.format( "Resetting database %s", name ) );
@@ -648,10 +1829,41 @@ public class DB implements Service, IOCContextAware {
         this.db = helper.getWritableDatabase();
     }
 
+    /**
+     * Open an in-memory or temporary database.
+     * The database is always new, so the reset and initial copy settings are ignored.
+     */
+    private void startTransientService() {
+        if( storage == Storage.Temp ) {
+            try {
+                this.tempFile = File.createTempFile( name, ".db", Files.getCacheDir( androidContext ) );
+                // Delete the empty file so that the helper creates a new database.
+                tempFile.delete();
+            }
+            catch(IOException e) {
+                Log.e( Tag, String.format("Creating temporary database %s", name ), e );
+                this.storage = Storage.Memory;
+            }
+        }
+        this.helper = new DBHelper( androidContext, this );
+        this.db = helper.getWritableDatabase();
+    }
+
     @Override
     public void stopService() {
+        if( db == null ) {
+            // Already stopped.
+            return;
+        }
+        // Write any buffered writes before closing the database.
+        flushWrites();
         db.close();
         helper.close();
+        this.db = null;
+        if( tempFile != null ) {
+            SQLiteDatabase.deleteDatabase( tempFile );
+            this.tempFile = null;
+        }
     }
 
 }
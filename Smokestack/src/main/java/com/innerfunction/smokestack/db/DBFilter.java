@@ -15,124 +15,279 @@ package com.innerfunction.smokestack.db;
 
 import android.text.TextUtils;
 
-import com.innerfunction.util.Regex;
-
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
+ * A configurable DB query.
+ * The query is specified either as SQL, with named parameters in the form ?name, or using
+ * table/filters/orderBy properties. In both cases the query is compiled once, on first use, into a
+ * fixed SQL template with a bound parameter for each filter value; so the same SQL is executed on
+ * every call, allowing the prepared statement to be reused. List values (either configured filter
+ * values or named parameter values) are expanded into one bound parameter per item. Numeric
+ * literals in configured filters are left in the SQL, so that they still compare as numbers.
+ *
  * Attached by juliangoacher on 01/06/16.
  */
 public class DBFilter {
 
-    private List<String> paramNames = new ArrayList<>();
+    /** Pattern for detecting filter values that contain a predicate. */
+    static final Pattern PredicatePattern = Pattern.compile("^\\s*(=|<|>|LIKE\\s|NOT\\s)");
+    /** Pattern for splitting a simple predicate into a comparison operator and a literal operand. */
+    static final Pattern SimplePredicatePattern = Pattern.compile("^\\s*(=|==|!=|<>|<=|>=|<|>|LIKE)\\s*('(?:[^']|'')*'|-?\\d+(?:\\.\\d+)?)\\s*$");
+    /** Pattern for matching named parameters in SQL. */
+    static final Pattern ParamNamePattern = Pattern.compile("\\?(\\w+)");
+
+    /**
+     * A bound query parameter.
+     * Either a reference to a named parameter passed to applyTo(), or a constant filter value.
+     */
+    static class Parameter {
+        /** The parameter name; null for constant values. */
+        final String name;
+        /** The parameter's constant value; a string or list of strings. */
+        final Object value;
+
+        Parameter(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    /** The SQL as configured, with named parameters. */
     private String sql;
     private String table;
     private Map<String,Object> filters;
     private String orderBy;
     private String predicateOp = "AND";
+    /** The compiled SQL template, split at each parameter placeholder. */
+    private List<String> sqlParts;
+    /** The compiled query's parameters; one for each placeholder in the SQL template. */
+    private List<Parameter> parameters;
+    /** The compiled SQL, with a single ? placeholder for each parameter. */
+    private String compiledSQL;
+    /**
+     * Compiled SQL with list parameters expanded into multiple placeholders, keyed by the size of
+     * each parameter value.
+     */
+    private Map<String,String> expandedSQL = new HashMap<>();
 
     public DBFilter() {}
 
     public ResultSet applyTo(DB db, Map<String,Object> params) {
-        // Prepare the SQL. If the filter has been configured using table/filters/orderBy properties
-        // then this.sql will be null on first call.
-        if( this.sql == null && table != null ) {
-            List<String> terms = new ArrayList<>();
-            terms.add("SELECT * FROM");
-            terms.add( table );
+        // Compile the SQL template on first use.
+        if( !compile() ) {
+            // The filter hasn't been configured correctly; return an empty result set.
+            return new ResultSet();
+        }
+        // Resolve the value of each parameter and construct the query arguments.
+        List<Object> values = new ArrayList<>( parameters.size() );
+        List<String> sqlArgs = new ArrayList<>();
+        boolean expanded = false;
+        for( Parameter parameter : parameters ) {
+            Object value = parameter.value;
+            if( parameter.name != null ) {
+                value = params != null ? params.get( parameter.name ) : null;
+            }
+            if( value instanceof List ) {
+                expanded = true;
+                for( Object item : (List)value ) {
+                    sqlArgs.add( toArg( item ) );
+                }
+            }
+            else {
+                sqlArgs.add( toArg( value ) );
+            }
+            values.add( value );
+        }
+        String sql = expanded ? getExpandedSQL( values ) : compiledSQL;
+        // Execute the SQL and return the result.
+        return db.performQuery( sql, sqlArgs );
+    }
+
+    /**
+     * Compile the filter's SQL template.
+     * @return false if the filter isn't configured with either SQL or a table name.
+     */
+    private synchronized boolean compile() {
+        if( sqlParts != null ) {
+            return true;
+        }
+        List<String> parts = new ArrayList<>();
+        List<Parameter> parameters = new ArrayList<>();
+        if( sql != null ) {
+            // Replace each named parameter with a placeholder.
+            Matcher matcher = ParamNamePattern.matcher( sql );
+            int start = 0;
+            while( matcher.find() ) {
+                parts.add( sql.substring( start, matcher.start() ) );
+                parameters.add( new Parameter( matcher.group( 1 ), null ) );
+                start = matcher.end();
+            }
+            parts.add( sql.substring( start ) );
+        }
+        else if( table != null ) {
+            StringBuilder part = new StringBuilder("SELECT * FROM ").append( table );
             if( filters != null && filters.size() > 0 ) {
-                terms.add("WHERE");
-                // Regex pattern for detecting filter values that contain a predicate.
-                Regex predicatePattern = new Regex("^\\s*(=|<|>|LIKE\\s|NOT\\s)");
+                part.append(" WHERE ");
                 boolean insertPredicateOp = false;
                 for( String filterName : filters.keySet() ) {
                     if( insertPredicateOp ) {
-                        terms.add( predicateOp );
+                        part.append(' ').append( predicateOp ).append(' ');
                     }
-                    terms.add( filterName );
+                    part.append( filterName ).append(' ');
                     Object filterValue = filters.get( filterName );
-                    if( filterValue instanceof List ) {
+                    if( filterValue instanceof List && isNumberList( (List)filterValue ) ) {
+                        // Numeric values are included as-is, so that they compare as numbers.
+                        part.append("IN (").append( TextUtils.join(",", (List)filterValue ) ).append(')');
+                    }
+                    else if( filterValue instanceof List ) {
                         // Use a WHERE ... IN (...) to query for an array of values.
-                        filterValue = TextUtils.join(",", (List)filterValue );
-                        terms.add( String.format("IN (%s)", filterValue ) );
+                        List<String> items = new ArrayList<>();
+                        for( Object item : (List)filterValue ) {
+                            items.add( toArg( item ) );
+                        }
+                        part.append("IN (");
+                        parts.add( part.toString() );
+                        parameters.add( new Parameter( null, items ) );
+                        part = new StringBuilder(")");
                     }
                     else {
                         // Convert a non-string filter value to a string.
-                        String strFilterValue;
-                        if( filterValue instanceof String ) {
-                            strFilterValue = (String)filterValue;
-                        }
-                        else {
-                            strFilterValue = filterValue.toString();
+                        String strFilterValue = String.valueOf( filterValue );
+                        Matcher predicate = SimplePredicatePattern.matcher( strFilterValue );
+                        if( predicate.matches() && predicate.group( 2 ).charAt( 0 ) == '\'' ) {
+                            // Predicate with a string literal operand; bind the operand. Numeric
+                            // operands are left in the SQL (see below), as bound parameters are
+                            // strings and would compare as text on columns without affinity.
+                            part.append( predicate.group( 1 ) ).append(' ');
+                            parts.add( part.toString() );
+                            parameters.add( new Parameter( null, unquote( predicate.group( 2 ) ) ) );
+                            part = new StringBuilder();
                         }
-                        if( predicatePattern.test( strFilterValue ) ) {
-                            terms.add( strFilterValue );
+                        else if( PredicatePattern.matcher( strFilterValue ).find() ) {
+                            // Other predicates are included as-is in the SQL.
+                            part.append( strFilterValue );
                         }
-                        else if( strFilterValue.charAt( 0 ) == '?' ) {
-                            // ? prefix indicates a parameterized value; don't quote in the SQL.
-                            terms.add( String.format("= %s", strFilterValue ) );
+                        else if( strFilterValue.length() > 0 && strFilterValue.charAt( 0 ) == '?' ) {
+                            // ? prefix indicates a parameterized value.
+                            part.append("= ");
+                            parts.add( part.toString() );
+                            parameters.add( new Parameter( strFilterValue.substring( 1 ), null ) );
+                            part = new StringBuilder();
                         }
                         else {
-                            // Escape single quotes in the value.
-                            strFilterValue = strFilterValue.replaceAll("'", "\\'");
-                            terms.add( String.format("= '%s'", strFilterValue ) );
+                            part.append("= ");
+                            parts.add( part.toString() );
+                            parameters.add( new Parameter( null, strFilterValue ) );
+                            part = new StringBuilder();
                         }
                     }
                     insertPredicateOp = true;
                 }
             }
             if( orderBy != null ) {
-                terms.add("ORDER BY");
-                terms.add( orderBy );
+                part.append(" ORDER BY ").append( orderBy );
             }
-            sql = TextUtils.join(" ", terms );
+            parts.add( part.toString() );
         }
-        // If still no SQL then the filter hasn't been configured correctly.
-        if( sql == null ) {
-            // Return an empty result set.
-            return new ResultSet();
+        else {
+            return false;
+        }
+        this.parameters = parameters;
+        this.compiledSQL = TextUtils.join("?", parts );
+        this.sqlParts = parts;
+        return true;
+    }
+
+    /** Return the compiled SQL with list parameter placeholders expanded to match the values. */
+    private synchronized String getExpandedSQL(List<Object> values) {
+        StringBuilder key = new StringBuilder();
+        for( Object value : values ) {
+            key.append( value instanceof List ? ((List)value).size() : -1 ).append(',');
         }
-        // Construct parameters for the SQL query.
-        List<String> sqlParams = new ArrayList<>();
-        for( String paramName : paramNames ) {
-            Object value = params.get( paramName );
-            if( value != null ) {
-                sqlParams.add( value.toString() );
+        String sql = expandedSQL.get( key.toString() );
+        if( sql == null ) {
+            StringBuilder builder = new StringBuilder( sqlParts.get( 0 ) );
+            for( int i = 0; i < values.size(); i++ ) {
+                Object value = values.get( i );
+                if( value instanceof List ) {
+                    int size = ((List)value).size();
+                    if( size == 0 ) {
+                        // Empty list; use a null placeholder value which will match nothing.
+                        builder.append("NULL");
+                    }
+                    for( int j = 0; j < size; j++ ) {
+                        builder.append( j == 0 ? "?" : ",?" );
+                    }
+                }
+                else {
+                    builder.append('?');
+                }
+                builder.append( sqlParts.get( i + 1 ) );
             }
-            else {
-                sqlParams.add( DB.NullParameterValue );
+            sql = builder.toString();
+            expandedSQL.put( key.toString(), sql );
+        }
+        return sql;
+    }
+
+    /** Convert a parameter value to a query argument. */
+    private static String toArg(Object value) {
+        return value != null ? value.toString() : DB.NullParameterValue;
+    }
+
+    /** Test whether all items in a list are numbers. */
+    private static boolean isNumberList(List list) {
+        if( list.isEmpty() ) {
+            return false;
+        }
+        for( Object item : list ) {
+            if( !(item instanceof Number) ) {
+                return false;
             }
         }
-        // Execute the SQL and return the result.
-        ResultSet result = db.performQuery( sql, sqlParams );
-        return result;
+        return true;
     }
 
-    public void setSql(String sql) {
-        // Extract parameter names from the SQL string. Parameter names appear as ?xxx in the SQL.
-        paramNames.clear();
-        Regex re = new Regex("\\?(\\w+)(.*)");
-        String groups[] = re.matches( sql );
-        while( groups.length > 0 ) {
-            paramNames.add( groups[1] );
-            groups = re.matches( groups[2] );
+    /** Remove the quotes from a quoted SQL string literal. */
+    private static String unquote(String literal) {
+        if( literal.length() > 1 && literal.charAt( 0 ) == '\'' ) {
+            return literal.substring( 1, literal.length() - 1 ).replace("''", "'");
         }
-        // Replace all argument placeholders with just '?' in the SQL.
-        this.sql = sql.replaceAll("\\?\\w+", "?");
+        return literal;
+    }
+
+    public synchronized void setSql(String sql) {
+        this.sql = sql;
+        reset();
     }
 
-    public void setTable(String table) {
+    public synchronized void setTable(String table) {
         this.table = table;
+        reset();
     }
 
-    public void setFilters(Map<String,Object> filters) {
+    public synchronized void setFilters(Map<String,Object> filters) {
         this.filters = filters;
+        reset();
     }
 
-    public void setOrderBy(String orderBy) {
+    public synchronized void setOrderBy(String orderBy) {
         this.orderBy = orderBy;
+        reset();
+    }
+
+    /** Discard the compiled SQL after a configuration change. */
+    private void reset() {
+        this.sqlParts = null;
+        this.parameters = null;
+        this.compiledSQL = null;
+        this.expandedSQL.clear();
     }
 
 }
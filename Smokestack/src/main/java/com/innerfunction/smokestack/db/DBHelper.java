@@ -36,10 +36,23 @@ public class DBHelper extends SQLiteOpenHelper {
     private Map<String,List<?>> initialData = new HashMap<>();
 
     public DBHelper(Context context, DB db) {
-        super( context, db.getName(), null, db.getVersion() );
+        super( context, db.getDatabaseName(), null, db.getVersion() );
         this.dbWrapper = db;
     }
 
+    /**
+     * Configure the database connection.
+     * Enables incremental vacuuming when maintenance is configured for the database. Note that
+     * this setting only takes effect if set before any tables are created; existing databases
+     * are converted by DBMaintenance.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if( dbWrapper.getMaintenance() != null ) {
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Map<String,Table> tables = dbWrapper.getTables();
@@ -101,6 +114,32 @@ public class DBHelper extends SQLiteOpenHelper {
         initialize( db );
     }
 
+    /**
+     * Ensure that all configured table indexes exist whenever the database is opened.
+     * Indexes are created using IF NOT EXISTS, so new indexes can be added to a table's
+     * configuration without a database version change.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        Map<String,Table> tables = dbWrapper.getTables();
+        int version = dbWrapper.getVersion();
+        for( String tableName : tables.keySet() ) {
+            Table table = tables.get( tableName );
+            if( table.until > -1 && table.until < version ) {
+                // Table not present in the current DB version.
+                continue;
+            }
+            for( String sql : getCreateIndexSQL( tableName, table ) ) {
+                try {
+                    db.execSQL( sql );
+                }
+                catch(Exception e) {
+                    Log.e(Tag, String.format("Creating index on %s", tableName ), e );
+                }
+            }
+        }
+    }
+
     /**
      * Initialize the database by writing initial data into each table.
      * Table data is only written after table creation.
@@ -157,6 +196,36 @@ public class DBHelper extends SQLiteOpenHelper {
         return sql;
     }
 
+    /**
+     * Return a list of SQL statements for creating a table's indexes.
+     * @param name  The table name.
+     * @param table The table configuration.
+     * @return A list of SQL create index statements.
+     */
+    private List<String> getCreateIndexSQL(String name, Table table) {
+        List<String> sqls = new ArrayList<>();
+        addCreateIndexSQL( sqls, "INDEX", name, table.indexes );
+        addCreateIndexSQL( sqls, "UNIQUE INDEX", name, table.uniqueIndexes );
+        return sqls;
+    }
+
+    /** Add create statements for a set of indexes of the specified type to a list of statements. */
+    private void addCreateIndexSQL(List<String> sqls, String type, String name, Map<String,List<String>> indexes) {
+        if( indexes != null ) {
+            for( String indexName : indexes.keySet() ) {
+                List<String> columns = indexes.get( indexName );
+                StringBuilder cols = new StringBuilder();
+                for( String column : columns ) {
+                    if( cols.length() > 0 ) {
+                        cols.append(',');
+                    }
+                    cols.append( column );
+                }
+                sqls.add( String.format("CREATE %s IF NOT EXISTS %s ON %s (%s)", type, indexName, name, cols ) );
+            }
+        }
+    }
+
     /**
      * Return an array of SQL statements for modifying a table schema to match a new DB version.
      * @param tableName     The table name.
@@ -0,0 +1,263 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Database maintenance.
+ * Tracks the number of rows changed in each table of a database, and decides when table
+ * statistics need refreshing (ANALYZE) and when free pages should be returned to the file system
+ * (incremental vacuum). Also checkpoints the write-ahead log, when the database is in WAL mode.
+ * Maintenance is performed on request, typically by a low priority command queued after a
+ * content refresh; see DB.performMaintenance().
+ */
+public class DBMaintenance {
+
+    static final String Tag = DBMaintenance.class.getSimpleName();
+
+    /** Pattern for extracting the name of the table modified by a SQL statement. */
+    static final Pattern ModifiedTablePattern = Pattern.compile(
+        "^\\s*(?:UPDATE(?:\\s+OR\\s+\\w+)?|DELETE\\s+FROM|(?:INSERT(?:\\s+OR\\s+\\w+)?|REPLACE)\\s+INTO)\\s+(\\w+)",
+        Pattern.CASE_INSENSITIVE );
+
+    /** The result of a maintenance run. */
+    public static class Report {
+        /** The tables analyzed. */
+        public List<String> analyzedTables = new ArrayList<>();
+        /** The number of free pages released by vacuuming. */
+        public long pagesReclaimed;
+        /** The number of bytes returned to the file system; includes database and WAL file size reductions. */
+        public long bytesReclaimed;
+        /** Whether the write-ahead log was checkpointed. */
+        public boolean checkpointed;
+        /** The time spent performing maintenance, in milliseconds. */
+        public long timeSpent;
+
+        @Override
+        public String toString() {
+            return String.format("analyzed=%s pages=%d bytes=%d checkpointed=%b time=%dms",
+                analyzedTables, pagesReclaimed, bytesReclaimed, checkpointed, timeSpent );
+        }
+    }
+
+    /** The number of rows changed in each table since the table was last analyzed. */
+    private Map<String,Long> tableChanges = new HashMap<>();
+    /** The number of rows changed since the last vacuum. */
+    private long totalChanges;
+    /** The number of changed rows after which a table is analyzed. */
+    private long analyzeThreshold = 500;
+    /** The number of changed rows after which free pages are checked for vacuuming. */
+    private long vacuumCheckThreshold = 1000;
+    /** The minimum number of free bytes in the database file before a vacuum is performed. */
+    private long vacuumThreshold = 1024 * 1024;
+    /**
+     * The maximum number of pages to release in a single incremental vacuum.
+     * Zero (the default) means release all free pages.
+     */
+    private int maxVacuumPages = 0;
+    /** Whether to checkpoint the write-ahead log. */
+    private boolean checkpointWAL = true;
+
+    public void setAnalyzeThreshold(long threshold) {
+        this.analyzeThreshold = threshold;
+    }
+
+    public void setVacuumCheckThreshold(long threshold) {
+        this.vacuumCheckThreshold = threshold;
+    }
+
+    public void setVacuumThreshold(long threshold) {
+        this.vacuumThreshold = threshold;
+    }
+
+    public void setMaxVacuumPages(int pages) {
+        this.maxVacuumPages = pages;
+    }
+
+    public void setCheckpointWAL(boolean checkpoint) {
+        this.checkpointWAL = checkpoint;
+    }
+
+    /**
+     * Record changes to a table.
+     * @param table The name of the table changed.
+     * @param count The number of rows changed.
+     */
+    public synchronized void recordChanges(String table, long count) {
+        if( count > 0 ) {
+            Long changes = tableChanges.get( table );
+            tableChanges.put( table, changes == null ? count : changes + count );
+            totalChanges += count;
+        }
+    }
+
+    /**
+     * Record changes made by a SQL statement.
+     * @param sql   A SQL insert, update or delete statement.
+     * @param count The number of rows changed by the statement.
+     */
+    public void recordStatementChanges(String sql, int count) {
+        Matcher matcher = ModifiedTablePattern.matcher( sql );
+        if( matcher.find() ) {
+            recordChanges( matcher.group( 1 ), (long)count );
+        }
+    }
+
+    /** Test whether enough changes have been recorded to make maintenance worthwhile. */
+    public synchronized boolean isMaintenanceDue() {
+        if( totalChanges >= vacuumCheckThreshold ) {
+            return true;
+        }
+        for( Long changes : tableChanges.values() ) {
+            if( changes >= analyzeThreshold ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Perform maintenance on a database.
+     * Must not be called from within a transaction, as a full vacuum can't be run in a transaction.
+     * @param db    A database connection.
+     * @return A report of the work done.
+     */
+    public Report perform(SQLiteDatabase db) {
+        Report report = new Report();
+        long start = System.currentTimeMillis();
+        // Read the list of tables needing analysis.
+        boolean checkVacuum;
+        synchronized( this ) {
+            for( String table : tableChanges.keySet() ) {
+                if( tableChanges.get( table ) >= analyzeThreshold ) {
+                    report.analyzedTables.add( table );
+                }
+            }
+            checkVacuum = totalChanges >= vacuumCheckThreshold;
+        }
+        // Refresh planner statistics.
+        for( String table : report.analyzedTables ) {
+            try {
+                db.execSQL( String.format("ANALYZE %s", table ) );
+                synchronized( this ) {
+                    tableChanges.remove( table );
+                }
+            }
+            catch(SQLException e) {
+                Log.e( Tag, String.format("Analyzing %s", table ), e );
+            }
+        }
+        // Release free pages.
+        if( checkVacuum ) {
+            try {
+                vacuum( db, report );
+                synchronized( this ) {
+                    totalChanges = 0;
+                }
+            }
+            catch(SQLException e) {
+                Log.e( Tag, "Vacuuming", e );
+            }
+        }
+        // Checkpoint the WAL.
+        if( checkpointWAL && "wal".equalsIgnoreCase( readPragma( db, "journal_mode") ) ) {
+            try {
+                File walFile = new File( db.getPath()+"-wal");
+                long walSize = walFile.length();
+                readPragma( db, "wal_checkpoint(TRUNCATE)");
+                report.checkpointed = true;
+                report.bytesReclaimed += Math.max( walSize - walFile.length(), 0 );
+            }
+            catch(SQLException e) {
+                Log.e( Tag, "Checkpointing WAL", e );
+            }
+        }
+        report.timeSpent = System.currentTimeMillis() - start;
+        Log.i( Tag, String.format("Maintenance of %s: %s", db.getPath(), report ) );
+        return report;
+    }
+
+    /**
+     * Release the database's free pages, if enough free space has accumulated.
+     * Incremental vacuuming requires auto_vacuum=INCREMENTAL, which only takes effect on new
+     * databases; existing databases (including databases deployed from an initial copy) are
+     * converted using a full vacuum the first time the free space threshold is exceeded.
+     */
+    private void vacuum(SQLiteDatabase db, Report report) {
+        long pageSize = readPragmaAsLong( db, "page_size");
+        long freePages = readPragmaAsLong( db, "freelist_count");
+        if( freePages * pageSize < vacuumThreshold ) {
+            return;
+        }
+        long pageCount = readPragmaAsLong( db, "page_count");
+        if( readPragmaAsLong( db, "auto_vacuum") == 2 ) {
+            if( maxVacuumPages > 0 ) {
+                readPragma( db, String.format("incremental_vacuum(%d)", maxVacuumPages ) );
+            }
+            else {
+                readPragma( db, "incremental_vacuum");
+            }
+        }
+        else {
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+        report.pagesReclaimed = Math.max( pageCount - readPragmaAsLong( db, "page_count"), 0 );
+        report.bytesReclaimed += report.pagesReclaimed * pageSize;
+    }
+
+    /**
+     * Execute a pragma and return the first column of its first result row.
+     * Pragmas are executed as queries, because some of them return result rows.
+     */
+    private static String readPragma(SQLiteDatabase db, String pragma) {
+        String result = null;
+        Cursor cursor = db.rawQuery( "PRAGMA "+pragma, null );
+        try {
+            // Step through all rows, some pragmas only complete their work when fully stepped.
+            while( cursor.moveToNext() ) {
+                if( result == null ) {
+                    result = cursor.getString( 0 );
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /** Execute a pragma and return its result as a number. */
+    private static long readPragmaAsLong(SQLiteDatabase db, String pragma) {
+        String result = readPragma( db, pragma );
+        try {
+            return result != null ? Long.parseLong( result ) : 0;
+        }
+        catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -14,13 +14,23 @@
 package com.innerfunction.smokestack.db;
 
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.innerfunction.scffld.IOCObjectAware;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A class providing simple object-relational mapping capability.
@@ -33,12 +43,24 @@ import java.util.Map;
  */
 public class ORM implements IOCObjectAware {
 
+    static final String Tag = ORM.class.getSimpleName();
+
+    /**
+     * Pattern for matching string literals and column references in SQL.
+     * String literals are matched so that their contents can be skipped.
+     */
+    static final Pattern ColumnReferencePattern = Pattern.compile("'(?:[^']|'')*'|\"[^\"]*\"|\\b([A-Za-z_]\\w*)(?:\\.([A-Za-z_]\\w*))?");
+
     /** The name of the relation source table. */
     private String source;
     /** A dictionary of relation mappings from the source table, keyed by name. */
     private Map<String,Mapping> mappings;
     /** The database. */
     private DB db;
+    /** Materialized views of mapping sets. */
+    private List<MaterializedView> materializedViews = new ArrayList<>();
+    /** Pivot tables of promoted map keys, keyed by mapping name; created on first use. */
+    private Map<String,KeyPivot> pivots;
 
     public void setSource(String source) {
         this.source = source;
@@ -56,18 +78,78 @@ public class ORM implements IOCObjectAware {
         return mappings;
     }
 
+    /**
+     * Return a copy of this ORM's mappings bound to another database.
+     * Materialized views aren't copied, and need to be added to the copy.
+     */
+    public ORM copyForDB(DB db) {
+        ORM orm = new ORM();
+        orm.source = source;
+        orm.mappings = mappings;
+        orm.db = db;
+        return orm;
+    }
+
     /**
      * Select the object with the specified key value.
      * Returns the object record from the source table, with all related properties
      * named in the mappings argument joined from the related tables.
      */
     public Record selectKey(String key, List<String> mappings) {
+        return selectKey( key, mappings, null );
+    }
+
+    /**
+     * Select the object with the specified key value, reading only the columns named in the
+     * projection.
+     * @see #selectWhere(List, List, String, List)
+     */
+    public Record selectKey(String key, List<String> mappings, List<String> columns) {
         String idColumn = getIDColumnForTable( source );
         String where = String.format("%s.%s=?", source, idColumn );
-        ResultSet result = selectWhere( mappings, where, Arrays.asList( key ) );
+        ResultSet result = selectWhere( mappings, columns, where, Arrays.asList( key ) );
         return result.size() > 0 ? result.get( 0 ) : null;
     }
 
+    /**
+     * Select the objects with the specified key values.
+     * Objects are read using IN (...) queries, with at most DB.MaxINListSize keys per query.
+     * @param keys      The object keys.
+     * @param mappings  The names of the mappings to join.
+     * @param columns   A column projection; or null to read all columns.
+     * @return A map of the objects found, keyed by key value and in the order of the keys argument.
+     * @see #selectWhere(List, List, String, List)
+     */
+    public Map<String,Record> selectKeys(Collection<String> keys, List<String> mappings, List<String> columns) {
+        String idColumn = getIDColumnForTable( source );
+        // Read records into a temporary map, so that the result can be ordered by key.
+        Map<String,Record> records = new HashMap<>();
+        List<String> keyList = new ArrayList<>( new LinkedHashSet<>( keys ) );
+        for( int i = 0; i < keyList.size(); i += DB.MaxINListSize ) {
+            List<String> chunk = keyList.subList( i, Math.min( i + DB.MaxINListSize, keyList.size() ) );
+            String where = String.format("%s.%s IN (%s)", source, idColumn, getPlaceholders( chunk.size() ) );
+            for( Record record : selectWhere( mappings, columns, where, chunk ) ) {
+                records.put( record.getValueAsString( idColumn ), record );
+            }
+        }
+        Map<String,Record> result = new LinkedHashMap<>();
+        for( String key : keyList ) {
+            Record record = records.get( key );
+            if( record != null ) {
+                result.put( key, record );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Select the objects with the specified key values.
+     * @see #selectKeys(Collection, List, List)
+     */
+    public Map<String,Record> selectKeys(Collection<String> keys, List<String> mappings) {
+        return selectKeys( keys, mappings, null );
+    }
+
     /**
      * Select the objects matching the specified where condition.
      */
@@ -81,15 +163,96 @@ public class ORM implements IOCObjectAware {
      * named in the mappings argument joined from the related tables.
      */
     public ResultSet selectWhere(List<String> mappings, String where, List<String> values) {
+        return selectWhere( mappings, null, where, values );
+    }
+
+    /**
+     * Select the objects matching the specified where condition, reading only the columns named
+     * in the projection.
+     * Projected column names are qualified by relation name, e.g. 'post.title'; the source table
+     * is referenced by its table name, e.g. 'files.path'; and all columns on a relation can be
+     * selected using a wildcard, e.g. 'commit.*'. The source table's ID column is always read.
+     * Mappings without any projected columns aren't joined, unless referenced by the where
+     * condition or order by clause. A null projection selects all columns.
+     */
+    public ResultSet selectWhere(List<String> mappings, List<String> columns, String where, List<String> values) {
+        return selectWhere( mappings, columns, where, values, null );
+    }
+
+    /**
+     * Select the objects matching the specified where condition, in the specified order.
+     * As selectWhere(mappings, columns, where, values), but with an additional order by clause,
+     * which is applied before any ordering of collection relations. The where condition and order
+     * by clause may reference promoted map keys as columns of the map relation, e.g. 'meta.date',
+     * in which case the key's indexed pivot table is joined (see Mapping.setPivotKeys()).
+     * @param orderBy   An order by clause; or null for the default order.
+     */
+    public ResultSet selectWhere(List<String> mappings, List<String> columns, String where, List<String> values, String orderBy) {
+        // Rewrite references to promoted map keys as references to pivot table columns.
+        List<KeyPivot> joinedPivots = new ArrayList<>();
+        where = rewritePivotReferences( where, joinedPivots );
+        if( orderBy != null ) {
+            orderBy = rewritePivotReferences( orderBy, joinedPivots );
+        }
+        // Read from a materialized view of the mapping set, if one is available.
+        MaterializedView view = joinedPivots.size() == 0 ? getMaterializedView( mappings ) : null;
+        if( view != null ) {
+            ResultSet result = view.selectWhere( columns, where, values, orderBy );
+            if( result != null ) {
+                return result;
+            }
+        }
         // The name of the ID column on the source table.
         String sidColumn = getIDColumnForTable( source );
         // Generate SQL to describe each join for each relation.
-        List<String> columns = new ArrayList<>();     // Array of column name lists for source table and all joins.
+        List<String> selects = new ArrayList<>();     // Array of qualified names of the selected columns.
         List<String> joins = new ArrayList<>();       // Array of join SQL.
         List<String> orderBys = new ArrayList<>();    // Array of order by column names.
         List<String> collectionJoins = new ArrayList<>();  // Array of collection relation names.
 
-        columns.add( getColumnNamesForTable( source, source  ) );
+        addJoins( mappings, columns, Arrays.asList( where, orderBy ), selects, joins, orderBys, collectionJoins );
+        for( KeyPivot pivot : joinedPivots ) {
+            joins.add( pivot.getJoin() );
+        }
+        if( orderBy != null ) {
+            orderBys.add( 0, orderBy );
+        }
+
+        // Generate select SQL.
+        String sql = String.format("SELECT %s FROM %s %s %s WHERE %s",
+            getSelectColumnList( selects ),
+            source,
+            source,
+            TextUtils.join(" ", joins ),
+            where );
+
+        if( orderBys.size() > 0 ) {
+            sql = sql+" ORDER BY "+TextUtils.join(",", orderBys );
+        }
+
+        // Execute the query and generate the result.
+        ResultSet rs = db.performQuery( sql, values );
+        return groupResultRows( rs, sidColumn, collectionJoins );
+    }
+
+    /**
+     * Generate the joins needed to read a set of mappings.
+     * @param mappings          The names of the mappings to include.
+     * @param columns           A column projection; or null to select all columns.
+     * @param clauses           SQL clauses of the query, e.g. its where condition; mappings referenced
+     *                          in these are joined even if none of their columns are projected.
+     *                          May be null.
+     * @param selects           A list to add the qualified names of the selected columns to.
+     * @param joins             A list to add the join SQL to.
+     * @param orderBys          A list to add order by column names to.
+     * @param collectionJoins   A list to add the names of collection relations to.
+     */
+    private void addJoins(List<String> mappings, List<String> columns, List<String> clauses, List<String> selects,
+                          List<String> joins, List<String> orderBys, List<String> collectionJoins) {
+        // The name of the ID column on the source table.
+        String sidColumn = getIDColumnForTable( source );
+
+        selects.addAll( getColumnNamesForTable( source, source, columns, sidColumn ) );
 
         for( String mname : this.mappings.keySet() ) {
 
@@ -102,14 +265,22 @@ public class ORM implements IOCObjectAware {
             String mtable = mapping.getTable();
             String relation = mapping.getRelation();
 
+            // Skip the mapping if none of its columns are in the projection, unless the query's
+            // clauses reference it; in which case join it, but project nothing from it.
+            List<String> mcolumns = getColumnNamesForTable( mtable, mname, columns, null );
+            boolean projected = mcolumns.size() > 0;
+            if( !projected && !isRelationReferenced( mname, clauses ) ) {
+                continue;
+            }
+
             if( "object".equals( relation ) || "property".equals( relation ) ) {
 
-                columns.add( getColumnNamesForTable( mtable, mname ) );
+                selects.addAll( mcolumns );
                 String midColumn = getColumnWithNameOrTag( mtable, mapping.getIdColumn(), "id" );
                 String join = String.format("LEFT OUTER JOIN %s %s ON %s.%s=%s.%s",
                     mtable,
                     mname,
-                    mtable,
+                    mname,
                     midColumn,
                     source,
                     sidColumn );
@@ -118,7 +289,7 @@ public class ORM implements IOCObjectAware {
             }
             else if( "shared-object".equals( relation ) || "shared-property".equals( relation ) ) {
 
-                columns.add( getColumnNamesForTable( mtable, mname ) );
+                selects.addAll( mcolumns );
                 String midColumn = getColumnWithNameOrTag( mtable, mapping.getIdColumn(), "id" );
                 String join = String.format("LEFT OUTER JOIN %s %s ON %s.%s=%s.%s",
                     mtable,
@@ -133,7 +304,7 @@ public class ORM implements IOCObjectAware {
             else if( "map".equals( relation ) || "dictionary".equals( relation ) ||
                      "array".equals( relation ) || "list".equals( relation ) ) {
 
-                columns.add( getColumnNamesForTable( mtable, mname ) );
+                selects.addAll( mcolumns );
                 String oidColumn = getColumnWithNameOrTag( mtable, mapping.getOwneridColumn(), "ownerid" );
                 String join = String.format("LEFT OUTER JOIN %s %s ON %s.%s=%s.%s",
                     mtable,
@@ -144,40 +315,51 @@ public class ORM implements IOCObjectAware {
                     oidColumn );
 
                 joins.add( join );
-                collectionJoins.add( mname );
+                if( projected ) {
+                    collectionJoins.add( mname );
 
-                // Order the result by the index column; note that this will be empty for
-                // map/dictionary sets (i.e. unordered collections), but will have values for
-                // array/list items.
-                String idxColumn = getColumnWithNameOrTag( mtable, mapping.getIndexColumn(), "index" );
-                orderBys.add( String.format("%s.%s", mname, idxColumn ) );
+                    // Order the result by the index column; note that this will be empty for
+                    // map/dictionary sets (i.e. unordered collections), but will have values for
+                    // array/list items.
+                    String idxColumn = getColumnWithNameOrTag( mtable, mapping.getIndexColumn(), "index" );
+                    orderBys.add( String.format("%s.%s", mname, idxColumn ) );
+                }
             }
         }
-        // Generate select SQL.
-        String sql = String.format("SELECT %s FROM %s %s %s WHERE %s",
-            TextUtils.join(",", columns ),
-            source,
-            source,
-            TextUtils.join(" ", joins ),
-            where );
+    }
 
-        if( orderBys.size() > 0 ) {
-            sql = sql+"ORDER BY "+TextUtils.join(",", orderBys );
+    /** Test whether any of a list of SQL clauses references columns of the named relation. */
+    private static boolean isRelationReferenced(String name, List<String> clauses) {
+        if( clauses != null ) {
+            Pattern reference = Pattern.compile("(?<![\\w.])"+Pattern.quote( name )+"\\.");
+            for( String clause : clauses ) {
+                if( clause != null && reference.matcher( clause ).find() ) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
 
-        // Execute the query and generate the result.
-        ResultSet rs = db.performQuery( sql, values );
-        ResultSet result = new ResultSet();
+    /**
+     * Group the rows of a flat join result into object records.
+     * Values are grouped by the relation name prefix of their column names. Rows are grouped into
+     * objects by source key value, so rows for the same object needn't be consecutive; collection
+     * relations are mapped to lists of distinct values, in result order.
+     */
+    private ResultSet groupResultRows(ResultSet rs, String sidColumn, List<String> collectionJoins) {
         // The fully qualified name of the source object key column in the result set.
         String keyColumn = String.format("%s.%s", source, sidColumn );
-        // The object currently being processed.
-        Record obj = null;
+        // The objects read so far, keyed by key value.
+        Map<Object,Record> objects = new LinkedHashMap<>();
         for( Record row : rs ) {
             Object key = row.get( keyColumn ); // Read the key value from the current result set row.
             // Convert flat result set row into groups of properties sharing the same column name prefix.
             Record groups = new Record();
-            for( String cname : row.keySet() ) {
-                Object value = row.get( cname );
+            for( Map.Entry<String,Object> entry : row.entrySet() ) {
+                // Read the raw value, so that compressed values remain compressed until used.
+                String cname = entry.getKey();
+                Object value = entry.getValue();
                 // Only map columns with values.
                 if( value != null ) {
                     // Split column name into prefix/suffix parts.
@@ -194,43 +376,40 @@ public class ORM implements IOCObjectAware {
                     group.put( suffix, value );
                 }
             }
+            Record obj = objects.get( key );
             // Check if dealing with a new object.
-            if( obj == null || !key.equals( obj.get( sidColumn ) ) ) {
+            if( obj == null ) {
                 // Convert groups into object + properties.
                 obj = (Record)groups.get( source );
                 for( String rname : groups.keySet() ) {
-                    Object value = groups.get( rname );
-                    if( !rname.equals( source ) ) {
-                        // If relation name is for an outer join - i.e. a one to many - then init
-                        // the object property as an array of values.
-                        if( collectionJoins.contains( rname ) ) {
-                            List<Object> vlist = new ArrayList<>();
-                            vlist.add( value );
-                            obj.put( rname, vlist );
-                        }
-                    else {
-                            // Else map the object property name to the value.
-                            obj.put( rname, value );
-                        }
+                    // Collection values are added below; map other relation names to the value.
+                    if( !rname.equals( source ) && !collectionJoins.contains( rname ) ) {
+                        obj.put( rname, groups.get( rname ) );
                     }
                 }
-                result.add( obj );
-            }
-            else for( String rname : collectionJoins ) {
-                // Processing subsequent rows for the same object - indicates outer join results.
-                List<Object> vlist = (List<Object>)obj.get( rname );
-                if( vlist != null ) {
-                    // Ensure that we have a list to hold the additional values.
-                    vlist = new ArrayList<>();
-                    obj.put( rname, vlist );
-                }
+                objects.put( key, obj );
+            }
+            // Add the row's value for each collection relation - i.e. a one to many - to the object
+            // property's list of values. Note that a row can repeat a previous row's value when
+            // more than one collection relation is joined.
+            for( String rname : collectionJoins ) {
                 // If we have a value for the current relation group then add to the property value list.
                 Object value = groups.get( rname );
                 if( value != null ) {
-                    vlist.add( value );
+                    List<Object> vlist = (List<Object>)obj.get( rname );
+                    if( vlist == null ) {
+                        // Ensure that we have a list to hold the values.
+                        vlist = new ArrayList<>();
+                        obj.put( rname, vlist );
+                    }
+                    if( !vlist.contains( value ) ) {
+                        vlist.add( value );
+                    }
                 }
             }
         }
+        ResultSet result = new ResultSet();
+        result.addAll( objects.values() );
         return result;
     }
 
@@ -257,6 +436,8 @@ public class ORM implements IOCObjectAware {
         // TODO Support deletion of many-one relations by deleting records from relation table where no foreign key value in source table.
         sql = String.format("DELETE FROM %s WHERE %s=?", source, sidColumn );
         ok &= db.performUpdate( sql, key );
+        ok &= refreshMaterializedViews( Arrays.asList( key ) );
+        ok &= refreshPivots( Arrays.asList( key ) );
         if( ok ) {
             db.commitTransaction();
         }
@@ -266,6 +447,181 @@ public class ORM implements IOCObjectAware {
         return ok;
     }
 
+    /**
+     * Add a materialized view of a set of mappings.
+     * The view is a table holding the denormalized result of joining the source table with each
+     * of the mapped tables. Queries on the same set of mappings read from the view instead of
+     * performing the join. Column references in the where conditions of such queries must be
+     * qualified by relation name, e.g. 'files.path' and not 'path'.
+     * The view is created, or rebuilt if its columns no longer match the table schemas, on first
+     * use; after that, refreshMaterializedViews() must be called after changes to the source or
+     * mapped tables.
+     * @param mappings      The names of the mappings to include in the view.
+     * @param indexColumns  Qualified names of additional view columns to index, e.g. 'files.category'.
+     *                      The source table's ID column is always indexed.
+     */
+    public void addMaterializedView(List<String> mappings, List<String> indexColumns) {
+        MaterializedView view = new MaterializedView( mappings, indexColumns );
+        if( getMaterializedView( mappings ) == null ) {
+            materializedViews.add( view );
+        }
+    }
+
+    /** Test whether any materialized views have been added. */
+    public boolean hasMaterializedViews() {
+        return materializedViews.size() > 0;
+    }
+
+    /** Find the materialized view for a set of mappings; returns null if no such view exists. */
+    private MaterializedView getMaterializedView(List<String> mappings) {
+        for( MaterializedView view : materializedViews ) {
+            if( view.matches( mappings ) ) {
+                return view;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Refresh all materialized views after changes to the database.
+     * @param ownerIDs  The IDs of the source objects whose data has changed; or null to rebuild all
+     *                  views in full.
+     */
+    public boolean refreshMaterializedViews(Collection<String> ownerIDs) {
+        boolean ok = true;
+        for( MaterializedView view : materializedViews ) {
+            ok &= ownerIDs == null ? view.rebuild() : view.refresh( ownerIDs );
+        }
+        return ok;
+    }
+
+    /** Return the pivot tables of the mappings with promoted keys, keyed by mapping name. */
+    private synchronized Map<String,KeyPivot> getPivots() {
+        if( pivots == null ) {
+            pivots = new HashMap<>();
+            for( String mname : mappings.keySet() ) {
+                Mapping mapping = mappings.get( mname );
+                if( mapping.isMapMapping() && mapping.pivotKeys != null && mapping.pivotKeys.size() > 0 ) {
+                    pivots.put( mname, new KeyPivot( mname, mapping ) );
+                }
+            }
+        }
+        return pivots;
+    }
+
+    /** Test whether any mappings have promoted keys. */
+    public boolean hasPivots() {
+        return getPivots().size() > 0;
+    }
+
+    /**
+     * Refresh the pivot tables of promoted map keys after changes to the database.
+     * @param ownerIDs  The IDs of the source objects whose data has changed; or null to rebuild all
+     *                  pivot tables in full.
+     */
+    public boolean refreshPivots(Collection<String> ownerIDs) {
+        boolean ok = true;
+        for( KeyPivot pivot : getPivots().values() ) {
+            ok &= ownerIDs == null ? pivot.rebuild() : pivot.refresh( ownerIDs );
+        }
+        return ok;
+    }
+
+    /**
+     * Rewrite references to promoted map keys, in the form 'relation.key', as references to the
+     * key's pivot table column.
+     * @param sql       A where condition or order by clause.
+     * @param joined    A list of the pivots referenced; referenced pivots are added to the list.
+     */
+    private String rewritePivotReferences(String sql, List<KeyPivot> joined) {
+        Map<String,KeyPivot> pivots = getPivots();
+        if( pivots.size() == 0 ) {
+            return sql;
+        }
+        StringBuffer result = new StringBuffer();
+        Matcher matcher = ColumnReferencePattern.matcher( sql );
+        while( matcher.find() ) {
+            String replacement = matcher.group();
+            String name = matcher.group( 1 );
+            String key = matcher.group( 2 );
+            if( name != null && key != null ) {
+                KeyPivot pivot = pivots.get( name );
+                if( pivot != null && pivot.keys.contains( key ) && pivot.prepare() ) {
+                    replacement = String.format("%s.%s", pivot.alias, quote( key ) );
+                    if( !joined.contains( pivot ) ) {
+                        joined.add( pivot );
+                    }
+                }
+            }
+            matcher.appendReplacement( result, Matcher.quoteReplacement( replacement ) );
+        }
+        matcher.appendTail( result );
+        return result.toString();
+    }
+
+    /**
+     * Return the IDs of the source objects owning a set of records.
+     * Used to find the objects affected by writes to the source table or to any mapped table.
+     * @param table     The name of the table the records were written to.
+     * @param records   The written records.
+     */
+    public Set<String> getOwnerIDs(String table, List<Map<String,Object>> records) {
+        Set<String> ownerIDs = new HashSet<>();
+        if( table.equals( source ) ) {
+            addColumnValues( ownerIDs, getIDColumnForTable( source ), records );
+        }
+        for( String mname : mappings.keySet() ) {
+            Mapping mapping = mappings.get( mname );
+            if( !table.equals( mapping.table ) ) {
+                continue;
+            }
+            if( mapping.isObjectMapping() ) {
+                // Object records share the owner's ID.
+                String midColumn = getColumnWithNameOrTag( table, mapping.idColumn, "id" );
+                addColumnValues( ownerIDs, midColumn, records );
+            }
+            else if( mapping.isSharedObjectMapping() ) {
+                // Query for the source objects referencing the shared records.
+                String midColumn = getColumnWithNameOrTag( table, mapping.idColumn, "id" );
+                List<String> ids = new ArrayList<>( addColumnValues( new HashSet<String>(), midColumn, records ) );
+                String sidColumn = getIDColumnForTable( source );
+                for( int i = 0; i < ids.size(); i += DB.MaxINListSize ) {
+                    List<String> chunk = ids.subList( i, Math.min( i + DB.MaxINListSize, ids.size() ) );
+                    String sql = String.format("SELECT %s FROM %s WHERE %s IN (%s)",
+                        sidColumn, source, mname, getPlaceholders( chunk.size() ) );
+                    for( Record record : db.performQuery( sql, chunk ) ) {
+                        ownerIDs.add( record.getValueAsString( sidColumn ) );
+                    }
+                }
+            }
+            else {
+                String oidColumn = getColumnWithNameOrTag( table, mapping.owneridColumn, "ownerid" );
+                addColumnValues( ownerIDs, oidColumn, records );
+            }
+        }
+        return ownerIDs;
+    }
+
+    /** Add the non-null values of a column in a list of records to a set of values. */
+    private static Set<String> addColumnValues(Set<String> values, String column, List<Map<String,Object>> records) {
+        for( Map<String,Object> record : records ) {
+            Object value = record.get( column );
+            if( value != null ) {
+                values.add( value.toString() );
+            }
+        }
+        return values;
+    }
+
+    /** Return a list of parameter placeholders, e.g. '?,?,?'. */
+    private static String getPlaceholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for( int i = 0; i < count; i++ ) {
+            placeholders.append( i == 0 ? "?" : ",?" );
+        }
+        return placeholders.toString();
+    }
+
     /** Return a column name, or if not specified, the name of the column on a table with the specified tag. */
     public String getColumnWithNameOrTag(String table, String name, String tag) {
         if( name == null ) {
@@ -277,18 +633,41 @@ public class ORM implements IOCObjectAware {
         return name;
     }
 
-    private String getColumnNamesForTable(String table, String prefix) {
-        String columnNames = null;
+    /**
+     * Return the qualified names of the columns on a table which are included in a projection.
+     * @param table         The table name.
+     * @param prefix        The relation name used to qualify the table's columns.
+     * @param projection    A list of qualified column names; or null to select all columns.
+     * @param keyColumn     The name of a column to always select; or null.
+     */
+    private List<String> getColumnNamesForTable(String table, String prefix, List<String> projection, String keyColumn) {
+        List<String> columns = new ArrayList<>();
         Table tableDef = db.getTables().get( table );
         if( tableDef != null ) {
-            List<String> columns = new ArrayList<>();
+            String wildcard = prefix+".*";
             for( Column columnDef : tableDef.columns ) {
                 String column = String.format("%s.%s", prefix, columnDef.name );
-                columns.add( String.format("%s AS '%s'", column, column ) );
+                if( projection == null
+                    || columnDef.name.equals( keyColumn )
+                    || projection.contains( wildcard )
+                    || projection.contains( column ) ) {
+                    columns.add( column );
+                }
             }
-            columnNames = TextUtils.join(",", columns );
         }
-        return columnNames;
+        return columns;
+    }
+
+    /** Return a select list for a list of qualified column names, aliasing each column to its qualified name. */
+    private static String getSelectColumnList(List<String> columns) {
+        StringBuilder list = new StringBuilder();
+        for( String column : columns ) {
+            if( list.length() > 0 ) {
+                list.append(',');
+            }
+            list.append( column ).append(" AS '").append( column ).append('\'');
+        }
+        return list.toString();
     }
 
     private String getIDColumnForTable(String table) {
@@ -302,6 +681,424 @@ public class ORM implements IOCObjectAware {
         }
     }
 
+    /** The result of preparing a derived table. */
+    enum PrepareResult { Ready, Created, Failed }
+
+    /**
+     * A table whose rows are derived from the rows of other tables, keyed by source object ID.
+     * The table is checked against the current schema on first use, and is (re)created and
+     * populated if missing or out of date. A table checked or created within a transaction is
+     * checked again on its next use, as the transaction may yet be rolled back. An existing table whose columns match is reused, but
+     * its rows may pre-date the latest changes to the source tables - e.g. after a process restart,
+     * or after the database file is replaced by a migrated copy - so a refresh always rewrites the
+     * rows of the changed objects, unless the table has only just been populated.
+     */
+    abstract class DerivedTable {
+
+        /** The name of the derived table. */
+        String table;
+        /**
+         * Flag indicating that the table has been checked against the current schema, outside of
+         * any transaction.
+         */
+        private volatile boolean ready;
+
+        /** Initialize the table definition and return the table's expected column names. */
+        abstract List<String> init();
+
+        /** (Re)create the table and populate it. */
+        abstract boolean create();
+
+        /**
+         * Insert rows for the specified source object IDs.
+         * @param ownerIDs  A list of object IDs; or null to insert rows for all source objects.
+         */
+        abstract boolean insert(String[] ownerIDs);
+
+        /** Return the SQL name of the table's source object ID column. */
+        abstract String getOwnerIDColumn();
+
+        /**
+         * Ensure that the table exists and is up to date with the table schemas.
+         * The table is recreated if it is missing or its columns don't match the schema.
+         */
+        boolean prepare() {
+            return prepareTable() != PrepareResult.Failed;
+        }
+
+        /** Prepare the table, and report whether it was created. */
+        private synchronized PrepareResult prepareTable() {
+            if( ready ) {
+                return PrepareResult.Ready;
+            }
+            List<String> columns = init();
+            // Compare the columns of the existing table, if any, with the expected columns.
+            List<String> tableColumns = new ArrayList<>();
+            for( Record record : db.performQuery( String.format("PRAGMA table_info(%s)", table ) ) ) {
+                tableColumns.add( record.getValueAsString("name") );
+            }
+            boolean inTransaction = db.isInTransaction();
+            if( tableColumns.equals( columns ) ) {
+                ready = !inTransaction;
+                return PrepareResult.Ready;
+            }
+            if( !create() ) {
+                return PrepareResult.Failed;
+            }
+            ready = !inTransaction;
+            return PrepareResult.Created;
+        }
+
+        /** Rebuild the table's contents in full. */
+        boolean rebuild() {
+            PrepareResult result = prepareTable();
+            if( result != PrepareResult.Ready ) {
+                // A newly created table is already populated.
+                return result == PrepareResult.Created;
+            }
+            return db.performUpdate( String.format("DELETE FROM %s", table ) ) && insert( null );
+        }
+
+        /** Refresh the rows of the specified source objects. */
+        boolean refresh(Collection<String> ownerIDs) {
+            PrepareResult result = prepareTable();
+            if( result != PrepareResult.Ready ) {
+                return result == PrepareResult.Created;
+            }
+            boolean ok = true;
+            List<String> ids = new ArrayList<>( ownerIDs );
+            for( int i = 0; i < ids.size(); i += DB.MaxINListSize ) {
+                List<String> chunk = ids.subList( i, Math.min( i + DB.MaxINListSize, ids.size() ) );
+                String[] args = chunk.toArray( new String[chunk.size()] );
+                String sql = String.format("DELETE FROM %s WHERE %s IN (%s)", table, getOwnerIDColumn(), getPlaceholders( args.length ) );
+                ok &= db.performUpdate( sql, args );
+                ok &= insert( args );
+            }
+            return ok;
+        }
+    }
+
+    /**
+     * A materialized view of a set of mappings.
+     * The view's table has a column for every column of the source and mapped tables, named by
+     * the column's qualified name (e.g. "post.title"), and holds one row for every row of the join
+     * of the source table with the mapped tables.
+     */
+    class MaterializedView extends DerivedTable {
+
+        /** The names of the mappings included in the view, in sorted order. */
+        final List<String> mappings;
+        /** Qualified names of additional view columns to index. */
+        final List<String> indexColumns;
+        /** The qualified names of all the view's columns, in table order. */
+        private List<String> columns;
+        /** Map of unqualified column names to unique qualified names; ambiguous names map to null. */
+        private Map<String,String> unqualifiedColumns;
+        /** The join SQL used to populate the view. */
+        private String selectSQL;
+        /** The view's collection relation names. */
+        private List<String> collectionJoins;
+
+        MaterializedView(List<String> mappings, List<String> indexColumns) {
+            List<String> names = new ArrayList<>();
+            for( String mname : mappings ) {
+                if( ORM.this.mappings.containsKey( mname ) && !names.contains( mname ) ) {
+                    names.add( mname );
+                }
+            }
+            Collections.sort( names );
+            this.mappings = names;
+            this.indexColumns = indexColumns != null ? indexColumns : Collections.<String>emptyList();
+            this.table = String.format("mv_%s_%s", source, TextUtils.join("_", names ) );
+        }
+
+        /** Test whether the view holds exactly the specified mappings. */
+        boolean matches(List<String> mappings) {
+            if( mappings == null ) {
+                return false;
+            }
+            Set<String> names = new HashSet<>();
+            for( String mname : mappings ) {
+                if( ORM.this.mappings.containsKey( mname ) ) {
+                    names.add( mname );
+                }
+            }
+            return names.size() == this.mappings.size() && names.containsAll( this.mappings );
+        }
+
+        @Override
+        List<String> init() {
+            String sidColumn = getIDColumnForTable( source );
+            List<String> selects = new ArrayList<>();
+            List<String> joins = new ArrayList<>();
+            List<String> orderBys = new ArrayList<>();
+            collectionJoins = new ArrayList<>();
+            addJoins( mappings, null, null, selects, joins, orderBys, collectionJoins );
+            columns = selects;
+            unqualifiedColumns = new HashMap<>();
+            for( String column : columns ) {
+                String name = column.substring( column.indexOf('.') + 1 );
+                unqualifiedColumns.put( name, unqualifiedColumns.containsKey( name ) ? null : column );
+            }
+            orderBys.add( 0, String.format("%s.%s", source, sidColumn ) );
+            selectSQL = String.format("SELECT %s FROM %s %s %s WHERE %s.%s IN (%%s) ORDER BY %s",
+                TextUtils.join(",", columns ),
+                source,
+                source,
+                TextUtils.join(" ", joins ),
+                source, sidColumn,
+                TextUtils.join(",", orderBys ) );
+            return columns;
+        }
+
+        @Override
+        boolean create() {
+            boolean ok = true;
+            db.beginTransaction();
+            try {
+                ok &= db.performUpdate( String.format("DROP TABLE IF EXISTS %s", table ) );
+                List<String> columnDefs = new ArrayList<>();
+                for( String column : columns ) {
+                    columnDefs.add( quote( column ) );
+                }
+                ok &= db.performUpdate( String.format("CREATE TABLE %s (%s)", table, TextUtils.join(",", columnDefs ) ) );
+                List<String> indexed = new ArrayList<>();
+                indexed.add( String.format("%s.%s", source, getIDColumnForTable( source ) ) );
+                indexed.addAll( indexColumns );
+                for( int i = 0; i < indexed.size(); i++ ) {
+                    ok &= db.performUpdate( String.format("CREATE INDEX %s_idx%d ON %s (%s)",
+                        table, i, table, quote( indexed.get( i ) ) ) );
+                }
+                ok &= insert( null );
+                if( ok ) {
+                    db.commitTransaction();
+                }
+                else {
+                    db.rollbackTransaction();
+                }
+            }
+            catch(Exception e) {
+                db.rollbackTransaction();
+                ok = false;
+            }
+            return ok;
+        }
+
+        @Override
+        String getOwnerIDColumn() {
+            return quote( String.format("%s.%s", source, getIDColumnForTable( source ) ) );
+        }
+
+        @Override
+        boolean insert(String[] ownerIDs) {
+            String where = ownerIDs != null ? getPlaceholders( ownerIDs.length ) : String.format("SELECT %s FROM %s", getIDColumnForTable( source ), source );
+            String sql = String.format("INSERT INTO %s %s", table, String.format( selectSQL, where ) );
+            return db.performUpdate( sql, ownerIDs != null ? ownerIDs : new String[0] );
+        }
+
+        /**
+         * Select the objects matching a where condition from the view.
+         * @return The result; or null if the view can't be used to evaluate the where condition.
+         */
+        ResultSet selectWhere(List<String> projection, String where, List<String> values, String orderBy) {
+            if( !prepare() ) {
+                return null;
+            }
+            where = qualifyColumnReferences( where );
+            if( where == null ) {
+                return null;
+            }
+            if( orderBy != null ) {
+                orderBy = qualifyColumnReferences( orderBy );
+                if( orderBy == null ) {
+                    return null;
+                }
+            }
+            // Select projected columns; the source ID column is always read.
+            String sidColumn = getIDColumnForTable( source );
+            String keyColumn = String.format("%s.%s", source, sidColumn );
+            List<String> selects = new ArrayList<>();
+            List<String> collections = new ArrayList<>();
+            for( String column : columns ) {
+                String relation = column.substring( 0, column.indexOf('.') );
+                if( projection == null
+                    || column.equals( keyColumn )
+                    || projection.contains( relation+".*" )
+                    || projection.contains( column ) ) {
+                    selects.add( String.format("%s AS '%s'", quote( column ), column ) );
+                    if( collectionJoins.contains( relation ) && !collections.contains( relation ) ) {
+                        collections.add( relation );
+                    }
+                }
+            }
+            // Rows are read in insertion order, which keeps each object's rows together and in
+            // collection index order.
+            String sql = String.format("SELECT %s FROM %s WHERE %s ORDER BY %s",
+                TextUtils.join(",", selects ), table, where, orderBy != null ? orderBy+",rowid" : "rowid" );
+            ResultSet rs = db.performQuery( sql, values );
+            return groupResultRows( rs, sidColumn, collections );
+        }
+
+        /**
+         * Rewrite the column references in a where condition to reference view columns.
+         * @return The rewritten condition; or null if the condition references a column not in
+         * the view, or an ambiguous unqualified column name.
+         */
+        private String qualifyColumnReferences(String where) {
+            StringBuffer result = new StringBuffer();
+            Matcher matcher = ColumnReferencePattern.matcher( where );
+            while( matcher.find() ) {
+                String replacement = matcher.group();
+                String name = matcher.group( 1 );
+                String column = matcher.group( 2 );
+                if( name != null ) {
+                    if( column != null ) {
+                        // Qualified column reference.
+                        String qualified = name+"."+column;
+                        if( !columns.contains( qualified ) ) {
+                            return null;
+                        }
+                        replacement = quote( qualified );
+                    }
+                    else if( unqualifiedColumns.containsKey( name ) ) {
+                        // Unqualified column reference.
+                        String qualified = unqualifiedColumns.get( name );
+                        if( qualified == null ) {
+                            return null;
+                        }
+                        replacement = quote( qualified );
+                    }
+                    // Else a keyword or function name; leave as is.
+                }
+                matcher.appendReplacement( result, Matcher.quoteReplacement( replacement ) );
+            }
+            matcher.appendTail( result );
+            return result.toString();
+        }
+    }
+
+    /**
+     * A pivot table of promoted map keys.
+     * The pivot table has an owner ID column, and an indexed column for each promoted key holding
+     * the key's value for the owner; so that objects can be filtered and ordered by key value
+     * using an index, instead of by scanning the map relation's key/value table.
+     */
+    class KeyPivot extends DerivedTable {
+
+        /** The name of the map mapping. */
+        final String mname;
+        /** The names of the promoted keys. */
+        final List<String> keys = new ArrayList<>();
+        /** The alias used when joining the pivot table. */
+        final String alias;
+        /** The mapped table. */
+        private final String mtable;
+
+        KeyPivot(String mname, Mapping mapping) {
+            this.mname = mname;
+            this.mtable = mapping.table;
+            this.table = String.format("%s_pivot", mapping.table );
+            this.alias = String.format("%s_pivot", mname );
+            Set<String> columnNames = new HashSet<>();
+            Table tableDef = db.getTables().get( mtable );
+            if( tableDef != null ) {
+                for( Column columnDef : tableDef.columns ) {
+                    columnNames.add( columnDef.name );
+                }
+            }
+            for( String key : mapping.pivotKeys ) {
+                // Keys are used as column names and SQL literals, so must be simple names; and
+                // mustn't hide a column of the mapped table.
+                if( key.matches("\\w+") && !columnNames.contains( key ) ) {
+                    keys.add( key );
+                }
+                else {
+                    Log.w( Tag, String.format("Invalid pivot key name %s on mapping %s", key, mname ) );
+                }
+            }
+        }
+
+        /** Return the SQL for joining the pivot table to the source table. */
+        String getJoin() {
+            return String.format("LEFT OUTER JOIN %s %s ON %s.ownerid=%s.%s",
+                table, alias, alias, source, getIDColumnForTable( source ) );
+        }
+
+        /** The pivot table has an owner ID column and a column for each promoted key. */
+        @Override
+        List<String> init() {
+            List<String> columns = new ArrayList<>();
+            columns.add("ownerid");
+            columns.addAll( keys );
+            return columns;
+        }
+
+        @Override
+        boolean create() {
+            boolean ok = true;
+            db.beginTransaction();
+            try {
+                ok &= db.performUpdate( String.format("DROP TABLE IF EXISTS %s", table ) );
+                List<String> columnDefs = new ArrayList<>();
+                columnDefs.add("ownerid PRIMARY KEY");
+                for( String key : keys ) {
+                    columnDefs.add( quote( key ) );
+                }
+                ok &= db.performUpdate( String.format("CREATE TABLE %s (%s)", table, TextUtils.join(",", columnDefs ) ) );
+                for( String key : keys ) {
+                    ok &= db.performUpdate( String.format("CREATE INDEX %s_%s ON %s (%s)", table, key, table, quote( key ) ) );
+                }
+                ok &= insert( null );
+                if( ok ) {
+                    db.commitTransaction();
+                }
+                else {
+                    db.rollbackTransaction();
+                }
+            }
+            catch(Exception e) {
+                db.rollbackTransaction();
+                ok = false;
+            }
+            return ok;
+        }
+
+        @Override
+        String getOwnerIDColumn() {
+            return "ownerid";
+        }
+
+        @Override
+        boolean insert(String[] ownerIDs) {
+            Mapping mapping = mappings.get( mname );
+            String oidColumn = getColumnWithNameOrTag( mtable, mapping.owneridColumn, "ownerid");
+            String keyColumn = getColumnWithNameOrTag( mtable, mapping.keyColumn, "key");
+            String valueColumn = getColumnWithNameOrTag( mtable, null, "value");
+            List<String> columns = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            List<String> literals = new ArrayList<>();
+            for( String key : keys ) {
+                columns.add( quote( key ) );
+                values.add( String.format("MAX(CASE WHEN %s='%s' THEN %s END)", keyColumn, key, valueColumn ) );
+                literals.add( String.format("'%s'", key ) );
+            }
+            String where = String.format("%s IN (%s)", keyColumn, TextUtils.join(",", literals ) );
+            if( ownerIDs != null ) {
+                where = String.format("%s AND %s IN (%s)", where, oidColumn, getPlaceholders( ownerIDs.length ) );
+            }
+            String sql = String.format("INSERT INTO %s (ownerid,%s) SELECT %s,%s FROM %s WHERE %s GROUP BY %s",
+                table, TextUtils.join(",", columns ),
+                oidColumn, TextUtils.join(",", values ),
+                mtable, where, oidColumn );
+            return db.performUpdate( sql, ownerIDs != null ? ownerIDs : new String[0] );
+        }
+    }
+
+    /** Quote an SQL identifier. */
+    private static String quote(String name) {
+        return "\""+name+"\"";
+    }
+
     /** A class describing a relation mapping between a source and property value table. */
     public static class Mapping {
 
@@ -323,6 +1120,11 @@ public class ORM implements IOCObjectAware {
         private String owneridColumn;
         /** The name of the version column. */
         private String verColumn;
+        /**
+         * Keys of map/dictionary items to promote into columns of an indexed pivot table.
+         * Allows objects to be filtered and ordered by key value, e.g. 'meta.date'.
+         */
+        private List<String> pivotKeys;
 
         public String getRelation() {
             return relation;
@@ -380,6 +1182,19 @@ public class ORM implements IOCObjectAware {
             this.verColumn = verColumn;
         }
 
+        public void setPivotKeys(List<String> pivotKeys) {
+            this.pivotKeys = pivotKeys;
+        }
+
+        public List<String> getPivotKeys() {
+            return pivotKeys;
+        }
+
+        /** Test whether the mapping represents a map or dictionary mapping. */
+        public boolean isMapMapping() {
+            return "map".equals( relation ) || "dictionary".equals( relation );
+        }
+
         /** Test whether the mapping represents a (non-shared) object or property mapping. */
         public boolean isObjectMapping() {
             return "object".equals( relation ) || "property".equals( relation );
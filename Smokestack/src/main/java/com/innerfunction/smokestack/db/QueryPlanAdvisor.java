@@ -0,0 +1,454 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index advisor for the SQL statements executed against a database.
+ * When attached to a DB, the advisor records each distinct statement executed through the DB's
+ * query methods - including the statements generated by DBFilter and ORM. Calling analyze() then
+ * runs EXPLAIN QUERY PLAN on each statement, flags full table scans, temporary B-trees and
+ * automatic indexes, and suggests indexes covering the columns each flagged statement filters,
+ * joins or orders on. Suggestions are returned in the format used by the 'indexes' property of a
+ * Table configuration.
+ *
+ * The class has no Android dependencies. Query plans are read through the Explainer interface,
+ * which DB implements; a JVM test harness can provide its own implementation over any SQLite
+ * connection (e.g. JDBC) and record statements directly.
+ */
+public class QueryPlanAdvisor {
+
+    /** An interface for reading the query plan of a SQL statement. */
+    public interface Explainer {
+        /**
+         * Return the detail column of each row returned by EXPLAIN QUERY PLAN for a statement.
+         * @param sql   The statement to explain.
+         * @param args  The statement's arguments.
+         */
+        List<String> explainQueryPlan(String sql, String... args);
+    }
+
+    /** A problem found in a statement's query plan. */
+    public static class Finding {
+
+        /** The types of query plan problem. */
+        public enum Kind { FullTableScan, TempBTree, AutomaticIndex }
+
+        /** The problem type. */
+        public final Kind kind;
+        /** The SQL statement. */
+        public final String sql;
+        /** The query plan line the problem was found on. */
+        public final String detail;
+        /** The name of the table affected; may be null. */
+        public final String table;
+        /** The columns of a suggested index on the table; empty if no index is suggested. */
+        public final List<String> columns;
+
+        Finding(Kind kind, String sql, String detail, String table, List<String> columns) {
+            this.kind = kind;
+            this.sql = sql;
+            this.detail = detail;
+            this.table = table;
+            this.columns = columns;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s: %s [%s]", kind, table, columns, detail, sql );
+        }
+    }
+
+    /** Pattern for matching SCAN and SEARCH query plan lines. */
+    static final Pattern ScanSearchPattern = Pattern.compile("^(SCAN|SEARCH)(?: TABLE)? (\\S+)(?: AS (\\S+))?(.*)$");
+    /** Pattern for matching the columns of an automatic index. */
+    static final Pattern AutomaticIndexPattern = Pattern.compile("AUTOMATIC (?:PARTIAL )?(?:COVERING )?INDEX \\((.*)\\)");
+    /** Pattern for matching temporary B-tree query plan lines. */
+    static final Pattern TempBTreePattern = Pattern.compile("USE TEMP B-TREE FOR (?:.*?)(ORDER BY|GROUP BY|DISTINCT)");
+    /** Pattern for matching table references and their aliases in SQL. */
+    static final Pattern TableRefPattern = Pattern.compile("(?i)\\b(?:FROM|JOIN)\\s+(\\w+)(?:\\s+(?:AS\\s+)?(\\w+))?");
+    /** Pattern for matching columns on the left hand side of a comparison. */
+    static final Pattern ComparisonPattern = Pattern.compile("(?i)(?:(\\w+)\\.)?([A-Za-z_]\\w*)\\s*(==|=|!=|<>|<=|>=|<|>|\\bIN\\b|\\bIS\\b|\\bLIKE\\b|\\bBETWEEN\\b)");
+    /** Pattern for matching qualified columns on the right hand side of a comparison (e.g. join conditions). */
+    static final Pattern RHSComparisonPattern = Pattern.compile("(==|=|<=|>=|<|>)\\s*(\\w+)\\.([A-Za-z_]\\w*)");
+    /** Pattern for matching a qualified column at the start of a comparison's right hand side. */
+    static final Pattern JoinRHSPattern = Pattern.compile("\\s*(\\w+)\\.([A-Za-z_]\\w*)");
+    /** Pattern for matching a possibly qualified column reference. */
+    static final Pattern ColumnRefPattern = Pattern.compile("(?:(\\w+)\\.)?([A-Za-z_]\\w*)");
+    /** Pattern for matching ORDER BY and GROUP BY clauses. */
+    static final Pattern OrderByPattern = Pattern.compile("(?i)\\b(ORDER|GROUP)\\s+BY\\s+(.*?)(?:\\bLIMIT\\b|\\bHAVING\\b|\\bORDER\\b|$)");
+
+    /** SQL keywords which can appear in positions matched by the column patterns. */
+    static final Set<String> Keywords = new HashSet<>( Arrays.asList(
+        "AND", "OR", "NOT", "WHERE", "ON", "AS", "LEFT", "RIGHT", "INNER", "OUTER", "CROSS", "JOIN",
+        "SELECT", "FROM", "ORDER", "GROUP", "BY", "LIMIT", "HAVING", "NULL", "SET", "CASE", "WHEN",
+        "THEN", "ELSE", "END", "USING", "NATURAL", "UNION", "VALUES", "EXISTS" ) );
+
+    /** The distinct statements recorded, mapped to the arguments they were first executed with. */
+    private Map<String,String[]> statements = new LinkedHashMap<>();
+    /** Optional table schemas; used to validate suggested columns and to skip existing indexes. */
+    private Map<String,Table> tables;
+
+    public void setTables(Map<String,Table> tables) {
+        this.tables = tables;
+    }
+
+    /** Record a statement for analysis. Only the first occurrence of each statement is kept. */
+    public synchronized void record(String sql, String... args) {
+        if( !statements.containsKey( sql ) ) {
+            statements.put( sql, args == null ? new String[0] : args.clone() );
+        }
+    }
+
+    /** Return the distinct statements recorded so far. */
+    public synchronized Set<String> getStatements() {
+        return new LinkedHashSet<>( statements.keySet() );
+    }
+
+    /** Clear all recorded statements. */
+    public synchronized void clear() {
+        statements.clear();
+    }
+
+    /**
+     * Analyze the query plans of all recorded statements.
+     * @param explainer An object for reading query plans.
+     * @return A list of the problems found.
+     */
+    public List<Finding> analyze(Explainer explainer) {
+        Map<String,String[]> statements;
+        synchronized( this ) {
+            statements = new LinkedHashMap<>( this.statements );
+        }
+        List<Finding> findings = new ArrayList<>();
+        for( String sql : statements.keySet() ) {
+            String[] args = statements.get( sql );
+            List<String> plan = explainer.explainQueryPlan( sql, args );
+            if( plan != null ) {
+                findings.addAll( analyzePlan( sql, plan ) );
+            }
+        }
+        return findings;
+    }
+
+    /**
+     * Analyze the query plan of a single statement.
+     * @param sql   The statement.
+     * @param plan  The detail lines of the statement's query plan.
+     * @return A list of the problems found.
+     */
+    public List<Finding> analyzePlan(String sql, List<String> plan) {
+        List<Finding> findings = new ArrayList<>();
+        Map<String,String> aliases = getTableAliases( sql );
+        for( String detail : plan ) {
+            detail = detail.trim();
+            Matcher matcher = ScanSearchPattern.matcher( detail );
+            if( matcher.matches() ) {
+                String op = matcher.group( 1 );
+                String name = matcher.group( 3 ) != null ? matcher.group( 3 ) : matcher.group( 2 );
+                String rest = matcher.group( 4 );
+                String table = aliases.get( name );
+                if( table == null ) {
+                    // Subquery, constant row or other non-table scan.
+                    continue;
+                }
+                Matcher autoMatcher = AutomaticIndexPattern.matcher( rest );
+                if( autoMatcher.find() ) {
+                    // SQLite built a transient index for this statement; suggest a permanent one.
+                    List<String> columns = new ArrayList<>();
+                    for( String term : autoMatcher.group( 1 ).split(" AND ") ) {
+                        String column = term.replaceAll("[=<>?].*$", "").trim();
+                        if( column.length() > 0 ) {
+                            columns.add( column );
+                        }
+                    }
+                    findings.add( new Finding( Finding.Kind.AutomaticIndex, sql, detail, table, columns ) );
+                }
+                else if( "SCAN".equals( op ) && !rest.contains(" INDEX") ) {
+                    List<String> columns = getPredicateColumns( sql, table, aliases );
+                    findings.add( new Finding( Finding.Kind.FullTableScan, sql, detail, table, columns ) );
+                }
+                continue;
+            }
+            matcher = TempBTreePattern.matcher( detail );
+            if( matcher.find() ) {
+                String clause = matcher.group( 1 );
+                String table = null;
+                List<String> columns = new ArrayList<>();
+                if( !"DISTINCT".equals( clause ) ) {
+                    // Suggest an index with the table's equality predicates followed by the
+                    // order/group columns, allowing the sort to be read from the index.
+                    Map<String,List<String>> orderColumns = getOrderColumns( sql, clause, aliases );
+                    if( orderColumns.size() == 1 ) {
+                        table = orderColumns.keySet().iterator().next();
+                        List<String> predicates = getPredicateColumns( sql, table, aliases, true );
+                        columns.addAll( predicates );
+                        for( String column : orderColumns.get( table ) ) {
+                            if( !columns.contains( column ) ) {
+                                columns.add( column );
+                            }
+                        }
+                    }
+                }
+                findings.add( new Finding( Finding.Kind.TempBTree, sql, detail, table, columns ) );
+            }
+        }
+        return findings;
+    }
+
+    /**
+     * Return the indexes suggested by a list of findings.
+     * Duplicate suggestions, and suggestions already covered by a configured table index, are
+     * removed.
+     * @return A map of table names onto index definitions, in Table 'indexes' format.
+     */
+    public Map<String,Map<String,List<String>>> getSuggestedIndexes(List<Finding> findings) {
+        Map<String,Map<String,List<String>>> result = new LinkedHashMap<>();
+        for( Finding finding : findings ) {
+            if( finding.table == null || finding.columns.isEmpty() ) {
+                continue;
+            }
+            if( isCoveredByExistingIndex( finding.table, finding.columns ) ) {
+                continue;
+            }
+            Map<String,List<String>> indexes = result.get( finding.table );
+            if( indexes == null ) {
+                indexes = new LinkedHashMap<>();
+                result.put( finding.table, indexes );
+            }
+            StringBuilder name = new StringBuilder( finding.table );
+            for( String column : finding.columns ) {
+                name.append('_').append( column );
+            }
+            indexes.put( name.toString(), finding.columns );
+        }
+        return result;
+    }
+
+    /**
+     * Return the indexes suggested by a list of findings as JSON table configuration.
+     * The result has the form { "table": { "indexes": { "table_col": [ "col" ] } } }, which can
+     * be merged into a DB's 'tables' configuration.
+     */
+    public String getSuggestedIndexConfig(List<Finding> findings) {
+        Map<String,Object> config = new LinkedHashMap<>();
+        Map<String,Map<String,List<String>>> suggestions = getSuggestedIndexes( findings );
+        for( String table : suggestions.keySet() ) {
+            Map<String,Object> tableConfig = new HashMap<>();
+            tableConfig.put("indexes", suggestions.get( table ) );
+            config.put( table, tableConfig );
+        }
+        return JSONObject.toJSONString( config );
+    }
+
+    /** Return a map of the table names and aliases used in a statement onto table names. */
+    private Map<String,String> getTableAliases(String sql) {
+        Map<String,String> aliases = new HashMap<>();
+        Matcher matcher = TableRefPattern.matcher( sql );
+        while( matcher.find() ) {
+            String table = matcher.group( 1 );
+            if( Keywords.contains( table.toUpperCase() ) ) {
+                continue;
+            }
+            aliases.put( table, table );
+            String alias = matcher.group( 2 );
+            if( alias != null && !Keywords.contains( alias.toUpperCase() ) ) {
+                aliases.put( alias, table );
+            }
+        }
+        return aliases;
+    }
+
+    /** Return the name of the first table in a statement's FROM clause. */
+    private String getFirstTable(String sql) {
+        Matcher matcher = TableRefPattern.matcher( sql );
+        return matcher.find() ? matcher.group( 1 ) : null;
+    }
+
+    /** Return the columns of a table used in a statement's predicates; equality columns first. */
+    private List<String> getPredicateColumns(String sql, String table, Map<String,String> aliases) {
+        return getPredicateColumns( sql, table, aliases, false );
+    }
+
+    /**
+     * Return the columns of a table used in a statement's predicates.
+     * Equality columns are returned first, followed by at most one range column (an index can't
+     * be used for more than one range constraint).
+     * @param equalityOnly  If true then only return equality columns.
+     */
+    private List<String> getPredicateColumns(String sql, String table, Map<String,String> aliases, boolean equalityOnly) {
+        Set<String> equalities = new LinkedHashSet<>();
+        Set<String> ranges = new LinkedHashSet<>();
+        int idx = indexOfIgnoreCase( sql, " FROM " );
+        String predicates = idx > -1 ? sql.substring( idx ) : sql;
+        // Strip string literals, so that their contents aren't mistaken for column names.
+        predicates = predicates.replaceAll("'[^']*'", "''");
+        boolean singleTable = new HashSet<>( aliases.values() ).size() == 1;
+        // Join conditions aren't useful index columns on the statement's first (outer) table.
+        boolean isOuterTable = table.equals( getFirstTable( sql ) );
+        Matcher matcher = ComparisonPattern.matcher( predicates );
+        while( matcher.find() ) {
+            String qualifier = matcher.group( 1 );
+            String column = matcher.group( 2 );
+            String op = matcher.group( 3 ).toUpperCase();
+            if( Keywords.contains( column.toUpperCase() ) || !isTableColumn( table, qualifier, column, aliases, singleTable ) ) {
+                continue;
+            }
+            if( isOuterTable && JoinRHSPattern.matcher( predicates.substring( matcher.end() ) ).lookingAt() ) {
+                continue;
+            }
+            if( "=".equals( op ) || "==".equals( op ) || "IN".equals( op ) || "IS".equals( op ) ) {
+                equalities.add( column );
+            }
+            else if( !"!=".equals( op ) && !"<>".equals( op ) ) {
+                ranges.add( column );
+            }
+        }
+        matcher = RHSComparisonPattern.matcher( predicates );
+        while( matcher.find() && !isOuterTable ) {
+            String qualifier = matcher.group( 2 );
+            String column = matcher.group( 3 );
+            if( table.equals( aliases.get( qualifier ) ) && isDefinedColumn( table, column ) ) {
+                if( "=".equals( matcher.group( 1 ) ) || "==".equals( matcher.group( 1 ) ) ) {
+                    equalities.add( column );
+                }
+                else {
+                    ranges.add( column );
+                }
+            }
+        }
+        List<String> columns = new ArrayList<>( equalities );
+        if( !equalityOnly ) {
+            for( String column : ranges ) {
+                if( !columns.contains( column ) ) {
+                    columns.add( column );
+                    break;
+                }
+            }
+        }
+        return columns;
+    }
+
+    /** Return the ORDER BY or GROUP BY columns of a statement, grouped by table. */
+    private Map<String,List<String>> getOrderColumns(String sql, String clause, Map<String,String> aliases) {
+        Map<String,List<String>> result = new LinkedHashMap<>();
+        boolean singleTable = new HashSet<>( aliases.values() ).size() == 1;
+        String keyword = clause.substring( 0, clause.indexOf(' ') );
+        Matcher matcher = OrderByPattern.matcher( sql );
+        while( matcher.find() ) {
+            if( !keyword.equalsIgnoreCase( matcher.group( 1 ) ) ) {
+                continue;
+            }
+            for( String term : matcher.group( 2 ).split(",") ) {
+                Matcher columnMatcher = ColumnRefPattern.matcher( term.trim().split("\\s+")[0] );
+                if( !columnMatcher.matches() ) {
+                    // Expression, e.g. a function call.
+                    return new HashMap<>();
+                }
+                String qualifier = columnMatcher.group( 1 );
+                String column = columnMatcher.group( 2 );
+                String table = null;
+                if( qualifier != null ) {
+                    table = aliases.get( qualifier );
+                }
+                else if( singleTable ) {
+                    table = aliases.values().iterator().next();
+                }
+                if( table == null || !isDefinedColumn( table, column ) ) {
+                    // Can't attribute the term to a table column (e.g. an expression).
+                    return new HashMap<>();
+                }
+                List<String> columns = result.get( table );
+                if( columns == null ) {
+                    columns = new ArrayList<>();
+                    result.put( table, columns );
+                }
+                columns.add( column );
+            }
+        }
+        return result;
+    }
+
+    /** Test whether a possibly qualified column reference refers to a column on a table. */
+    private boolean isTableColumn(String table, String qualifier, String column, Map<String,String> aliases, boolean singleTable) {
+        if( qualifier != null ) {
+            return table.equals( aliases.get( qualifier ) ) && isDefinedColumn( table, column );
+        }
+        if( singleTable ) {
+            return isDefinedColumn( table, column );
+        }
+        // Unqualified column in a multi-table statement; only attribute it to the table if the
+        // schema is known and no other table in the statement defines the column.
+        if( tables == null || !isDefinedColumn( table, column ) ) {
+            return false;
+        }
+        for( String other : new HashSet<>( aliases.values() ) ) {
+            if( !other.equals( table ) && isDefinedColumn( other, column ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Test whether a column is defined on a table; always true if the schema isn't known. */
+    private boolean isDefinedColumn(String table, String column) {
+        if( tables == null ) {
+            return true;
+        }
+        Table tableDef = tables.get( table );
+        if( tableDef == null || tableDef.columns == null ) {
+            return false;
+        }
+        for( Column columnDef : tableDef.columns ) {
+            if( column.equals( columnDef.name ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Test whether a configured index on a table starts with the specified columns. */
+    private boolean isCoveredByExistingIndex(String table, List<String> columns) {
+        if( tables == null ) {
+            return false;
+        }
+        Table tableDef = tables.get( table );
+        if( tableDef == null || tableDef.indexes == null ) {
+            return false;
+        }
+        for( List<String> index : tableDef.indexes.values() ) {
+            if( index.size() >= columns.size() && index.subList( 0, columns.size() ).equals( columns ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfIgnoreCase(String s, String sub) {
+        return s.toUpperCase().indexOf( sub.toUpperCase() );
+    }
+}
@@ -13,10 +13,13 @@
 // limitations under the License
 package com.innerfunction.smokestack.db;
 
+import android.util.Base64;
+
 import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A database record.
@@ -27,6 +30,21 @@ import java.util.HashMap;
  */
 public class Record extends HashMap<String,Object> implements JSONAware {
 
+    /**
+     * Return a field value.
+     * Compressed text values are decompressed, and replaced with the decompressed text, on first
+     * access.
+     */
+    @Override
+    public Object get(Object field) {
+        Object value = super.get( field );
+        if( value instanceof TextCompression.CompressedValue ) {
+            value = value.toString();
+            super.put( (String)field, value );
+        }
+        return value;
+    }
+
     /**
      * Return a field value as an integer.
      * @param field The name of the field to get.
@@ -37,6 +55,36 @@ public class Record extends HashMap<String,Object> implements JSONAware {
         return value instanceof Number ? ((Number)value).intValue() : -1;
     }
 
+    /**
+     * Return a field value as a long.
+     * @param field The name of the field to get.
+     * @return The long value of the field; or -1 if the field is null or not a number.
+     */
+    public long getValueAsLong(String field) {
+        Object value = get( field );
+        return value instanceof Number ? ((Number)value).longValue() : -1;
+    }
+
+    /**
+     * Return a field value as a double.
+     * @param field The name of the field to get.
+     * @return The double value of the field; or NaN if the field is null or not a number.
+     */
+    public double getValueAsDouble(String field) {
+        Object value = get( field );
+        return value instanceof Number ? ((Number)value).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * Return a field value as a byte array.
+     * @param field The name of the field to get.
+     * @return The field's BLOB value, or null if the field is not a BLOB.
+     */
+    public byte[] getValueAsBlob(String field) {
+        Object value = get( field );
+        return value instanceof byte[] ? (byte[])value : null;
+    }
+
     /**
      * Return a field value as a string.
      * @param field The name of the field to get.
@@ -47,9 +95,22 @@ public class Record extends HashMap<String,Object> implements JSONAware {
         return value == null ? null : value.toString();
     }
 
+    /**
+     * Return the record as a JSON string.
+     * BLOB values are written as base64 encoded strings, and compressed text values are written
+     * as their decompressed text.
+     */
     @Override
     public String toJSONString() {
-        return JSONObject.toJSONString( this );
+        Map<String,Object> values = new HashMap<>();
+        for( String field : keySet() ) {
+            Object value = get( field );
+            if( value instanceof byte[] ) {
+                value = Base64.encodeToString( (byte[])value, Base64.NO_WRAP );
+            }
+            values.put( field, value );
+        }
+        return JSONObject.toJSONString( values );
     }
 
     @Override
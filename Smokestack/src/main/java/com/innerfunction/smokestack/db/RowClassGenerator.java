@@ -0,0 +1,336 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A generator of typed row classes.
+ * Generates the Java source of a TypedRow implementation from a table schema. The generated class
+ * has a public field for each of the table's columns, typed by the column's affinity - INTEGER
+ * columns as long, REAL as double, BLOB as byte[] and TEXT and NUMERIC as String - and reads and
+ * binds column values by position.
+ *
+ * NULL values of primitive fields are tracked in a bit mask, so field values should be written
+ * using the generated setter methods, which clear the field's null flag. The primitive fields of
+ * a new row are NULL until set, so e.g. an unset INTEGER PRIMARY KEY is assigned by the database
+ * when the row is inserted.
+ *
+ * The generator can be run from the command line (see the generateRowClasses Gradle task) with
+ * the following arguments:
+ *
+ *   <schema.json> <output dir> <package> [table...]
+ *
+ * Where schema.json is a DB configuration containing a 'tables' property.
+ */
+public class RowClassGenerator {
+
+    /** The maximum number of columns supported; limited by the size of the null flag bit mask. */
+    static final int MaxColumns = 64;
+
+    /** Java keywords, which can't be used as field names. */
+    static final Set<String> Keywords = new HashSet<>( Arrays.asList(
+        "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+        "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally",
+        "float", "for", "goto", "if", "implements", "import", "instanceof", "int", "interface",
+        "long", "native", "new", "package", "private", "protected", "public", "return", "short",
+        "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws",
+        "transient", "try", "void", "volatile", "while", "true", "false", "null" ) );
+
+    /** The package name of generated classes. */
+    private String packageName;
+
+    public RowClassGenerator(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /** Return the default class name for a table's row class, e.g. 'files' -> 'FilesRow'. */
+    public static String getClassName(Table table) {
+        return toCamelCase( table.getName(), true )+"Row";
+    }
+
+    /**
+     * Generate the source of a typed row class for a table.
+     * @param table     The table schema.
+     * @param className The name of the class to generate.
+     * @return The Java source of the class.
+     */
+    public String generate(Table table, String className) {
+        Column[] columns = table.getColumns();
+        if( columns.length > MaxColumns ) {
+            throw new IllegalArgumentException( String.format("Table %s has more than %d columns", table.getName(), MaxColumns ) );
+        }
+        String idColumn = null;
+        boolean hasCompressed = false;
+        for( Column column : columns ) {
+            if( "id".equals( column.getTag() ) ) {
+                idColumn = column.getName();
+            }
+            hasCompressed |= column.isCompressed();
+        }
+        StringBuilder src = new StringBuilder();
+        src.append("// Generated by RowClassGenerator from the ").append( table.getName() ).append(" table schema; do not edit.\n");
+        src.append("package ").append( packageName ).append(";\n\n");
+        src.append("import android.database.Cursor;\n");
+        src.append("import android.database.sqlite.SQLiteStatement;\n\n");
+        if( hasCompressed ) {
+            src.append("import com.innerfunction.smokestack.db.TextCompression;\n");
+        }
+        src.append("import com.innerfunction.smokestack.db.TypedRow;\n\n");
+        src.append("/**\n * A typed row of the ").append( table.getName() ).append(" table.\n */\n");
+        src.append("public class ").append( className ).append(" implements TypedRow {\n\n");
+        // Schema.
+        src.append("    public static final String TableName = \"").append( table.getName() ).append("\";\n\n");
+        src.append("    public static final String[] ColumnNames = new String[]{");
+        for( int i = 0; i < columns.length; i++ ) {
+            src.append( i == 0 ? " " : ", ").append('"').append( columns[i].getName() ).append('"');
+        }
+        src.append(" };\n\n");
+        src.append("    public static final TypedRow.Schema<").append( className ).append("> RowSchema = new TypedRow.Schema<").append( className ).append(">() {\n");
+        src.append("        @Override\n        public String getTableName() {\n            return TableName;\n        }\n");
+        src.append("        @Override\n        public String[] getColumnNames() {\n            return ColumnNames;\n        }\n");
+        src.append("        @Override\n        public String getIDColumn() {\n            return ");
+        src.append( idColumn != null ? "\""+idColumn+"\"" : "null").append(";\n        }\n");
+        src.append("        @Override\n        public ").append( className ).append(" newRow() {\n            return new ").append( className ).append("();\n        }\n");
+        src.append("    };\n\n");
+        // Fields.
+        for( Column column : columns ) {
+            src.append("    public ").append( getFieldType( column ) ).append(' ').append( getFieldName( column ) ).append(";\n");
+        }
+        // Primitive fields of new rows are NULL until set.
+        StringBuilder initialNulls = new StringBuilder();
+        for( int i = 0; i < columns.length; i++ ) {
+            if( isPrimitive( columns[i] ) ) {
+                initialNulls.append( initialNulls.length() > 0 ? " | " : "").append("(1L << ").append( i ).append(")");
+            }
+        }
+        src.append("    /** Null flags for primitive fields; bit n is set when column n is NULL. */\n");
+        src.append("    private long nulls = ").append( initialNulls.length() > 0 ? initialNulls : "0").append(";\n\n");
+        // Null test.
+        src.append("    /** Test whether a column's value is NULL. */\n");
+        src.append("    public boolean isNull(int column) {\n");
+        src.append("        switch( column ) {\n");
+        for( int i = 0; i < columns.length; i++ ) {
+            if( !isPrimitive( columns[i] ) ) {
+                src.append("        case ").append( i ).append(": return ").append( getFieldName( columns[i] ) ).append(" == null;\n");
+            }
+        }
+        src.append("        default: return (nulls & (1L << column)) != 0;\n");
+        src.append("        }\n    }\n\n");
+        // Setters.
+        for( int i = 0; i < columns.length; i++ ) {
+            Column column = columns[i];
+            String field = getFieldName( column );
+            src.append("    public void set").append( toCamelCase( column.getName(), true ) );
+            src.append("(").append( getFieldType( column ) ).append(' ').append( field ).append(") {\n");
+            src.append("        this.").append( field ).append(" = ").append( field ).append(";\n");
+            if( isPrimitive( column ) ) {
+                src.append("        this.nulls &= ~(1L << ").append( i ).append(");\n");
+            }
+            src.append("    }\n\n");
+        }
+        // Primitive null setter.
+        src.append("    /** Set a primitive column's value to NULL. */\n");
+        src.append("    public void setNull(int column) {\n");
+        src.append("        nulls |= (1L << column);\n    }\n\n");
+        // Cursor reader.
+        src.append("    @Override\n    public void readFromCursor(Cursor cursor) {\n");
+        src.append("        nulls = 0;\n");
+        for( int i = 0; i < columns.length; i++ ) {
+            Column column = columns[i];
+            String field = getFieldName( column );
+            switch( column.getAffinity() ) {
+            case INTEGER:
+                src.append("        if( cursor.isNull( ").append( i ).append(" ) ) {\n");
+                src.append("            ").append( field ).append(" = 0;\n");
+                src.append("            nulls |= (1L << ").append( i ).append(");\n");
+                src.append("        }\n        else {\n");
+                src.append("            ").append( field ).append(" = cursor.getLong( ").append( i ).append(" );\n        }\n");
+                break;
+            case REAL:
+                src.append("        if( cursor.isNull( ").append( i ).append(" ) ) {\n");
+                src.append("            ").append( field ).append(" = 0;\n");
+                src.append("            nulls |= (1L << ").append( i ).append(");\n");
+                src.append("        }\n        else {\n");
+                src.append("            ").append( field ).append(" = cursor.getDouble( ").append( i ).append(" );\n        }\n");
+                break;
+            case BLOB:
+                src.append("        ").append( field ).append(" = cursor.isNull( ").append( i ).append(" ) ? null : cursor.getBlob( ").append( i ).append(" );\n");
+                break;
+            default:
+                if( column.isCompressed() ) {
+                    src.append("        ").append( field ).append(" = TextCompression.readString( cursor, ").append( i ).append(" );\n");
+                    break;
+                }
+                src.append("        ").append( field ).append(" = cursor.getString( ").append( i ).append(" );\n");
+            }
+        }
+        src.append("    }\n\n");
+        // Statement binder.
+        src.append("    @Override\n    public void bindToStatement(SQLiteStatement statement) {\n");
+        for( int i = 0; i < columns.length; i++ ) {
+            Column column = columns[i];
+            String field = getFieldName( column );
+            int idx = i + 1;
+            switch( column.getAffinity() ) {
+            case INTEGER:
+            case REAL:
+                src.append("        if( (nulls & (1L << ").append( i ).append(")) != 0 ) {\n");
+                src.append("            statement.bindNull( ").append( idx ).append(" );\n");
+                src.append("        }\n        else {\n");
+                src.append("            statement.").append( column.getAffinity() == Column.Affinity.INTEGER ? "bindLong" : "bindDouble" );
+                src.append("( ").append( idx ).append(", ").append( field ).append(" );\n        }\n");
+                break;
+            default:
+                if( column.isCompressed() && column.getAffinity() != Column.Affinity.BLOB ) {
+                    src.append("        TextCompression.bindString( statement, ").append( idx ).append(", ").append( field ).append(" );\n");
+                    break;
+                }
+                src.append("        if( ").append( field ).append(" == null ) {\n");
+                src.append("            statement.bindNull( ").append( idx ).append(" );\n");
+                src.append("        }\n        else {\n");
+                src.append("            statement.").append( column.getAffinity() == Column.Affinity.BLOB ? "bindBlob" : "bindString" );
+                src.append("( ").append( idx ).append(", ").append( field ).append(" );\n        }\n");
+            }
+        }
+        src.append("    }\n\n");
+        src.append("    @Override\n    public TypedRow.Schema<").append( className ).append("> getSchema() {\n");
+        src.append("        return RowSchema;\n    }\n");
+        src.append("}\n");
+        return src.toString();
+    }
+
+    /** Return the Java type of a column's field. */
+    private static String getFieldType(Column column) {
+        switch( column.getAffinity() ) {
+        case INTEGER:   return "long";
+        case REAL:      return "double";
+        case BLOB:      return "byte[]";
+        default:        return "String";
+        }
+    }
+
+    /** Test whether a column's field has a primitive type. */
+    private static boolean isPrimitive(Column column) {
+        Column.Affinity affinity = column.getAffinity();
+        return affinity == Column.Affinity.INTEGER || affinity == Column.Affinity.REAL;
+    }
+
+    /** Return the name of a column's field. */
+    private static String getFieldName(Column column) {
+        String name = toCamelCase( column.getName(), false );
+        return Keywords.contains( name ) ? name+"_" : name;
+    }
+
+    /** Convert a column or table name, e.g. 'file_id', to camel case, e.g. 'fileId'. */
+    private static String toCamelCase(String name, boolean initialCap) {
+        StringBuilder result = new StringBuilder();
+        boolean cap = initialCap;
+        for( char ch : name.toCharArray() ) {
+            if( !Character.isLetterOrDigit( ch ) ) {
+                cap = true;
+            }
+            else if( cap ) {
+                result.append( Character.toUpperCase( ch ) );
+                cap = false;
+            }
+            else {
+                result.append( ch );
+            }
+        }
+        if( result.length() == 0 || !Character.isJavaIdentifierStart( result.charAt( 0 ) ) ) {
+            result.insert( 0, '_');
+        }
+        return result.toString();
+    }
+
+    /** Read a table schema from a JSON table configuration. */
+    static Table readTable(String name, Map<String,Object> config) {
+        Table table = new Table();
+        table.setName( name );
+        Map<String,Column> columns = new LinkedHashMap<>();
+        Map<String,Object> columnConfigs = (Map<String,Object>)config.get("columns");
+        for( String columnName : columnConfigs.keySet() ) {
+            Map<String,Object> columnConfig = (Map<String,Object>)columnConfigs.get( columnName );
+            Column column = new Column( columnName, (String)columnConfig.get("type"), (String)columnConfig.get("tag") );
+            column.setCompressed( Boolean.TRUE.equals( columnConfig.get("compressed") ) );
+            columns.put( columnName, column );
+        }
+        table.setColumns( columns );
+        return table;
+    }
+
+    /**
+     * Generate row classes from a JSON schema file.
+     * Arguments: <schema.json> <output dir> <package> [table...]
+     */
+    public static void main(String[] args) throws Exception {
+        if( args.length < 3 ) {
+            System.err.println("Usage: RowClassGenerator <schema.json> <output dir> <package> [table...]");
+            System.exit( 1 );
+        }
+        Map<String,Object> schema = (Map<String,Object>)JSONValue.parseWithException( readFile( new File( args[0] ) ) );
+        Map<String,Object> tables = (Map<String,Object>)schema.get("tables");
+        File outputDir = new File( args[1], args[2].replace('.', File.separatorChar ) );
+        outputDir.mkdirs();
+        Set<String> tableNames = tables.keySet();
+        if( args.length > 3 ) {
+            tableNames = new HashSet<>( Arrays.asList( args ).subList( 3, args.length ) );
+        }
+        RowClassGenerator generator = new RowClassGenerator( args[2] );
+        for( String tableName : tableNames ) {
+            Table table = readTable( tableName, (Map<String,Object>)tables.get( tableName ) );
+            String className = getClassName( table );
+            String src = generator.generate( table, className );
+            writeFile( new File( outputDir, className+".java"), src );
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream( file );
+        try {
+            byte[] data = new byte[(int)file.length()];
+            int offset = 0, count;
+            while( offset < data.length && (count = in.read( data, offset, data.length - offset )) != -1 ) {
+                offset += count;
+            }
+            return new String( data, 0, offset, "UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream( file );
+        try {
+            out.write( content.getBytes("UTF-8") );
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+/**
+ * A dictionary of string values.
+ * Used to share a single string instance between all occurrences of a value in low cardinality
+ * result columns (e.g. file categories or commit IDs), instead of each row holding its own copy.
+ * Values can be looked up directly from a character buffer, so no string is allocated when a
+ * value is already in the dictionary.
+ *
+ * The dictionary holds at most maxSize values; once full, values not already in the dictionary
+ * are returned uninterned.
+ */
+public class StringDictionary {
+
+    /** Estimated heap size of a string, excluding its characters; object header, fields + array header. */
+    static final int StringOverhead = 40;
+
+    /** The dictionary's hash table, using open addressing. */
+    private String[] entries;
+    /** The number of values in the dictionary. */
+    private int size;
+    /** The maximum number of values in the dictionary. */
+    private int maxSize;
+    /** The number of lookups which found an existing value. */
+    private long hits;
+    /** The number of lookups which didn't find an existing value. */
+    private long misses;
+    /** The estimated number of heap bytes saved by returning existing values. */
+    private long bytesSaved;
+
+    public StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+        // Keep the table at most half full.
+        int capacity = 16;
+        while( capacity < maxSize * 2 ) {
+            capacity <<= 1;
+        }
+        this.entries = new String[capacity];
+    }
+
+    /**
+     * Return the dictionary's instance of a string value.
+     * @param chars     A buffer containing the string's characters.
+     * @param length    The number of characters in the buffer.
+     */
+    public synchronized String intern(char[] chars, int length) {
+        int hash = 0;
+        for( int i = 0; i < length; i++ ) {
+            hash = 31 * hash + chars[i];
+        }
+        int idx = indexOf( hash );
+        String entry;
+        while( (entry = entries[idx]) != null ) {
+            if( entry.hashCode() == hash && matches( entry, chars, length ) ) {
+                hits++;
+                bytesSaved += StringOverhead + 2 * length;
+                return entry;
+            }
+            idx = (idx + 1) & (entries.length - 1);
+        }
+        return add( idx, new String( chars, 0, length ) );
+    }
+
+    /** Return the dictionary's instance of a string value. */
+    public synchronized String intern(String value) {
+        int idx = indexOf( value.hashCode() );
+        String entry;
+        while( (entry = entries[idx]) != null ) {
+            if( entry.equals( value ) ) {
+                hits++;
+                bytesSaved += StringOverhead + 2 * value.length();
+                return entry;
+            }
+            idx = (idx + 1) & (entries.length - 1);
+        }
+        return add( idx, value );
+    }
+
+    /** Add a value at a free table position, if the dictionary isn't full. */
+    private String add(int idx, String value) {
+        misses++;
+        if( size < maxSize ) {
+            entries[idx] = value;
+            size++;
+        }
+        return value;
+    }
+
+    /** Return the initial table position for a hash code. */
+    private int indexOf(int hash) {
+        // Spread the hash bits, as string hash codes are poorly distributed in the low bits.
+        hash ^= (hash >>> 16);
+        return hash & (entries.length - 1);
+    }
+
+    /** Test whether a string matches the characters in a buffer. */
+    private static boolean matches(String entry, char[] chars, int length) {
+        if( entry.length() != length ) {
+            return false;
+        }
+        for( int i = 0; i < length; i++ ) {
+            if( entry.charAt( i ) != chars[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Test whether the dictionary is full. */
+    public synchronized boolean isFull() {
+        return size >= maxSize;
+    }
+
+    /** Return the number of values in the dictionary. */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Return the estimated number of heap bytes saved by the dictionary. */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /** Add another dictionary's lookup statistics to this dictionary's. */
+    public void addStatistics(StringDictionary dictionary) {
+        long hits, misses, bytesSaved;
+        synchronized( dictionary ) {
+            hits = dictionary.hits;
+            misses = dictionary.misses;
+            bytesSaved = dictionary.bytesSaved;
+        }
+        synchronized( this ) {
+            this.hits += hits;
+            this.misses += misses;
+            this.bytesSaved += bytesSaved;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d hits=%d misses=%d bytesSaved=%d", size, hits, misses, bytesSaved );
+    }
+}
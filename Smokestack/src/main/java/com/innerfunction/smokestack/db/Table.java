@@ -15,6 +15,7 @@ package com.innerfunction.smokestack.db;
 
 import com.innerfunction.scffld.IOCObjectAware;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,6 +29,16 @@ public class Table implements IOCObjectAware {
     protected int since = -1;
     protected int until = -1;
     protected List<?> data;
+    /** The table's indexes, as lists of column names keyed by index name. */
+    protected Map<String,List<String>> indexes = new HashMap<>();
+    /** The table's unique indexes, as lists of column names keyed by index name. */
+    protected Map<String,List<String>> uniqueIndexes = new HashMap<>();
+    /**
+     * Flag indicating that the table holds cached data, which can be fetched again if lost.
+     * Writes to a cache table don't prevent a copy of the database replacing it; see
+     * DB.replaceDatabaseFile().
+     */
+    protected boolean cache;
 
     public Table() {}
 
@@ -39,6 +50,14 @@ public class Table implements IOCObjectAware {
     public void setName(String name) {
         this.name = name;
     }
+
+    public String getName() {
+        return name;
+    }
+
+    public Column[] getColumns() {
+        return columns;
+    }
 /*
     public void setColumns(List<Column> columns) {
         this.columns = columns.toArray( new Column[columns.size()] );
@@ -66,6 +85,40 @@ public class Table implements IOCObjectAware {
         this.data = data;
     }
 
+    /**
+     * Set the table's indexes.
+     * Indexes are configured as lists of column names keyed by index name, e.g.
+     * { "indexes": { "files_path": [ "path" ] } }
+     */
+    public void setIndexes(Map<String,List<String>> indexes) {
+        this.indexes = indexes;
+    }
+
+    public Map<String,List<String>> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Set the table's unique indexes.
+     * Configured in the same way as the table's indexes, e.g.
+     * { "uniqueIndexes": { "files_path": [ "path" ] } }
+     */
+    public void setUniqueIndexes(Map<String,List<String>> uniqueIndexes) {
+        this.uniqueIndexes = uniqueIndexes;
+    }
+
+    public Map<String,List<String>> getUniqueIndexes() {
+        return uniqueIndexes;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    public boolean isCache() {
+        return cache;
+    }
+
     @Override
     public void notifyIOCObject(Object object, String propertyName) {
         // If table hasn't explicitly configured with a name then take its name from the
@@ -0,0 +1,251 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
+import android.util.Log;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of text column values.
+ * Values of columns declared as compressed in the table schema are written as BLOBs holding a
+ * header, the length of the UTF-8 encoded text and the zlib compressed text; values shorter than
+ * MinCompressLength, or which don't compress, are written as plain text. Compressed values are
+ * read as CompressedValue instances, which are decompressed by Record on first access; so query
+ * results which don't access, or don't project, a compressed column don't pay for decompression.
+ * Note that compressed values can't be usefully compared or sorted in SQL.
+ */
+public class TextCompression {
+
+    static final String Tag = TextCompression.class.getSimpleName();
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Bytes marking the start of a compressed value. */
+    static final byte[] Header = new byte[]{ 0, 'Z', '1' };
+    /** The size of the header plus the uncompressed length. */
+    static final int PrefixLength = Header.length + 4;
+    /** The minimum length, in characters, of text to compress. */
+    public static final int MinCompressLength = 256;
+
+    /** Compression statistics. */
+    public static class Statistics {
+        /** The number of values compressed. */
+        public long compressedValues;
+        /** The UTF-8 size of the compressed values before compression. */
+        public long originalBytes;
+        /** The size of the compressed values. */
+        public long compressedBytes;
+        /** The time spent compressing, in nanoseconds. */
+        public long compressTime;
+        /** The number of values decompressed. */
+        public long decompressedValues;
+        /** The time spent decompressing, in nanoseconds. */
+        public long decompressTime;
+
+        @Override
+        public String toString() {
+            return String.format("compressed=%d bytes=%d->%d compressTime=%dus decompressed=%d decompressTime=%dus",
+                compressedValues, originalBytes, compressedBytes, compressTime / 1000,
+                decompressedValues, decompressTime / 1000 );
+        }
+    }
+
+    /** The statistics of all compression performed in the process. */
+    private static final Statistics statistics = new Statistics();
+
+    /**
+     * A compressed text value read from the database.
+     * Decompressed on first use of toString().
+     */
+    public static final class CompressedValue implements JSONAware {
+
+        /** The compressed value. */
+        private final byte[] data;
+        /** The decompressed text. */
+        private String text;
+
+        CompressedValue(byte[] data) {
+            this.data = data;
+        }
+
+        /** Return the compressed value. */
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if( text == null ) {
+                text = decompress( data );
+            }
+            return text;
+        }
+
+        @Override
+        public String toJSONString() {
+            return JSONValue.toJSONString( toString() );
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CompressedValue && Arrays.equals( data, ((CompressedValue)obj).data );
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode( data );
+        }
+    }
+
+    /**
+     * Compress a text value.
+     * @return The compressed value; or null if the text is too short or doesn't compress.
+     */
+    public static byte[] compress(String text) {
+        if( text.length() < MinCompressLength ) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] input = text.getBytes( UTF8 );
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream( input.length / 2 );
+        try {
+            out.write( Header, 0, Header.length );
+            out.write( input.length >>> 24 );
+            out.write( input.length >>> 16 );
+            out.write( input.length >>> 8 );
+            out.write( input.length );
+            deflater.setInput( input );
+            deflater.finish();
+            byte[] buffer = new byte[4096];
+            while( !deflater.finished() ) {
+                int count = deflater.deflate( buffer );
+                out.write( buffer, 0, count );
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        byte[] result = out.size() < input.length ? out.toByteArray() : null;
+        synchronized( statistics ) {
+            statistics.compressTime += System.nanoTime() - start;
+            if( result != null ) {
+                statistics.compressedValues++;
+                statistics.originalBytes += input.length;
+                statistics.compressedBytes += result.length;
+            }
+        }
+        return result;
+    }
+
+    /** Test whether a BLOB value is a compressed text value. */
+    public static boolean isCompressed(byte[] data) {
+        if( data == null || data.length < PrefixLength ) {
+            return false;
+        }
+        for( int i = 0; i < Header.length; i++ ) {
+            if( data[i] != Header[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decompress a compressed text value.
+     * @return The text; or null if the value can't be decompressed.
+     */
+    public static String decompress(byte[] data) {
+        long start = System.nanoTime();
+        int length = ((data[3] & 0xFF) << 24) | ((data[4] & 0xFF) << 16) | ((data[5] & 0xFF) << 8) | (data[6] & 0xFF);
+        byte[] output = new byte[length];
+        Inflater inflater = new Inflater();
+        String result = null;
+        try {
+            inflater.setInput( data, PrefixLength, data.length - PrefixLength );
+            int offset = 0;
+            while( offset < length && !inflater.finished() ) {
+                int count = inflater.inflate( output, offset, length - offset );
+                if( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+                    break;
+                }
+                offset += count;
+            }
+            result = new String( output, 0, offset, UTF8 );
+        }
+        catch(DataFormatException e) {
+            Log.e( Tag, "Decompressing value", e );
+        }
+        finally {
+            inflater.end();
+        }
+        synchronized( statistics ) {
+            statistics.decompressedValues++;
+            statistics.decompressTime += System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /** Read a text value, which may be compressed, from a cursor. */
+    public static String readString(Cursor cursor, int column) {
+        if( cursor.isNull( column ) ) {
+            return null;
+        }
+        if( cursor.getType( column ) == Cursor.FIELD_TYPE_BLOB ) {
+            byte[] data = cursor.getBlob( column );
+            return isCompressed( data ) ? decompress( data ) : new String( data, UTF8 );
+        }
+        return cursor.getString( column );
+    }
+
+    /** Bind a text value to a statement parameter, compressing the value if possible. */
+    public static void bindString(SQLiteProgram statement, int index, String text) {
+        if( text == null ) {
+            statement.bindNull( index );
+            return;
+        }
+        byte[] data = compress( text );
+        if( data != null ) {
+            statement.bindBlob( index, data );
+        }
+        else {
+            statement.bindString( index, text );
+        }
+    }
+
+    /** Return a snapshot of the process' compression statistics. */
+    public static Statistics getStatistics() {
+        Statistics result = new Statistics();
+        synchronized( statistics ) {
+            result.compressedValues = statistics.compressedValues;
+            result.originalBytes = statistics.originalBytes;
+            result.compressedBytes = statistics.compressedBytes;
+            result.compressTime = statistics.compressTime;
+            result.decompressedValues = statistics.decompressedValues;
+            result.decompressTime = statistics.decompressTime;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * A typed table row.
+ * An alternative to Record for reading and writing table data, with a field for each column of
+ * the table. Implementations are generated from table schemas by RowClassGenerator, and read and
+ * write column values by position, so no map lookups or boxing of primitive values are needed.
+ */
+public interface TypedRow {
+
+    /**
+     * Read the row's values from the current position of a cursor.
+     * The cursor's columns must be in the order returned by the schema's getColumnNames().
+     */
+    void readFromCursor(Cursor cursor);
+
+    /**
+     * Bind the row's values to a statement's parameters.
+     * Values are bound to parameters 1..n in the order returned by the schema's getColumnNames().
+     */
+    void bindToStatement(SQLiteStatement statement);
+
+    /** Return the row's schema. */
+    Schema<?> getSchema();
+
+    /** A typed row's table schema. */
+    interface Schema<T extends TypedRow> {
+
+        /** The name of the table. */
+        String getTableName();
+
+        /** The names of the table's columns, in table order. */
+        String[] getColumnNames();
+
+        /** The name of the table's ID column; or null if the table has no ID column. */
+        String getIDColumn();
+
+        /** Create a new, empty row. */
+        T newRow();
+
+    }
+}
@@ -0,0 +1,279 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.innerfunction.util.RunQueue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A write-behind buffer for small, frequent DB writes.
+ * Row writes made through DB.writeBehind() and DB.deleteBehind() are held in memory, with repeated
+ * writes to the same row collapsed into a single write, and are then flushed to the database in a
+ * single transaction once the number of pending writes or the time since the first pending write
+ * passes a threshold, or when DB.flushWrites() is called.
+ *
+ * Reads of single rows through DB.read() see pending values; other queries on a table with
+ * pending writes, and direct writes to the table, flush the pending writes first.
+ */
+public class WriteBehindBuffer {
+
+    static final String Tag = WriteBehindBuffer.class.getSimpleName();
+
+    /**
+     * Crash-safety guarantees of buffered writes.
+     * <ul>
+     * <li>WriteThrough: Writes are applied to the database immediately; nothing is buffered.</li>
+     * <li>Deferred: Writes are buffered; writes not yet flushed are lost if the process dies. The
+     *   maximum amount of data lost is bounded by the maxPendingWrites and maxDelay settings.</li>
+     * </ul>
+     */
+    public enum Durability { WriteThrough, Deferred }
+
+    /** A pending row write. */
+    static class PendingWrite {
+        /** Flag indicating that the row is to be deleted before any values are written. */
+        boolean delete;
+        /** Values to upsert into the row; or null if the row is only deleted. */
+        Map<String,Object> values;
+    }
+
+    /** The buffer's durability. */
+    private Durability durability = Durability.Deferred;
+    /** The number of pending writes which triggers a flush. */
+    private int maxPendingWrites = 50;
+    /** The maximum time, in milliseconds, that a write is held before being flushed. */
+    private long maxDelay = 2000;
+    /** Pending writes, keyed by row ID, keyed by table name. */
+    private Map<String,Map<String,PendingWrite>> pending = new HashMap<>();
+    /** The number of pending writes. */
+    private int pendingCount;
+    /** Patterns for detecting references to tables in SQL. */
+    private Map<String,Pattern> tablePatterns = new HashMap<>();
+    /** The database the buffer is attached to. */
+    private DB db;
+    /** A handler for scheduling timed flushes. */
+    private Handler handler;
+    /** A queue for performing timed flushes off the main thread. */
+    private RunQueue flushQueue;
+    /** Flag indicating that a timed flush is scheduled. */
+    private boolean flushScheduled;
+    /** A runnable which performs a timed flush. */
+    private Runnable timedFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushQueue.dispatch( new Runnable() {
+                @Override
+                public void run() {
+                    synchronized( WriteBehindBuffer.this ) {
+                        flushScheduled = false;
+                    }
+                    db.flushWrites();
+                }
+            } );
+        }
+    };
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setMaxPendingWrites(int maxPendingWrites) {
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /** Attach the buffer to a database. */
+    void attach(DB db) {
+        this.db = db;
+    }
+
+    /** Test whether writes are being buffered. */
+    boolean isBuffering() {
+        return durability != Durability.WriteThrough;
+    }
+
+    /**
+     * Buffer a row write.
+     * The values are merged into any pending values for the same row.
+     * @return true if the number of pending writes has reached the flush threshold.
+     */
+    synchronized boolean write(String table, String id, Map<String,Object> values) {
+        PendingWrite write = getPendingWrite( table, id );
+        if( write.values == null ) {
+            write.values = new HashMap<>();
+        }
+        write.values.putAll( values );
+        return pendingCount >= maxPendingWrites;
+    }
+
+    /**
+     * Buffer a row delete.
+     * Replaces any pending values for the same row.
+     * @return true if the number of pending writes has reached the flush threshold.
+     */
+    synchronized boolean delete(String table, String id) {
+        PendingWrite write = getPendingWrite( table, id );
+        write.delete = true;
+        write.values = null;
+        return pendingCount >= maxPendingWrites;
+    }
+
+    /** Return the pending write for a row, creating a new pending write if none exists. */
+    private PendingWrite getPendingWrite(String table, String id) {
+        Map<String,PendingWrite> writes = pending.get( table );
+        if( writes == null ) {
+            writes = new LinkedHashMap<>();
+            pending.put( table, writes );
+        }
+        PendingWrite write = writes.get( id );
+        if( write == null ) {
+            write = new PendingWrite();
+            writes.put( id, write );
+            pendingCount++;
+            if( pendingCount == 1 ) {
+                scheduleFlush();
+            }
+        }
+        return write;
+    }
+
+    /** Schedule a timed flush of the pending writes. */
+    private void scheduleFlush() {
+        if( handler == null && db != null ) {
+            // Created on first use, so that databases which don't buffer writes don't start a queue.
+            this.handler = new Handler( Looper.getMainLooper() );
+            this.flushQueue = new RunQueue( String.format("%s.%s", Tag, db.getName() ), RunQueue.StartMode.Auto );
+        }
+        if( !flushScheduled && handler != null ) {
+            flushScheduled = handler.postDelayed( timedFlush, maxDelay );
+        }
+    }
+
+    /** Test whether there are any pending writes. */
+    synchronized boolean hasPendingWrites() {
+        return pendingCount > 0;
+    }
+
+    /** Test whether there are pending writes on the named table. */
+    synchronized boolean hasPendingWrites(String table) {
+        return pending.containsKey( table );
+    }
+
+    /** Test whether a SQL statement references a table with pending writes. */
+    synchronized boolean referencesPendingTable(String sql) {
+        for( String table : pending.keySet() ) {
+            Pattern pattern = tablePatterns.get( table );
+            if( pattern == null ) {
+                pattern = Pattern.compile("\\b"+Pattern.quote( table )+"\\b", Pattern.CASE_INSENSITIVE );
+                tablePatterns.put( table, pattern );
+            }
+            if( pattern.matcher( sql ).find() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Apply any pending write for a row to a record read from the database.
+     * @param table     The table the record was read from.
+     * @param id        The record's ID.
+     * @param record    The record read from the database; or null if not found.
+     * @param columns   The columns read; or null if all columns were read.
+     * @return The record as it will be after the pending writes are flushed; or null if the row
+     * doesn't exist or will be deleted.
+     */
+    synchronized Record overlay(String table, String id, Record record, List<String> columns) {
+        Map<String,PendingWrite> writes = pending.get( table );
+        PendingWrite write = writes != null ? writes.get( id ) : null;
+        if( write == null ) {
+            return record;
+        }
+        if( write.delete ) {
+            record = null;
+        }
+        if( write.values != null ) {
+            if( record == null ) {
+                record = new Record();
+            }
+            for( String name : write.values.keySet() ) {
+                if( columns == null || columns.contains( name ) ) {
+                    record.put( name, write.values.get( name ) );
+                }
+            }
+        }
+        return record;
+    }
+
+    /** Remove and return all pending writes. */
+    synchronized Map<String,Map<String,PendingWrite>> drain() {
+        Map<String,Map<String,PendingWrite>> writes = pending;
+        pending = new HashMap<>();
+        pendingCount = 0;
+        if( flushScheduled ) {
+            handler.removeCallbacks( timedFlush );
+            flushScheduled = false;
+        }
+        return writes;
+    }
+
+    /**
+     * Restore writes which failed to flush.
+     * Restored writes are placed before any writes made since they were drained.
+     */
+    synchronized void restore(Map<String,Map<String,PendingWrite>> writes) {
+        for( String table : writes.keySet() ) {
+            Map<String,PendingWrite> tableWrites = writes.get( table );
+            for( String id : tableWrites.keySet() ) {
+                PendingWrite restored = tableWrites.get( id );
+                Map<String,PendingWrite> current = pending.get( table );
+                PendingWrite write = current != null ? current.get( id ) : null;
+                if( write == null ) {
+                    write = getPendingWrite( table, id );
+                    write.delete = restored.delete;
+                    write.values = restored.values;
+                }
+                else if( !write.delete && restored.values != null ) {
+                    // Merge later values over the restored values.
+                    Map<String,Object> values = new HashMap<>( restored.values );
+                    if( write.values != null ) {
+                        values.putAll( write.values );
+                    }
+                    write.delete = restored.delete;
+                    write.values = values;
+                }
+                else if( !write.delete ) {
+                    write.delete = restored.delete;
+                }
+            }
+        }
+        Log.w( Tag, String.format("Restored %d pending writes after failed flush", pendingCount ) );
+    }
+}
@@ -0,0 +1,265 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.content;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM unit tests for RefreshScheduler, driven by a fake clock.
+ */
+public class RefreshSchedulerTest {
+
+    /** One minute, in milliseconds. */
+    static final long Minute = 60000;
+
+    /** A clock whose time only moves when advanced by the test. */
+    static class FakeClock implements RefreshScheduler.Clock {
+
+        static class Task {
+            Runnable runnable;
+            long dueTime;
+            Task(Runnable runnable, long dueTime) {
+                this.runnable = runnable;
+                this.dueTime = dueTime;
+            }
+        }
+
+        long time = 1000;
+        List<Task> tasks = new ArrayList<>();
+
+        @Override
+        public long currentTimeMillis() {
+            return time;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            tasks.add( new Task( task, time + delay ) );
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for( int i = tasks.size() - 1; i >= 0; i-- ) {
+                if( tasks.get( i ).runnable == task ) {
+                    tasks.remove( i );
+                }
+            }
+        }
+
+        /** Advance the clock, running tasks as they become due. */
+        void advance(long millis) {
+            long endTime = time + millis;
+            while( true ) {
+                Task next = null;
+                for( Task task : tasks ) {
+                    if( task.dueTime <= endTime && (next == null || task.dueTime < next.dueTime) ) {
+                        next = task;
+                    }
+                }
+                if( next == null ) {
+                    break;
+                }
+                tasks.remove( next );
+                time = next.dueTime;
+                next.runnable.run();
+            }
+            time = endTime;
+        }
+    }
+
+    /** A refreshable which counts its refreshes. */
+    static class FakeRefreshable implements RefreshScheduler.Refreshable {
+
+        float interval;
+        boolean refreshing;
+        int refreshCount;
+        /** The scheduler; refreshes started while holding its lock are counted. */
+        Object scheduler;
+        int lockedRefreshCount;
+
+        FakeRefreshable(float interval) {
+            this.interval = interval;
+        }
+
+        @Override
+        public float getRefreshInterval() {
+            return interval;
+        }
+
+        @Override
+        public boolean isRefreshing() {
+            return refreshing;
+        }
+
+        @Override
+        public void refreshContent() {
+            refreshCount++;
+            if( scheduler != null && Thread.holdsLock( scheduler ) ) {
+                lockedRefreshCount++;
+            }
+        }
+    }
+
+    private FakeClock clock;
+    private RefreshScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        scheduler = new RefreshScheduler();
+        scheduler.setClock( clock );
+        scheduler.setJitter( 0 );
+    }
+
+    @Test
+    public void startsPausedUntilResumed() {
+        FakeRefreshable refreshable = new FakeRefreshable( 1 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        assertTrue( scheduler.isPaused() );
+        clock.advance( 3 * Minute );
+        assertEquals( 0, refreshable.refreshCount );
+        // Refreshes which came due while paused are coalesced into one.
+        scheduler.resume();
+        assertEquals( 1, refreshable.refreshCount );
+    }
+
+    @Test
+    public void refreshesOncePerInterval() {
+        FakeRefreshable refreshable = new FakeRefreshable( 2 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        clock.advance( 2 * Minute - 1 );
+        assertEquals( 0, refreshable.refreshCount );
+        clock.advance( 1 );
+        assertEquals( 1, refreshable.refreshCount );
+        clock.advance( 4 * Minute );
+        assertEquals( 3, refreshable.refreshCount );
+    }
+
+    @Test
+    public void zeroIntervalDisablesRefreshes() {
+        FakeRefreshable refreshable = new FakeRefreshable( 0 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        clock.advance( 60 * Minute );
+        assertEquals( 0, refreshable.refreshCount );
+        assertTrue( clock.tasks.isEmpty() );
+    }
+
+    @Test
+    public void pausedRefreshesAreCoalesced() {
+        FakeRefreshable refreshable = new FakeRefreshable( 1 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        scheduler.pause();
+        assertTrue( clock.tasks.isEmpty() );
+        clock.advance( 5 * Minute );
+        assertEquals( 0, refreshable.refreshCount );
+        scheduler.resume();
+        assertEquals( 1, refreshable.refreshCount );
+        // The next refresh is due a full interval after the coalesced refresh.
+        clock.advance( Minute - 1 );
+        assertEquals( 1, refreshable.refreshCount );
+        clock.advance( 1 );
+        assertEquals( 2, refreshable.refreshCount );
+    }
+
+    @Test
+    public void resumeBeforeDueWaitsForRemainingInterval() {
+        FakeRefreshable refreshable = new FakeRefreshable( 1 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        clock.advance( 20000 );
+        scheduler.pause();
+        clock.advance( 10000 );
+        scheduler.resume();
+        assertEquals( 0, refreshable.refreshCount );
+        clock.advance( 29999 );
+        assertEquals( 0, refreshable.refreshCount );
+        clock.advance( 1 );
+        assertEquals( 1, refreshable.refreshCount );
+    }
+
+    @Test
+    public void refreshInProgressIsNotRestarted() {
+        FakeRefreshable refreshable = new FakeRefreshable( 1 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        refreshable.refreshing = true;
+        clock.advance( Minute );
+        assertEquals( 0, refreshable.refreshCount );
+        // The next refresh is still scheduled.
+        assertEquals( 1, clock.tasks.size() );
+        refreshable.refreshing = false;
+        clock.advance( Minute );
+        assertEquals( 1, refreshable.refreshCount );
+    }
+
+    @Test
+    public void refreshIsStartedOutsideSchedulerLock() {
+        FakeRefreshable refreshable = new FakeRefreshable( 1 );
+        refreshable.scheduler = scheduler;
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        clock.advance( Minute );
+        scheduler.pause();
+        clock.advance( Minute );
+        scheduler.resume();
+        assertEquals( 2, refreshable.refreshCount );
+        assertEquals( 0, refreshable.lockedRefreshCount );
+    }
+
+    @Test
+    public void jitterVariesDelayWithinBounds() {
+        scheduler.setJitter( 0.1 );
+        scheduler.setRandom( new Random( 42 ) );
+        FakeRefreshable refreshable = new FakeRefreshable( 10 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        for( int i = 0; i < 20; i++ ) {
+            assertEquals( 1, clock.tasks.size() );
+            long delay = clock.tasks.get( 0 ).dueTime - clock.time;
+            assertTrue( delay >= 9 * Minute && delay <= 11 * Minute );
+            clock.advance( delay );
+        }
+        assertEquals( 20, refreshable.refreshCount );
+    }
+
+    @Test
+    public void stopCancelsScheduledRefreshes() {
+        FakeRefreshable refreshable = new FakeRefreshable( 1 );
+        scheduler.addRefreshable("cms", refreshable );
+        scheduler.startService();
+        scheduler.resume();
+        scheduler.stopService();
+        assertTrue( clock.tasks.isEmpty() );
+        clock.advance( 5 * Minute );
+        assertEquals( 0, refreshable.refreshCount );
+    }
+}
@@ -0,0 +1,317 @@
+// Copyright 2026 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.smokestack.db;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM unit tests for QueryPlanAdvisor's query plan parsing and index suggestions.
+ * Real query plans are read from an in-memory SQLite database through JDBC.
+ */
+public class QueryPlanAdvisorTest {
+
+    /** An explainer which reads query plans through a JDBC connection. */
+    static class JDBCExplainer implements QueryPlanAdvisor.Explainer {
+
+        Connection connection;
+
+        JDBCExplainer(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public List<String> explainQueryPlan(String sql, String... args) {
+            List<String> plan = new ArrayList<>();
+            try {
+                PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN "+sql );
+                try {
+                    for( int i = 0; i < args.length; i++ ) {
+                        statement.setString( i + 1, args[i] );
+                    }
+                    ResultSet rs = statement.executeQuery();
+                    while( rs.next() ) {
+                        plan.add( rs.getString("detail") );
+                    }
+                }
+                finally {
+                    statement.close();
+                }
+            }
+            catch(SQLException e) {
+                throw new RuntimeException( e );
+            }
+            return plan;
+        }
+    }
+
+    private QueryPlanAdvisor advisor;
+    private Connection connection;
+
+    @Before
+    public void setUp() {
+        advisor = new QueryPlanAdvisor();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if( connection != null ) {
+            connection.close();
+        }
+    }
+
+    /** Open an in-memory SQLite database with the test table schemas. */
+    private Connection openDatabase() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate("CREATE TABLE files (id INTEGER PRIMARY KEY, path TEXT, category TEXT, status TEXT)");
+            statement.executeUpdate("CREATE INDEX files_category ON files (category)");
+            statement.executeUpdate("CREATE TABLE posts (id INTEGER PRIMARY KEY, type TEXT, title TEXT, modified INTEGER)");
+        }
+        finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    /** Return a map of table schemas used by the tests. */
+    private Map<String,Table> getTables() {
+        Table files = new Table("files",
+            new Column("id",        "INTEGER PRIMARY KEY"),
+            new Column("path",      "TEXT"),
+            new Column("category",  "TEXT"),
+            new Column("status",    "TEXT") );
+        Map<String,List<String>> indexes = new HashMap<>();
+        indexes.put("files_category", Arrays.asList("category") );
+        files.setIndexes( indexes );
+        Table posts = new Table("posts",
+            new Column("id",        "INTEGER PRIMARY KEY"),
+            new Column("type",      "TEXT"),
+            new Column("title",     "TEXT"),
+            new Column("modified",  "INTEGER") );
+        Map<String,Table> tables = new HashMap<>();
+        tables.put("files", files );
+        tables.put("posts", posts );
+        return tables;
+    }
+
+    @Test
+    public void fullTableScanSuggestsEqualityColumns() {
+        String sql = "SELECT * FROM files WHERE category = ? AND status = ?";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE files") );
+        assertEquals( 1, findings.size() );
+        QueryPlanAdvisor.Finding finding = findings.get( 0 );
+        assertEquals( QueryPlanAdvisor.Finding.Kind.FullTableScan, finding.kind );
+        assertEquals("files", finding.table );
+        assertEquals( Arrays.asList("category", "status"), finding.columns );
+    }
+
+    @Test
+    public void fullTableScanSuggestsEqualityColumnsBeforeOneRangeColumn() {
+        String sql = "SELECT * FROM posts WHERE modified > ? AND id < ? AND type = ?";
+        // Newer SQLite versions omit the TABLE keyword.
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN posts") );
+        assertEquals( 1, findings.size() );
+        assertEquals( Arrays.asList("type", "modified"), findings.get( 0 ).columns );
+    }
+
+    @Test
+    public void notEqualsIsNotAnIndexColumn() {
+        String sql = "SELECT * FROM files WHERE status != ?";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE files") );
+        assertEquals( 1, findings.size() );
+        assertTrue( findings.get( 0 ).columns.isEmpty() );
+    }
+
+    @Test
+    public void indexedSearchIsNotFlagged() {
+        String sql = "SELECT * FROM files WHERE category = ?";
+        List<String> plan = Arrays.asList(
+            "SEARCH TABLE files USING INDEX files_category (category=?)",
+            "SCAN TABLE files USING COVERING INDEX files_category" );
+        assertTrue( advisor.analyzePlan( sql, plan ).isEmpty() );
+    }
+
+    @Test
+    public void stringLiteralsAreNotParsedAsPredicates() {
+        String sql = "SELECT * FROM posts WHERE title = 'a = b AND type > c'";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE posts") );
+        assertEquals( Collections.singletonList("title"), findings.get( 0 ).columns );
+    }
+
+    @Test
+    public void automaticIndexSuggestsItsColumns() {
+        String sql = "SELECT * FROM files f JOIN posts p ON p.id = f.id";
+        List<String> plan = Arrays.asList(
+            "SCAN TABLE files AS f",
+            "SEARCH TABLE posts AS p USING AUTOMATIC COVERING INDEX (id=?)" );
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, plan );
+        assertEquals( 2, findings.size() );
+        QueryPlanAdvisor.Finding finding = findings.get( 1 );
+        assertEquals( QueryPlanAdvisor.Finding.Kind.AutomaticIndex, finding.kind );
+        assertEquals("posts", finding.table );
+        assertEquals( Collections.singletonList("id"), finding.columns );
+    }
+
+    @Test
+    public void joinColumnsAreNotSuggestedForTheOuterTable() {
+        String sql = "SELECT * FROM files f JOIN posts p ON p.id = f.id WHERE f.category = ?";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE files AS f") );
+        assertEquals( 1, findings.size() );
+        assertEquals("files", findings.get( 0 ).table );
+        assertEquals( Collections.singletonList("category"), findings.get( 0 ).columns );
+    }
+
+    @Test
+    public void joinColumnsAreSuggestedForTheInnerTable() {
+        String sql = "SELECT * FROM files f JOIN posts p ON f.id = p.id";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE posts AS p") );
+        assertEquals( 1, findings.size() );
+        assertEquals("posts", findings.get( 0 ).table );
+        assertEquals( Collections.singletonList("id"), findings.get( 0 ).columns );
+    }
+
+    @Test
+    public void tempBTreeSuggestsPredicateThenOrderColumns() {
+        String sql = "SELECT * FROM posts WHERE type = ? ORDER BY modified DESC LIMIT 10";
+        List<String> plan = Arrays.asList(
+            "SEARCH TABLE posts USING INDEX posts_type (type=?)",
+            "USE TEMP B-TREE FOR ORDER BY" );
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, plan );
+        assertEquals( 1, findings.size() );
+        QueryPlanAdvisor.Finding finding = findings.get( 0 );
+        assertEquals( QueryPlanAdvisor.Finding.Kind.TempBTree, finding.kind );
+        assertEquals("posts", finding.table );
+        assertEquals( Arrays.asList("type", "modified"), finding.columns );
+    }
+
+    @Test
+    public void tempBTreeForExpressionIsFlaggedWithoutSuggestion() {
+        String sql = "SELECT * FROM posts ORDER BY lower(title)";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("USE TEMP B-TREE FOR ORDER BY") );
+        assertEquals( 1, findings.size() );
+        assertNull( findings.get( 0 ).table );
+        assertTrue( findings.get( 0 ).columns.isEmpty() );
+    }
+
+    @Test
+    public void schemaExcludesUnknownColumns() {
+        advisor.setTables( getTables() );
+        String sql = "SELECT * FROM posts WHERE color = ? AND type = ?";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE posts") );
+        assertEquals( Collections.singletonList("type"), findings.get( 0 ).columns );
+    }
+
+    @Test
+    public void schemaAttributesUnqualifiedColumnsInJoins() {
+        advisor.setTables( getTables() );
+        // Only posts defines 'title'; both tables define 'id', so it can't be attributed.
+        String sql = "SELECT * FROM files f JOIN posts p ON p.type = f.category WHERE id = ? AND title = ?";
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan( sql, Arrays.asList("SCAN TABLE posts AS p") );
+        assertEquals( Arrays.asList("type", "title"), findings.get( 0 ).columns );
+    }
+
+    @Test
+    public void suggestionsSkipDuplicatesAndExistingIndexes() {
+        advisor.setTables( getTables() );
+        List<QueryPlanAdvisor.Finding> findings = new ArrayList<>();
+        findings.addAll( advisor.analyzePlan("SELECT * FROM files WHERE category = ?", Arrays.asList("SCAN TABLE files") ) );
+        findings.addAll( advisor.analyzePlan("SELECT * FROM files WHERE path = ?", Arrays.asList("SCAN TABLE files") ) );
+        findings.addAll( advisor.analyzePlan("SELECT id FROM files WHERE path = ?", Arrays.asList("SCAN TABLE files") ) );
+        assertEquals( 3, findings.size() );
+        Map<String,Map<String,List<String>>> suggestions = advisor.getSuggestedIndexes( findings );
+        assertEquals( 1, suggestions.size() );
+        Map<String,List<String>> indexes = suggestions.get("files");
+        assertEquals( 1, indexes.size() );
+        assertEquals( Collections.singletonList("path"), indexes.get("files_path") );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void suggestionsAreFormattedAsTableConfig() {
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyzePlan(
+            "SELECT * FROM files WHERE category = ? AND status = ?", Arrays.asList("SCAN TABLE files") );
+        Map<String,Object> config = (Map<String,Object>)JSONValue.parse( advisor.getSuggestedIndexConfig( findings ) );
+        Map<String,Object> files = (Map<String,Object>)config.get("files");
+        Map<String,Object> indexes = (Map<String,Object>)files.get("indexes");
+        assertEquals( Arrays.asList("category", "status"), indexes.get("files_category_status") );
+    }
+
+    @Test
+    public void analyzeExplainsEachDistinctStatementOnce() {
+        final List<String> explained = new ArrayList<>();
+        advisor.record("SELECT * FROM files WHERE path = ?", "a");
+        advisor.record("SELECT * FROM files WHERE path = ?", "b");
+        advisor.record("SELECT * FROM posts WHERE id = ?", "1");
+        assertEquals( 2, advisor.getStatements().size() );
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyze( new QueryPlanAdvisor.Explainer() {
+            @Override
+            public List<String> explainQueryPlan(String sql, String... args) {
+                explained.add( sql+" "+args[0] );
+                if( sql.contains("files") ) {
+                    return Arrays.asList("SCAN TABLE files");
+                }
+                return Arrays.asList("SEARCH TABLE posts USING INTEGER PRIMARY KEY (rowid=?)");
+            }
+        } );
+        // Statements are explained with the arguments they were first recorded with.
+        assertEquals( Arrays.asList("SELECT * FROM files WHERE path = ? a", "SELECT * FROM posts WHERE id = ? 1"), explained );
+        assertEquals( 1, findings.size() );
+        assertEquals( Collections.singletonList("path"), findings.get( 0 ).columns );
+        advisor.clear();
+        assertTrue( advisor.getStatements().isEmpty() );
+    }
+
+    @Test
+    public void analyzeReadsRealQueryPlans() throws SQLException {
+        advisor.setTables( getTables() );
+        advisor.record("SELECT * FROM files WHERE category = ?", "posts");
+        advisor.record("SELECT * FROM files WHERE path = ?", "posts/1.html");
+        advisor.record("SELECT * FROM posts WHERE id = ?", "1");
+        advisor.record("SELECT * FROM posts WHERE type = ? ORDER BY modified", "page");
+        List<QueryPlanAdvisor.Finding> findings = advisor.analyze( new JDBCExplainer( openDatabase() ) );
+        // The indexed and primary key lookups aren't flagged.
+        assertEquals( 3, findings.size() );
+        QueryPlanAdvisor.Finding finding = findings.get( 0 );
+        assertEquals( QueryPlanAdvisor.Finding.Kind.FullTableScan, finding.kind );
+        assertEquals("files", finding.table );
+        assertEquals( Collections.singletonList("path"), finding.columns );
+        finding = findings.get( 1 );
+        assertEquals( QueryPlanAdvisor.Finding.Kind.FullTableScan, finding.kind );
+        assertEquals("posts", finding.table );
+        assertEquals( Collections.singletonList("type"), finding.columns );
+        finding = findings.get( 2 );
+        assertEquals( QueryPlanAdvisor.Finding.Kind.TempBTree, finding.kind );
+        assertEquals("posts", finding.table );
+        assertEquals( Arrays.asList("type", "modified"), finding.columns );
+    }
+}